@@ -0,0 +1,39 @@
+/*
+ * Copyright (c) 2024 by Walter Stroebel and InfComTec.
+ */
+package nl.infcomtec.ollamajava.benchmarks;
+
+import org.openjdk.jmh.Main;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks like the JMH main does, but with the GC profiler on
+ * unless other profilers are given, so every result shows the allocation
+ * rate (gc.alloc.rate.norm is bytes per operation).
+ *
+ * @author walter
+ */
+public class BenchmarkMain {
+
+    /**
+     * @param args JMH command line, like "-f 1 Ndjson".
+     * @throws Exception For reasons.
+     */
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions cli = new CommandLineOptions(args);
+        if (cli.shouldHelp() || cli.shouldList() || cli.shouldListWithParams()
+                || cli.shouldListProfilers() || cli.shouldListResultFormats()) {
+            Main.main(args);
+            return;
+        }
+        OptionsBuilder opt = new OptionsBuilder();
+        opt.parent(cli);
+        if (cli.getProfilers().isEmpty()) {
+            opt.addProfiler(GCProfiler.class);
+        }
+        new Runner(opt.build()).run();
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2024 by Walter Stroebel and InfComTec.
+ */
+package nl.infcomtec.ollamajava.benchmarks;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import nl.infcomtec.ollamajava.ChatRequest;
+import nl.infcomtec.ollamajava.Conversation;
+import nl.infcomtec.ollamajava.JsonCodec;
+import nl.infcomtec.ollamajava.Message;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Serializing a chat history, from fixtures/chat-history.json: as bytes, as
+ * the String the trace needs, and streamed like an untraced call does it
+ * (Jackson closes the stream, hence a new null stream per call).
+ *
+ * @author walter
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChatRequestBenchmark {
+
+    /**
+     * Messages in the history.
+     */
+    @Param({"16", "256"})
+    public int messages;
+    private final JsonCodec codec = new JsonCodec();
+    private ChatRequest chat;
+    private Conversation conversation;
+
+    @Setup
+    public void setup() throws IOException {
+        ChatRequest all = codec.mapper.readValue(Fixtures.bytes("chat-history.json"), ChatRequest.class);
+        chat = new ChatRequest();
+        chat.model = all.model;
+        chat.options = all.options;
+        chat.stream = all.stream;
+        chat.messages = Arrays.copyOf(all.messages, Math.min(messages, all.messages.length));
+        conversation = new Conversation(all.model);
+        conversation.options = all.options;
+        conversation.stream = all.stream;
+        conversation.setBudget(Integer.MAX_VALUE);
+        for (Message m : chat.messages) {
+            conversation.add(m);
+        }
+    }
+
+    @Benchmark
+    public byte[] toBytes() throws IOException {
+        return codec.chatWriter.writeValueAsBytes(chat);
+    }
+
+    @Benchmark
+    public String toText() throws IOException {
+        return codec.chatWriter.writeValueAsString(chat);
+    }
+
+    @Benchmark
+    public void toStream() throws IOException {
+        codec.chatWriter.writeValue(OutputStream.nullOutputStream(), chat);
+    }
+
+    @Benchmark
+    public void conversationToStream() throws IOException {
+        codec.writerForChat(conversation).writeValue(OutputStream.nullOutputStream(), conversation);
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright (c) 2024 by Walter Stroebel and InfComTec.
+ */
+package nl.infcomtec.ollamajava.benchmarks;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import javax.imageio.ImageIO;
+
+/**
+ * The recorded data the benchmarks run on, from src/main/resources/fixtures;
+ * nothing needs a server.
+ *
+ * @author walter
+ */
+final class Fixtures {
+
+    private Fixtures() {
+    }
+
+    /**
+     * @param name File name in the fixtures directory.
+     * @return The content.
+     * @throws IOException If it is not there.
+     */
+    static byte[] bytes(String name) throws IOException {
+        try (InputStream in = Fixtures.class.getResourceAsStream("/fixtures/" + name)) {
+            if (null == in) {
+                throw new FileNotFoundException("fixtures/" + name);
+            }
+            return in.readAllBytes();
+        }
+    }
+
+    /**
+     * @param name File name in the fixtures directory.
+     * @return The image.
+     * @throws IOException If it is not there or not an image.
+     */
+    static BufferedImage image(String name) throws IOException {
+        BufferedImage ret = ImageIO.read(new ByteArrayInputStream(bytes(name)));
+        if (null == ret) {
+            throw new IOException("fixtures/" + name + " is not an image");
+        }
+        return ret;
+    }
+}
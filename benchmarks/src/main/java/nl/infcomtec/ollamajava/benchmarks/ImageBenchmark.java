@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2024 by Walter Stroebel and InfComTec.
+ */
+package nl.infcomtec.ollamajava.benchmarks;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import nl.infcomtec.ollamajava.EncodedImage;
+import nl.infcomtec.ollamajava.ImageCache;
+import nl.infcomtec.ollamajava.ImagePreprocessor;
+import nl.infcomtec.ollamajava.JsonCodec;
+import nl.infcomtec.ollamajava.Message;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Getting fixtures/image.png (640x480) into a request: a full PNG encode, a
+ * scaled JPEG, a Message with the image once it is in the ImageCache, the
+ * pixel hash behind that, and the base64 JSON of the message.
+ *
+ * @author walter
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ImageBenchmark {
+
+    private final JsonCodec codec = new JsonCodec();
+    private final ImagePreprocessor scaled = new ImagePreprocessor(320, true, 0.85f, 1);
+    private BufferedImage image;
+    private Message message;
+
+    @Setup
+    public void setup() throws Exception {
+        image = Fixtures.image("image.png");
+        message = new Message(Message.Roles.user, "What is in this picture?", image);
+    }
+
+    @TearDown
+    public void tearDown() {
+        scaled.close();
+    }
+
+    @Benchmark
+    public EncodedImage png() throws IOException {
+        return ImagePreprocessor.NONE.encode(image, "bench");
+    }
+
+    @Benchmark
+    public EncodedImage scaledJpeg() throws IOException {
+        return scaled.encode(image, "bench");
+    }
+
+    @Benchmark
+    public Message cachedMessage() throws Exception {
+        return new Message(Message.Roles.user, "What is in this picture?", image);
+    }
+
+    @Benchmark
+    public String pixelHash() {
+        return ImageCache.pixelHash(image);
+    }
+
+    @Benchmark
+    public byte[] messageJson() throws IOException {
+        return codec.compactWriter.writeValueAsBytes(message);
+    }
+}
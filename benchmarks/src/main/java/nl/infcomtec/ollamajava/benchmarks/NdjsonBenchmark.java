@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2024 by Walter Stroebel and InfComTec.
+ */
+package nl.infcomtec.ollamajava.benchmarks;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import nl.infcomtec.ollamajava.JsonCodec;
+import nl.infcomtec.ollamajava.NdjsonDecoder;
+import nl.infcomtec.ollamajava.Response;
+import nl.infcomtec.ollamajava.StreamedResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Decoding a recorded stream of 600 tokens plus the final frame (with a 2048
+ * token context for generate): with the NdjsonDecoder the client uses, and
+ * line by line through a String per frame as a baseline.
+ *
+ * @author walter
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NdjsonBenchmark {
+
+    /**
+     * Which fixture, generate-stream.ndjson or chat-stream.ndjson.
+     */
+    @Param({"generate", "chat"})
+    public String endpoint;
+    private final JsonCodec codec = new JsonCodec();
+    private byte[] ndjson;
+    private boolean chat;
+
+    @Setup
+    public void setup() throws IOException {
+        ndjson = Fixtures.bytes(endpoint + "-stream.ndjson");
+        chat = "chat".equals(endpoint);
+    }
+
+    @Benchmark
+    public void decoder(Blackhole bh) throws IOException {
+        try (NdjsonDecoder dec = new NdjsonDecoder(codec, new ByteArrayInputStream(ndjson), chat, false)) {
+            StreamedResponse frame;
+            while (null != (frame = dec.next())) {
+                bh.consume(frame);
+            }
+        }
+    }
+
+    @Benchmark
+    public void linesBaseline(Blackhole bh) throws IOException {
+        try (BufferedReader rd = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(ndjson), StandardCharsets.UTF_8))) {
+            String line;
+            while (null != (line = rd.readLine())) {
+                Response frame = codec.responseReader.readValue(line);
+                bh.consume(frame);
+            }
+        }
+    }
+}
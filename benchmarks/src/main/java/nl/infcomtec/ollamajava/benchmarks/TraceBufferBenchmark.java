@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2024 by Walter Stroebel and InfComTec.
+ */
+package nl.infcomtec.ollamajava.benchmarks;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import nl.infcomtec.ollamajava.OllamaJava;
+import nl.infcomtec.ollamajava.TraceBuffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Appending to one TraceBuffer from one and from several threads; the
+ * buffer is full after the first few thousand, so every add also evicts.
+ *
+ * @author walter
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TraceBufferBenchmark {
+
+    private final TraceBuffer buffer = new TraceBuffer();
+    private OllamaJava.JSONIO request;
+    private OllamaJava.JSONIO frame;
+
+    @Setup
+    public void setup() throws IOException {
+        byte[] ndjson = Fixtures.bytes("chat-stream.ndjson");
+        String first = new String(ndjson, StandardCharsets.UTF_8).split("\n", 2)[0];
+        request = new OllamaJava.JSONIO(true, "/api/chat",
+                new String(Fixtures.bytes("chat-history.json"), StandardCharsets.UTF_8).substring(0, 4096));
+        frame = new OllamaJava.JSONIO(false, "/api/chat", first);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void addFrame() {
+        buffer.add(frame);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void addFrame4Threads() {
+        buffer.add(frame);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void addRequest4Threads() {
+        buffer.add(request);
+    }
+}
@@ -0,0 +1,286 @@
+/*
+ * Copyright (c) 2024 by Walter Stroebel and InfComTec.
+ */
+package nl.infcomtec.ollamajava;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * Runs a large number of generate requests over one or more hosts.
+ * <p>
+ * The input is pulled one request at a time, never collected: a request is
+ * only taken when a host has a free slot and fewer than the window of results
+ * are outstanding (running, or finished but waiting for an earlier one in
+ * ordered mode). All results are delivered to the consumer on the calling
+ * thread, so the consumer needs no locking. A failed request gives a Result
+ * with the exception, the batch goes on. Each call runs on its own thread
+ * from TaskExecutors, a virtual one on Java 21 and up; the slots bound how
+ * many there are.
+ *
+ * @author walter
+ */
+public class BatchRunner {
+
+    private final OllamaJava ollama;
+    private final List<Config> hosts;
+    private final int perHost;
+    private final boolean ordered;
+    private final int window;
+
+    /**
+     * @param ollama The client to use.
+     * @param hosts The hosts to spread the requests over.
+     * @param perHost Maximum requests in progress per host.
+     * @param ordered True to deliver results in input order, false for
+     * completion order.
+     */
+    public BatchRunner(OllamaJava ollama, List<Config> hosts, int perHost, boolean ordered) {
+        this(ollama, hosts, perHost, ordered, 4 * perHost * hosts.size());
+    }
+
+    /**
+     * @param ollama The client to use.
+     * @param hosts The hosts to spread the requests over.
+     * @param perHost Maximum requests in progress per host.
+     * @param ordered True to deliver results in input order, false for
+     * completion order.
+     * @param window Maximum results taken from the input but not yet
+     * delivered; in ordered mode this bounds the results held back behind a
+     * slow one.
+     */
+    public BatchRunner(OllamaJava ollama, List<Config> hosts, int perHost, boolean ordered, int window) {
+        if (hosts.isEmpty() || perHost < 1) {
+            throw new IllegalArgumentException("Need at least one host and one slot per host");
+        }
+        this.ollama = ollama;
+        this.hosts = new ArrayList<>(hosts);
+        this.perHost = perHost;
+        this.ordered = ordered;
+        this.window = Math.max(window, perHost * hosts.size());
+    }
+
+    /**
+     * Run all requests from a stream; the stream is consumed lazily.
+     *
+     * @param requests The requests, stream should be false.
+     * @param sink Gets each result.
+     * @return Totals.
+     * @throws InterruptedException If interrupted; requests in progress are
+     * abandoned.
+     */
+    public Summary run(Stream<Request> requests, Consumer<Result> sink) throws InterruptedException {
+        return run(requests.iterator(), sink);
+    }
+
+    /**
+     * Run all requests from an iterator.
+     *
+     * @param requests The requests, stream should be false.
+     * @param sink Gets each result.
+     * @return Totals.
+     * @throws InterruptedException If interrupted; requests in progress are
+     * abandoned.
+     */
+    public Summary run(Iterator<Request> requests, Consumer<Result> sink) throws InterruptedException {
+        int slotCount = perHost * hosts.size();
+        // one entry per free slot; taking one is acquiring a permit on that host
+        ArrayBlockingQueue<Config> slots = new ArrayBlockingQueue<>(slotCount);
+        for (int i = 0; i < perHost; i++) {
+            slots.addAll(hosts);
+        }
+        LinkedBlockingQueue<Result> done = new LinkedBlockingQueue<>();
+        ExecutorService workers = TaskExecutors.newPerTaskExecutor("OllamaJava-batch");
+        Delivery out = new Delivery(sink);
+        long t0 = System.nanoTime();
+        try {
+            long index = 0;
+            while (requests.hasNext()) {
+                while (out.inFlight >= window) {
+                    out.deliver(done.take());
+                }
+                Config host;
+                while (null == (host = slots.poll())) {
+                    out.deliver(done.take());
+                }
+                Request rq = requests.next();
+                final long at = index++;
+                final Config cfg = host;
+                out.inFlight++;
+                workers.execute(() -> {
+                    long s = System.nanoTime();
+                    Result res;
+                    try {
+                        res = new Result(at, rq, cfg, ollama.request(cfg, rq), null, System.nanoTime() - s);
+                    } catch (Exception ex) {
+                        res = new Result(at, rq, cfg, null, ex, System.nanoTime() - s);
+                    }
+                    slots.add(cfg);
+                    done.add(res);
+                });
+                for (Result r; null != (r = done.poll());) {
+                    out.deliver(r);
+                }
+            }
+            while (out.inFlight > 0) {
+                out.deliver(done.take());
+            }
+        } finally {
+            workers.shutdownNow();
+        }
+        out.summary.wallNanos = System.nanoTime() - t0;
+        return out.summary;
+    }
+
+    /**
+     * Hands results to the sink, in order if so wanted, and keeps the totals.
+     * Only used by the calling thread.
+     */
+    private class Delivery {
+
+        final Consumer<Result> sink;
+        final Summary summary = new Summary();
+        final HashMap<Long, Result> held = new HashMap<>();
+        long nextOut;
+        int inFlight;
+
+        Delivery(Consumer<Result> sink) {
+            this.sink = sink;
+        }
+
+        void deliver(Result r) {
+            if (!ordered) {
+                emit(r);
+                return;
+            }
+            held.put(r.index, r);
+            for (Result n; null != (n = held.remove(nextOut));) {
+                nextOut++;
+                emit(n);
+            }
+        }
+
+        private void emit(Result r) {
+            inFlight--;
+            summary.add(r);
+            sink.accept(r);
+        }
+    }
+
+    /**
+     * Outcome of one request.
+     */
+    public static class Result {
+
+        /**
+         * Position in the input, from 0.
+         */
+        public final long index;
+        public final Request request;
+        /**
+         * Where it ran.
+         */
+        public final Config host;
+        /**
+         * Null if it failed.
+         */
+        public final Response response;
+        /**
+         * Null if it succeeded.
+         */
+        public final Exception error;
+        /**
+         * Client side wall time.
+         */
+        public final long nanos;
+
+        Result(long index, Request request, Config host, Response response, Exception error, long nanos) {
+            this.index = index;
+            this.request = request;
+            this.host = host;
+            this.response = response;
+            this.error = error;
+            this.nanos = nanos;
+        }
+
+        /**
+         * @return True if there is a response and the server did not send an
+         * error instead.
+         */
+        public boolean isOk() {
+            return null == error && (null == response || !response.error);
+        }
+    }
+
+    /**
+     * Totals of a batch.
+     */
+    public static class Summary {
+
+        public long requests;
+        public long failures;
+        /**
+         * Sum of Response.promptEvalCount.
+         */
+        public long promptEvalCount;
+        /**
+         * Sum of Response.evalCount.
+         */
+        public long evalCount;
+        /**
+         * Sum of Response.evalDuration, in nanoseconds.
+         */
+        public long evalDuration;
+        /**
+         * Time for the whole batch, in nanoseconds.
+         */
+        public long wallNanos;
+
+        void add(Result r) {
+            requests++;
+            if (!r.isOk()) {
+                failures++;
+                return;
+            }
+            promptEvalCount += r.response.promptEvalCount;
+            evalCount += r.response.evalCount;
+            evalDuration += r.response.evalDuration;
+        }
+
+        /**
+         * @return Generated tokens per second of wall time, all hosts together.
+         */
+        public double tokensPerSecond() {
+            return wallNanos > 0 ? evalCount * 1E9 / wallNanos : 0;
+        }
+
+        /**
+         * @return Generated tokens per second of model time, the average speed
+         * of a single call.
+         */
+        public double evalTokensPerSecond() {
+            return evalDuration > 0 ? evalCount * 1E9 / evalDuration : 0;
+        }
+
+        /**
+         * @return Requests per second of wall time.
+         */
+        public double requestsPerSecond() {
+            return wallNanos > 0 ? requests * 1E9 / wallNanos : 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("requests=%d failures=%d promptTokens=%d tokens=%d wall=%.1fs %.1f req/s %.1f tok/s (%.1f tok/s per call)",
+                    requests, failures, promptEvalCount, evalCount, wallNanos / 1E9,
+                    requestsPerSecond(), tokensPerSecond(), evalTokensPerSecond());
+        }
+    }
+}
@@ -5,6 +5,7 @@ package nl.infcomtec.ollamajava;
 
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.databind.JsonNode;
+import java.util.Arrays;
 
 /**
  * This is for "chat" mode.
@@ -54,13 +55,15 @@ public class ChatRequest {
      */
     public Options options;
 
+    /**
+     * Append a user message. This copies the array, for long chats use a
+     * Conversation.
+     *
+     * @param message The text.
+     */
     public void addUserMessage(String message) {
-        Message[] cur = messages;
-        messages = new Message[cur.length + 1];
-        int i;
-        for (i = 0; i < cur.length; i++) {
-            messages[i] = cur[i];
-        }
-        messages[i] = new Message(Message.Roles.user, message);
+        Message[] cur = null == messages ? new Message[0] : messages;
+        messages = Arrays.copyOf(cur, cur.length + 1);
+        messages[cur.length] = new Message(Message.Roles.user, message);
     }
 }
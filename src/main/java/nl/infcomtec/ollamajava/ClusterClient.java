@@ -0,0 +1,417 @@
+/*
+ * Copyright (c) 2024 by Walter Stroebel and InfComTec.
+ */
+package nl.infcomtec.ollamajava;
+
+import java.awt.image.RenderedImage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Spreads calls over several machines running Ollama.
+ * <p>
+ * Each call goes to the node with the least outstanding requests, or to the
+ * better of two random nodes (power of two choices), weighted by the node's
+ * recent latency. Health is tracked passively: a node that fails to connect or
+ * answers with a server error is left alone for a while, longer after each
+ * consecutive failure. A call that fails before anything was received is tried
+ * once more on another node.
+ *
+ * @author walter
+ */
+public class ClusterClient {
+
+    /**
+     * How to choose a node.
+     */
+    public static enum Policy {
+        /**
+         * The node with the fewest calls in progress, ties go to the faster.
+         */
+        LEAST_OUTSTANDING,
+        /**
+         * Pick two nodes at random, take the one with the lower
+         * (outstanding+1)*latency.
+         */
+        POWER_OF_TWO
+    }
+    /**
+     * First time-out after a failure, doubled for each consecutive failure.
+     */
+    public static final long EJECT_MILLIS = 1000;
+    /**
+     * Maximum time-out after failures.
+     */
+    public static final long MAX_EJECT_MILLIS = 60000;
+    protected final OllamaJava ollama;
+    protected final List<Node> nodes;
+    private final Policy policy;
+
+    /**
+     * @param ollama The client to use, shared by all nodes.
+     * @param configs One per machine.
+     * @param policy How to choose.
+     */
+    public ClusterClient(OllamaJava ollama, List<Config> configs, Policy policy) {
+        if (configs.isEmpty()) {
+            throw new IllegalArgumentException("No nodes");
+        }
+        this.ollama = ollama;
+        this.policy = policy;
+        ArrayList<Node> list = new ArrayList<>(configs.size());
+        for (Config cfg : configs) {
+            list.add(new Node(cfg));
+        }
+        this.nodes = Collections.unmodifiableList(list);
+    }
+
+    /**
+     * @param configs One per machine.
+     */
+    public ClusterClient(List<Config> configs) {
+        this(new OllamaJava(), configs, Policy.POWER_OF_TWO);
+    }
+
+    /**
+     * @return The nodes, for monitoring.
+     */
+    public List<Node> getNodes() {
+        return nodes;
+    }
+
+    /**
+     * @return The client used for all nodes.
+     */
+    public OllamaJava getOllama() {
+        return ollama;
+    }
+
+    /**
+     * Call model via Ollama on the best node.
+     *
+     * @param rq Proper request.
+     * @return Response.
+     * @throws Exception Or this.
+     */
+    public Response request(Request rq) throws Exception {
+        return call(rq.model, (cfg, streamed) -> ollama.request(cfg, rq), r -> r);
+    }
+
+    /**
+     * Use the chat interface on the best node.
+     *
+     * @param rq The full chat request.
+     * @param listener If not null, will be called for each partial response.
+     * @return List of responses.
+     * @throws Exception For reasons.
+     */
+    public List<Response> chat(ChatRequest rq, OllamaJava.StreamListener listener) throws Exception {
+        return call(rq.model, (cfg, streamed) -> ollama.chat(cfg, rq, watch(listener, streamed)),
+                l -> l.isEmpty() ? null : l.get(l.size() - 1));
+    }
+
+    /**
+     * This calls the listener for each word, on the best node.
+     *
+     * @param model The model to use.
+     * @param prompt The question.
+     * @param listener Callback.
+     * @param images For vision capable models.
+     * @return See OllamaJava.askWithStream().
+     * @throws Exception For reasons.
+     */
+    public Response askWithStream(String model, String prompt, OllamaJava.StreamListener listener, RenderedImage... images) throws Exception {
+        return call(model, (cfg, streamed) -> ollama.askWithStream(cfg, model, prompt, watch(listener, streamed), images), r -> r);
+    }
+
+    private static OllamaJava.StreamListener watch(OllamaJava.StreamListener listener, boolean[] streamed) {
+        if (null == listener) {
+            return null;
+        }
+        return part -> {
+            streamed[0] = true;
+            return listener.onResponseReceived(part);
+        };
+    }
+
+    /**
+     * Run a call on the chosen node, and once more on another node if it
+     * failed before the listener saw anything.
+     *
+     * @param <T> Result type.
+     * @param model Model of the call.
+     * @param call The call.
+     * @param last Gets the final Response out of the result.
+     * @return The result.
+     * @throws Exception From the last try.
+     */
+    protected <T> T call(String model, Call<T> call, ResultView<T> last) throws Exception {
+        Node first = select(model, null);
+        boolean[] streamed = new boolean[1];
+        try {
+            return run(first, model, call, last, streamed);
+        } catch (IOException ex) {
+            if (streamed[0] || !retryable(ex)) {
+                throw ex;
+            }
+            Node second = select(model, first);
+            if (null == second) {
+                throw ex;
+            }
+            return run(second, model, call, last, streamed);
+        }
+    }
+
+    private <T> T run(Node node, String model, Call<T> call, ResultView<T> last, boolean[] streamed) throws Exception {
+        node.outstanding.incrementAndGet();
+        long t0 = System.nanoTime();
+        try {
+            T ret = call.on(node.cfg, streamed);
+            long nanos = System.nanoTime() - t0;
+            node.success(nanos);
+            completed(node, model, null == ret ? null : last.of(ret), nanos);
+            return ret;
+        } catch (HttpStatusException ex) {
+            if (ex.isServerError()) {
+                node.failure();
+            }
+            failed(node, model, ex);
+            throw ex;
+        } catch (IOException ex) {
+            node.failure();
+            failed(node, model, ex);
+            throw ex;
+        } finally {
+            node.outstanding.decrementAndGet();
+        }
+    }
+
+    /**
+     * Worth trying another node? Connection trouble, a server error or an
+     * unknown model (the other node may have it) are; other 4xx are not.
+     *
+     * @param ex What went wrong.
+     * @return True to try another node.
+     */
+    protected boolean retryable(IOException ex) {
+        if (ex instanceof HttpStatusException) {
+            HttpStatusException hse = (HttpStatusException) ex;
+            return hse.isServerError() || hse.status == 404;
+        }
+        return true;
+    }
+
+    /**
+     * Called after each successful call, for subclasses that learn from the
+     * responses.
+     *
+     * @param node Where it ran.
+     * @param model The model asked for.
+     * @param last The final response, null if the listener stopped the stream.
+     * @param nanos Client side wall time.
+     */
+    protected void completed(Node node, String model, Response last, long nanos) {
+    }
+
+    /**
+     * Called after each failed call.
+     *
+     * @param node Where it ran.
+     * @param model The model asked for.
+     * @param ex What went wrong.
+     */
+    protected void failed(Node node, String model, IOException ex) {
+    }
+
+    /**
+     * Choose a node for a call.
+     *
+     * @param model The model asked for, ignored here.
+     * @param exclude Do not return this one, may be null.
+     * @return The node, null only if exclude was the only node.
+     */
+    protected Node select(String model, Node exclude) {
+        return choose(nodes, exclude);
+    }
+
+    /**
+     * Choose among some nodes according to the policy, skipping unhealthy
+     * nodes unless they are all unhealthy.
+     *
+     * @param from Candidates.
+     * @param exclude Do not return this one, may be null.
+     * @return The node, null if there are no candidates.
+     */
+    protected Node choose(List<Node> from, Node exclude) {
+        long now = System.currentTimeMillis();
+        ArrayList<Node> healthy = new ArrayList<>(from.size());
+        Node soonest = null;
+        for (Node n : from) {
+            if (n == exclude) {
+                continue;
+            }
+            if (n.isHealthy(now)) {
+                healthy.add(n);
+            } else if (null == soonest || n.ejectedUntil < soonest.ejectedUntil) {
+                soonest = n;
+            }
+        }
+        if (healthy.isEmpty()) {
+            return soonest;
+        }
+        if (healthy.size() == 1) {
+            return healthy.get(0);
+        }
+        if (policy == Policy.POWER_OF_TWO) {
+            ThreadLocalRandom rnd = ThreadLocalRandom.current();
+            int a = rnd.nextInt(healthy.size());
+            int b = rnd.nextInt(healthy.size() - 1);
+            if (b >= a) {
+                b++;
+            }
+            Node na = healthy.get(a);
+            Node nb = healthy.get(b);
+            return na.load() <= nb.load() ? na : nb;
+        }
+        Node best = null;
+        for (Node n : healthy) {
+            if (null == best || n.outstanding.get() < best.outstanding.get()
+                    || (n.outstanding.get() == best.outstanding.get() && n.latency() < best.latency())) {
+                best = n;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * One call on one node.
+     *
+     * @param <T> Result type.
+     */
+    protected interface Call<T> {
+
+        /**
+         * @param cfg The node.
+         * @param streamed Set [0] to true once partial output was delivered.
+         * @return The result.
+         * @throws Exception For reasons.
+         */
+        T on(Config cfg, boolean[] streamed) throws Exception;
+    }
+
+    /**
+     * Gets the final Response from a call result.
+     *
+     * @param <T> Result type.
+     */
+    protected interface ResultView<T> {
+
+        Response of(T result);
+    }
+
+    /**
+     * One machine and what we know about it.
+     */
+    public static class Node {
+
+        /**
+         * Weight of the newest sample in the latency average.
+         */
+        private static final double ALPHA = 0.2;
+        public final Config cfg;
+        final AtomicInteger outstanding = new AtomicInteger();
+        private final AtomicLong calls = new AtomicLong();
+        private final AtomicLong failures = new AtomicLong();
+        private volatile double ewmaMillis;
+        private volatile int consecutiveFailures;
+        private volatile long ejectedUntil;
+        private final ReentrantLock lock = new ReentrantLock();
+
+        Node(Config cfg) {
+            this.cfg = cfg;
+        }
+
+        void success(long nanos) {
+            calls.incrementAndGet();
+            double ms = nanos / 1E6;
+            lock.lock();
+            try {
+                ewmaMillis = ewmaMillis == 0 ? ms : ewmaMillis + ALPHA * (ms - ewmaMillis);
+                consecutiveFailures = 0;
+                ejectedUntil = 0;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void failure() {
+            calls.incrementAndGet();
+            failures.incrementAndGet();
+            lock.lock();
+            try {
+                int n = Math.min(++consecutiveFailures, 16);
+                ejectedUntil = System.currentTimeMillis() + Math.min(MAX_EJECT_MILLIS, EJECT_MILLIS << (n - 1));
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        boolean isHealthy(long now) {
+            return ejectedUntil <= now;
+        }
+
+        /**
+         * A node without samples counts as fast, so it gets tried.
+         *
+         * @return Average latency in milliseconds, at least 1.
+         */
+        public double latency() {
+            return Math.max(1, ewmaMillis);
+        }
+
+        double load() {
+            return (outstanding.get() + 1) * latency();
+        }
+
+        /**
+         * @return Calls in progress.
+         */
+        public int getOutstanding() {
+            return outstanding.get();
+        }
+
+        /**
+         * @return Calls done, including failures.
+         */
+        public long getCalls() {
+            return calls.get();
+        }
+
+        /**
+         * @return Failed calls.
+         */
+        public long getFailures() {
+            return failures.get();
+        }
+
+        /**
+         * @return True if not recently failed.
+         */
+        public boolean isHealthy() {
+            return isHealthy(System.currentTimeMillis());
+        }
+
+        @Override
+        public String toString() {
+            return cfg.hostOrIP + ':' + cfg.port + " outstanding=" + outstanding + " calls=" + calls
+                    + " failures=" + failures + String.format(" latency=%.1fms", latency())
+                    + (isHealthy() ? "" : " ejected");
+        }
+    }
+}
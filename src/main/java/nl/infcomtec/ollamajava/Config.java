@@ -18,10 +18,23 @@ public class Config {
     private static final String API_CHAT = "/api/chat";
     private static final String API_TAGS = "/api/tags";
     private static final String API_SHOW = "/api/show";
+    private static final String API_EMBED = "/api/embed";
 
     public String hostOrIP = "127.0.0.1";
     public String proto = "http://";
     public int port = 11434;
+    /**
+     * Maximum number of idle keep-alive connections kept for this host.
+     */
+    public int poolSize = 8;
+    /**
+     * Idle keep-alive connections are closed after this many milliseconds.
+     */
+    public long poolIdleMillis = 30000;
+    /**
+     * Time allowed to establish a connection.
+     */
+    public int connectTimeoutMillis = 10000;
 
     public Config() {
     }
@@ -30,6 +43,15 @@ public class Config {
         this.hostOrIP = hostOrIP;
     }
 
+    /**
+     * The keep-alive connections to this host.
+     *
+     * @return The shared pool for proto, host and port.
+     */
+    public ConnectionPool pool() {
+        return ConnectionPool.of(this);
+    }
+
     /**
      * List Local Models.
      *
@@ -69,4 +91,14 @@ public class Config {
     public URL ollamaChatUrl() throws MalformedURLException {
         return new URL(proto + hostOrIP + ':' + port + API_CHAT);
     }
+
+    /**
+     * Generate embeddings.
+     *
+     * @return The URL.
+     * @throws MalformedURLException
+     */
+    public URL ollamaEmbedUrl() throws MalformedURLException {
+        return new URL(proto + hostOrIP + ':' + port + API_EMBED);
+    }
 }
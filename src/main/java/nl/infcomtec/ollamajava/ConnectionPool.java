@@ -0,0 +1,956 @@
+/*
+ * Copyright (c) 2024 by Walter Stroebel and InfComTec.
+ */
+package nl.infcomtec.ollamajava;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Keep-alive HTTP/1.1 connections to one Ollama instance.
+ * <p>
+ * There is one pool per proto, host and port, see of(Config). Connections are
+ * handed out for one exchange (request plus response) and go back to the pool
+ * when the response body was read completely and the exchange is closed. Idle
+ * connections are closed after Config.poolIdleMillis and no more than
+ * Config.poolSize are kept. Request bodies are either a byte[] sent with a
+ * Content-Length, or written by a BodyWriter straight onto the socket with
+ * chunked transfer encoding.
+ * <p>
+ * New connections follow ProxySelector.getDefault(), so http.proxyHost,
+ * https.proxyHost, socksProxyHost and the nonProxyHosts lists work as they
+ * did with HttpURLConnection; HTTPS goes through an HTTP proxy with CONNECT.
+ * Proxy authentication is not supported.
+ * <p>
+ * A pool made with the constructor must be closed when done; the shared
+ * pools of of(Config) live as long as the JVM unless closed.
+ *
+ * @author walter
+ */
+public class ConnectionPool implements Closeable {
+
+    private static final ConcurrentHashMap<String, ConnectionPool> POOLS = new ConcurrentHashMap<>();
+    private static final ScheduledExecutorService EVICTOR = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "OllamaJava-pool-evictor");
+        t.setDaemon(true);
+        return t;
+    });
+    private static final byte[] CRLF = {'\r', '\n'};
+
+    public final String host;
+    public final int port;
+    public final boolean secure;
+    private final int poolSize;
+    private final long idleMillis;
+    private final int connectTimeout;
+    private final ArrayDeque<Connection> idle = new ArrayDeque<>();
+    /**
+     * Guards idle; a lock and not a monitor, so virtual threads do not pin.
+     */
+    private final ReentrantLock idleLock = new ReentrantLock();
+    private final AtomicInteger leased = new AtomicInteger();
+    private final AtomicLong opened = new AtomicLong();
+    private final AtomicLong reused = new AtomicLong();
+    private final AtomicLong closed = new AtomicLong();
+    private final AtomicLong evicted = new AtomicLong();
+    private final AtomicLong exchanges = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final ScheduledFuture<?> sweeper;
+    private volatile boolean shut;
+
+    /**
+     * Get the pool for this configuration, the first call for a proto, host
+     * and port decides the pool size and idle time.
+     *
+     * @param cfg The configuration.
+     * @return The shared pool.
+     */
+    public static ConnectionPool of(Config cfg) {
+        String key = cfg.proto + cfg.hostOrIP + ':' + cfg.port;
+        return POOLS.computeIfAbsent(key, k -> new ConnectionPool(cfg));
+    }
+
+    /**
+     * @return All pools created so far, for monitoring.
+     */
+    public static Collection<ConnectionPool> all() {
+        return new ArrayList<>(POOLS.values());
+    }
+
+    /**
+     * Create a private pool, normally you want of(Config). Close it when
+     * done, that stops its idle sweep.
+     *
+     * @param cfg Host, port, pool size and idle time.
+     */
+    public ConnectionPool(Config cfg) {
+        this.host = cfg.hostOrIP;
+        this.port = cfg.port;
+        this.secure = cfg.proto.toLowerCase(Locale.ROOT).startsWith("https");
+        this.poolSize = cfg.poolSize;
+        this.idleMillis = cfg.poolIdleMillis;
+        this.connectTimeout = cfg.connectTimeoutMillis;
+        long sweep = Math.max(1000, idleMillis / 2);
+        sweeper = EVICTOR.scheduleWithFixedDelay(this::evictIdle, sweep, sweep, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop the idle sweep and close the idle connections; connections in use
+     * are closed when their exchange is done. A shared pool is removed, the
+     * next of(Config) makes a new one.
+     */
+    @Override
+    public void close() {
+        shut = true;
+        sweeper.cancel(false);
+        POOLS.values().remove(this);
+        closeIdle();
+    }
+
+    /**
+     * Do a GET.
+     *
+     * @param path Like "/api/tags".
+     * @return The exchange, must be closed.
+     * @throws IOException For reasons.
+     */
+    public Exchange get(String path) throws IOException {
+        return execute("GET", path, null);
+    }
+
+    /**
+     * Do a POST of JSON.
+     *
+     * @param path Like "/api/chat".
+     * @param body The JSON.
+     * @return The exchange, must be closed.
+     * @throws IOException For reasons.
+     */
+    public Exchange post(String path, byte[] body) throws IOException {
+        return execute("POST", path, body);
+    }
+
+    /**
+     * Do a POST of JSON, written while it is sent; nothing is buffered but a
+     * chunk.
+     *
+     * @param path Like "/api/chat".
+     * @param body Writes the JSON, may be called a second time if a pooled
+     * connection turned out to be closed.
+     * @return The exchange, must be closed.
+     * @throws IOException For reasons.
+     */
+    public Exchange post(String path, BodyWriter body) throws IOException {
+        return execute("POST", path, null, body);
+    }
+
+    /**
+     * Send a request and read the response headers. A pooled connection may
+     * have been closed by the server while idle; if it fails that way, before
+     * any of the response came in, the request is tried once more on a fresh
+     * connection. A failure after the status line, or one that is not about
+     * the connection, is never retried: the server may be running the
+     * request.
+     *
+     * @param method GET or POST.
+     * @param path The path.
+     * @param body Optional body.
+     * @return The exchange, must be closed.
+     * @throws IOException For reasons.
+     */
+    public Exchange execute(String method, String path, byte[] body) throws IOException {
+        return execute(method, path, body, null);
+    }
+
+    private Exchange execute(String method, String path, byte[] body, BodyWriter writer) throws IOException {
+        exchanges.incrementAndGet();
+        Connection con = lease();
+        try {
+            return con.exchange(method, path, body, writer);
+        } catch (IOException | RuntimeException ex) {
+            // the socket is in an unknown state, whoever threw
+            discard(con);
+            if (!con.isReused() || con.statusRead || !(ex instanceof SocketException || ex instanceof EOFException)) {
+                failures.incrementAndGet();
+                throw ex;
+            }
+        }
+        Connection fresh = open();
+        try {
+            return fresh.exchange(method, path, body, writer);
+        } catch (IOException | RuntimeException ex) {
+            failures.incrementAndGet();
+            discard(fresh);
+            throw ex;
+        }
+    }
+
+    private Connection lease() throws IOException {
+        long now = System.currentTimeMillis();
+        while (true) {
+            Connection con;
+            idleLock.lock();
+            try {
+                con = idle.pollFirst();
+            } finally {
+                idleLock.unlock();
+            }
+            if (null == con) {
+                return open();
+            }
+            if (now - con.lastUsed > idleMillis || con.socket.isClosed()) {
+                evicted.incrementAndGet();
+                con.close();
+                continue;
+            }
+            reused.incrementAndGet();
+            leased.incrementAndGet();
+            con.uses++;
+            return con;
+        }
+    }
+
+    private Connection open() throws IOException {
+        Proxy proxy = proxy();
+        Socket s = Proxy.Type.SOCKS == proxy.type() ? new Socket(proxy) : new Socket();
+        // a plain HTTP proxy wants the full URL in the request line
+        String prefix = "";
+        long start = System.nanoTime();
+        try {
+            s.setTcpNoDelay(true);
+            s.setKeepAlive(true);
+            if (Proxy.Type.HTTP == proxy.type()) {
+                InetSocketAddress addr = (InetSocketAddress) proxy.address();
+                if (addr.isUnresolved()) {
+                    addr = new InetSocketAddress(addr.getHostString(), addr.getPort());
+                }
+                s.connect(addr, connectTimeout);
+                if (secure) {
+                    tunnel(s);
+                } else {
+                    prefix = "http://" + authority();
+                }
+            } else if (Proxy.Type.SOCKS == proxy.type()) {
+                // the proxy resolves the name
+                s.connect(InetSocketAddress.createUnresolved(host, port), connectTimeout);
+            } else {
+                s.connect(new InetSocketAddress(host, port), connectTimeout);
+            }
+            if (secure) {
+                SSLSocket ssl = (SSLSocket) ((SSLSocketFactory) SSLSocketFactory.getDefault()).createSocket(s, host, port, true);
+                SSLParameters params = ssl.getSSLParameters();
+                params.setEndpointIdentificationAlgorithm("HTTPS");
+                ssl.setSSLParameters(params);
+                s = ssl;
+                ssl.startHandshake();
+            }
+        } catch (IOException ex) {
+            failures.incrementAndGet();
+            s.close();
+            throw ex;
+        }
+        opened.incrementAndGet();
+        leased.incrementAndGet();
+        Connection con = new Connection(s, prefix);
+        con.connectNanos = System.nanoTime() - start;
+        con.uses = 1;
+        return con;
+    }
+
+    private String authority() {
+        return (host.indexOf(':') >= 0 ? '[' + host + ']' : host) + ':' + port;
+    }
+
+    private Proxy proxy() {
+        ProxySelector ps = ProxySelector.getDefault();
+        if (null == ps) {
+            return Proxy.NO_PROXY;
+        }
+        List<Proxy> list = ps.select(URI.create((secure ? "https://" : "http://") + authority() + '/'));
+        return null == list || list.isEmpty() ? Proxy.NO_PROXY : list.get(0);
+    }
+
+    /**
+     * Ask an HTTP proxy for a tunnel to host:port. Reads the reply a byte at
+     * a time from the socket, so nothing of the TLS handshake is consumed.
+     */
+    private void tunnel(Socket s) throws IOException {
+        String hostPort = authority();
+        OutputStream out = s.getOutputStream();
+        out.write(("CONNECT " + hostPort + " HTTP/1.1\r\nHost: " + hostPort + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+        out.flush();
+        InputStream in = s.getInputStream();
+        String status = readLine(in);
+        String[] parts = null == status ? new String[0] : status.split(" ", 3);
+        if (parts.length < 2 || !parts[0].startsWith("HTTP/") || !parts[1].equals("200")) {
+            throw new IOException("Proxy refused CONNECT to " + hostPort + ": " + status);
+        }
+        String line;
+        while (null != (line = readLine(in)) && !line.isEmpty()) {
+            // skip the proxy's headers
+        }
+        if (null == line) {
+            throw new EOFException("Proxy closed the tunnel");
+        }
+    }
+
+    private void release(Connection con) {
+        leased.decrementAndGet();
+        con.lastUsed = System.currentTimeMillis();
+        idleLock.lock();
+        try {
+            if (idle.size() < poolSize && !shut) {
+                idle.addFirst(con);
+                return;
+            }
+        } finally {
+            idleLock.unlock();
+        }
+        con.close();
+    }
+
+    private void discard(Connection con) {
+        leased.decrementAndGet();
+        con.close();
+    }
+
+    /**
+     * Close connections that have been idle for too long.
+     */
+    public void evictIdle() {
+        long now = System.currentTimeMillis();
+        ArrayList<Connection> old = new ArrayList<>();
+        idleLock.lock();
+        try {
+            for (Iterator<Connection> it = idle.iterator(); it.hasNext();) {
+                Connection con = it.next();
+                if (now - con.lastUsed > idleMillis) {
+                    it.remove();
+                    old.add(con);
+                }
+            }
+        } finally {
+            idleLock.unlock();
+        }
+        for (Connection con : old) {
+            evicted.incrementAndGet();
+            con.close();
+        }
+    }
+
+    /**
+     * Close all idle connections, connections in use are closed when their
+     * exchange is done.
+     */
+    public void closeIdle() {
+        ArrayList<Connection> all;
+        idleLock.lock();
+        try {
+            all = new ArrayList<>(idle);
+            idle.clear();
+        } finally {
+            idleLock.unlock();
+        }
+        for (Connection con : all) {
+            con.close();
+        }
+    }
+
+    /**
+     * @return Connections opened (TCP handshakes done).
+     */
+    public long getOpened() {
+        return opened.get();
+    }
+
+    /**
+     * @return Times an idle connection was reused.
+     */
+    public long getReused() {
+        return reused.get();
+    }
+
+    /**
+     * @return Connections closed, for any reason.
+     */
+    public long getClosed() {
+        return closed.get();
+    }
+
+    /**
+     * @return Connections closed because they were idle too long.
+     */
+    public long getEvicted() {
+        return evicted.get();
+    }
+
+    /**
+     * @return Requests sent.
+     */
+    public long getExchanges() {
+        return exchanges.get();
+    }
+
+    /**
+     * @return Connect or request failures.
+     */
+    public long getFailures() {
+        return failures.get();
+    }
+
+    /**
+     * @return Connections currently in use.
+     */
+    public int getLeased() {
+        return leased.get();
+    }
+
+    /**
+     * @return Connections currently idle in the pool.
+     */
+    public int getIdle() {
+        idleLock.lock();
+        try {
+            return idle.size();
+        } finally {
+            idleLock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return (secure ? "https://" : "http://") + host + ':' + port
+                + " opened=" + opened + " reused=" + reused + " closed=" + closed
+                + " evicted=" + evicted + " exchanges=" + exchanges + " failures=" + failures
+                + " leased=" + leased + " idle=" + getIdle();
+    }
+
+    /**
+     * One socket.
+     */
+    private class Connection {
+
+        final Socket socket;
+        final String prefix;
+        final InputStream in;
+        final OutputStream out;
+        long lastUsed = System.currentTimeMillis();
+        long connectNanos;
+        long sentAt;
+        int uses;
+        /**
+         * The status line of the last exchange came in.
+         */
+        boolean statusRead;
+        private boolean isClosed;
+
+        Connection(Socket socket, String prefix) throws IOException {
+            this.socket = socket;
+            this.prefix = prefix;
+            this.in = new BufferedInputStream(socket.getInputStream(), 16384);
+            this.out = new BufferedOutputStream(socket.getOutputStream(), 16384);
+        }
+
+        boolean isReused() {
+            return uses > 1;
+        }
+
+        Exchange exchange(String method, String path, byte[] body, BodyWriter writer) throws IOException {
+            statusRead = false;
+            StringBuilder head = new StringBuilder(256);
+            head.append(method).append(' ').append(prefix).append(path).append(" HTTP/1.1\r\n");
+            head.append("Host: ").append(host).append(':').append(port).append("\r\n");
+            head.append("User-Agent: OllamaJava\r\n");
+            head.append("Accept: application/json, application/x-ndjson\r\n");
+            if (null != body) {
+                head.append("Content-Type: application/json\r\n");
+                head.append("Content-Length: ").append(body.length).append("\r\n");
+            } else if (null != writer) {
+                head.append("Content-Type: application/json\r\n");
+                head.append("Transfer-Encoding: chunked\r\n");
+            }
+            head.append("\r\n");
+            out.write(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+            if (null != body) {
+                out.write(body);
+            } else if (null != writer) {
+                ChunkedOutputStream chunks = new ChunkedOutputStream(out);
+                writer.writeTo(chunks);
+                chunks.close();
+            }
+            out.flush();
+            sentAt = System.nanoTime();
+            return readHead();
+        }
+
+        Exchange readHead() throws IOException {
+            String status = readLine(in);
+            if (null == status) {
+                throw new EOFException("Connection closed by server");
+            }
+            String[] parts = status.split(" ", 3);
+            if (parts.length < 2 || !parts[0].startsWith("HTTP/")) {
+                throw new IOException("Not HTTP: " + status);
+            }
+            statusRead = true;
+            Exchange ex = new Exchange(this, Integer.parseInt(parts[1]));
+            ex.headersAt = System.nanoTime();
+            ex.sentAt = sentAt;
+            ex.connectNanos = uses == 1 ? connectNanos : 0;
+            boolean keepAlive = !parts[0].equals("HTTP/1.0");
+            long length = -1;
+            boolean chunked = false;
+            String line;
+            while (null != (line = readLine(in)) && !line.isEmpty()) {
+                int colon = line.indexOf(':');
+                if (colon < 0) {
+                    continue;
+                }
+                String name = line.substring(0, colon).trim().toLowerCase(Locale.ROOT);
+                String value = line.substring(colon + 1).trim();
+                switch (name) {
+                    case "content-length":
+                        length = Long.parseLong(value);
+                        break;
+                    case "transfer-encoding":
+                        chunked = value.toLowerCase(Locale.ROOT).contains("chunked");
+                        break;
+                    case "connection":
+                        keepAlive = value.equalsIgnoreCase("keep-alive")
+                                || (keepAlive && !value.equalsIgnoreCase("close"));
+                        break;
+                    case "content-type":
+                        ex.contentType = value;
+                        break;
+                }
+            }
+            if (null == line) {
+                throw new EOFException("Connection closed while reading headers");
+            }
+            if (ex.status == 204 || ex.status == 304 || (ex.status >= 100 && ex.status < 200)) {
+                length = 0;
+            }
+            if (chunked) {
+                ex.body = new ChunkedInputStream(in, ex);
+            } else if (length >= 0) {
+                ex.body = new FixedLengthInputStream(in, length, ex);
+            } else {
+                keepAlive = false;
+                ex.body = new FixedLengthInputStream(in, Long.MAX_VALUE, ex);
+            }
+            ex.keepAlive = keepAlive;
+            return ex;
+        }
+
+        void close() {
+            if (!isClosed) {
+                isClosed = true;
+                closed.incrementAndGet();
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                    // closing anyway
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes a request body.
+     */
+    public interface BodyWriter {
+
+        /**
+         * Write the body. Closing the stream ends the body, it does not close
+         * the connection.
+         *
+         * @param out Where to write.
+         * @throws IOException For reasons.
+         */
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    /**
+     * One request plus response on a pooled connection.
+     */
+    public class Exchange implements Closeable {
+
+        /**
+         * HTTP status code.
+         */
+        public final int status;
+        /**
+         * Content-Type header, if any.
+         */
+        public String contentType;
+        /**
+         * Time taken to connect, 0 if the connection was reused.
+         */
+        public long connectNanos;
+        /**
+         * System.nanoTime() when the request was sent.
+         */
+        public long sentAt;
+        /**
+         * System.nanoTime() when the status line came in.
+         */
+        public long headersAt;
+        private final Connection con;
+        private InputStream body;
+        private boolean keepAlive;
+        private boolean eof;
+        private boolean isClosed;
+
+        Exchange(Connection con, int status) {
+            this.con = con;
+            this.status = status;
+        }
+
+        /**
+         * The response body, already de-chunked. Closing it closes the
+         * exchange.
+         *
+         * @return The body.
+         */
+        public InputStream body() {
+            return body;
+        }
+
+        /**
+         * Read the whole body.
+         *
+         * @return The body as UTF-8 text.
+         * @throws IOException For reasons.
+         */
+        public String bodyAsString() throws IOException {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = body.read(buf)) > 0) {
+                bos.write(buf, 0, n);
+            }
+            return bos.toString(StandardCharsets.UTF_8.name());
+        }
+
+        /**
+         * Throw if the status is an error; reads the body for the message.
+         *
+         * @param path For the message.
+         * @return this.
+         * @throws HttpStatusException If the status is 400 or more.
+         */
+        public Exchange checkStatus(String path) throws IOException {
+            if (status >= 400) {
+                String msg;
+                try {
+                    msg = bodyAsString();
+                } finally {
+                    close();
+                }
+                throw new HttpStatusException(status, "Server returned HTTP response code: " + status + " for URL: "
+                        + (secure ? "https://" : "http://") + host + ':' + port + path + ": " + msg);
+            }
+            return this;
+        }
+
+        /**
+         * Read what is left of the body, normally just the end of the stream,
+         * so the connection can be reused; then close.
+         *
+         * @throws IOException For reasons.
+         */
+        public void finish() throws IOException {
+            try {
+                byte[] buf = new byte[1024];
+                while (body.read(buf) >= 0) {
+                }
+            } finally {
+                close();
+            }
+        }
+
+        void atEof() {
+            eof = true;
+        }
+
+        /**
+         * Return the connection to the pool if the body was read completely,
+         * else close it.
+         */
+        @Override
+        public void close() {
+            if (!isClosed) {
+                isClosed = true;
+                if (eof && keepAlive) {
+                    release(con);
+                } else {
+                    discard(con);
+                }
+            }
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder(64);
+        int c;
+        while ((c = in.read()) >= 0) {
+            if (c == '\n') {
+                int len = sb.length();
+                if (len > 0 && sb.charAt(len - 1) == '\r') {
+                    sb.setLength(len - 1);
+                }
+                return sb.toString();
+            }
+            sb.append((char) c);
+        }
+        return sb.length() == 0 ? null : sb.toString();
+    }
+
+    /**
+     * Body with a known length (or until close).
+     */
+    private static class FixedLengthInputStream extends InputStream {
+
+        private final InputStream in;
+        private final Exchange ex;
+        private long remaining;
+
+        FixedLengthInputStream(InputStream in, long length, Exchange ex) {
+            this.in = in;
+            this.remaining = length;
+            this.ex = ex;
+            if (0 == length) {
+                ex.atEof();
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            int n = read(one, 0, 1);
+            return n < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int n = in.read(b, off, (int) Math.min(len, remaining));
+            if (n < 0) {
+                if (remaining != Long.MAX_VALUE) {
+                    throw new EOFException("Connection closed with " + remaining + " bytes to go");
+                }
+                remaining = 0;
+                ex.atEof();
+                return -1;
+            }
+            if (remaining != Long.MAX_VALUE) {
+                remaining -= n;
+                if (0 == remaining) {
+                    ex.atEof();
+                }
+            }
+            return n;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(in.available(), remaining);
+        }
+
+        @Override
+        public void close() {
+            ex.close();
+        }
+    }
+
+    /**
+     * Chunked transfer encoding of a request body. Chunks are as large as the
+     * socket buffer, so BufferedOutputStream passes them on without a copy.
+     */
+    private static class ChunkedOutputStream extends OutputStream {
+
+        private final OutputStream out;
+        private final byte[] buf = new byte[16384];
+        private int n;
+        private boolean finished;
+
+        ChunkedOutputStream(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (finished) {
+                throw new IOException("Body already ended");
+            }
+            buf[n++] = (byte) b;
+            if (n == buf.length) {
+                flushChunk();
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (finished) {
+                throw new IOException("Body already ended");
+            }
+            if (len >= buf.length) {
+                flushChunk();
+                writeChunk(b, off, len);
+                return;
+            }
+            if (n + len > buf.length) {
+                flushChunk();
+            }
+            System.arraycopy(b, off, buf, n, len);
+            n += len;
+        }
+
+        private void flushChunk() throws IOException {
+            if (n > 0) {
+                writeChunk(buf, 0, n);
+                n = 0;
+            }
+        }
+
+        private void writeChunk(byte[] b, int off, int len) throws IOException {
+            out.write(Integer.toHexString(len).getBytes(StandardCharsets.ISO_8859_1));
+            out.write(CRLF);
+            out.write(b, off, len);
+            out.write(CRLF);
+        }
+
+        /**
+         * Only ends the current chunk, the exchange flushes the socket once the
+         * body is complete.
+         */
+        @Override
+        public void flush() throws IOException {
+            flushChunk();
+        }
+
+        /**
+         * Write the last chunk, the socket stays open.
+         */
+        @Override
+        public void close() throws IOException {
+            if (!finished) {
+                flushChunk();
+                out.write('0');
+                out.write(CRLF);
+                out.write(CRLF);
+                finished = true;
+            }
+        }
+    }
+
+    /**
+     * Transfer-Encoding: chunked, as used by Ollama for streamed responses.
+     */
+    private static class ChunkedInputStream extends InputStream {
+
+        private final InputStream in;
+        private final Exchange ex;
+        private long chunkLeft;
+        private boolean done;
+
+        ChunkedInputStream(InputStream in, Exchange ex) {
+            this.in = in;
+            this.ex = ex;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            int n = read(one, 0, 1);
+            return n < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (done) {
+                return -1;
+            }
+            if (0 == chunkLeft && !nextChunk()) {
+                return -1;
+            }
+            int n = in.read(b, off, (int) Math.min(len, chunkLeft));
+            if (n < 0) {
+                throw new EOFException("Connection closed inside a chunk");
+            }
+            chunkLeft -= n;
+            if (0 == chunkLeft) {
+                readCrLf();
+            }
+            return n;
+        }
+
+        private boolean nextChunk() throws IOException {
+            String line = readLine(in);
+            if (null == line) {
+                throw new EOFException("Connection closed between chunks");
+            }
+            int semi = line.indexOf(';');
+            chunkLeft = Long.parseLong((semi < 0 ? line : line.substring(0, semi)).trim(), 16);
+            if (0 == chunkLeft) {
+                // trailers, if any, end with an empty line
+                while (null != (line = readLine(in)) && !line.isEmpty()) {
+                }
+                done = true;
+                ex.atEof();
+                return false;
+            }
+            return true;
+        }
+
+        private void readCrLf() throws IOException {
+            for (byte c : CRLF) {
+                if (in.read() != c) {
+                    throw new IOException("Malformed chunk");
+                }
+            }
+        }
+
+        @Override
+        public int available() throws IOException {
+            return done ? 0 : (int) Math.min(in.available(), chunkLeft);
+        }
+
+        @Override
+        public void close() {
+            ex.close();
+        }
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (c) 2024 by Walter Stroebel and InfComTec.
+ */
+package nl.infcomtec.ollamajava;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.ToIntFunction;
+
+/**
+ * A ChatRequest that grows: appending a message is O(1), and what is sent as
+ * "messages" is a window on the history that fits in a token budget.
+ * <p>
+ * The window keeps every system message plus as many of the most recent
+ * turns as fit; a turn is a user message with the answers and tool results
+ * after it, and is kept or dropped as a whole. Messages before the first user
+ * message, like an assistant greeting, form a turn of their own. If the system messages and the
+ * last turn do not fit, window() throws and the request is not sent, rather
+ * than having the server cut it off silently.
+ * <p>
+ * Tokens are estimated per message when it is added, by default as a quarter
+ * of the characters plus a few for the role; pass a better counter if you have
+ * one.
+ *
+ * @author walter
+ */
+public class Conversation extends ChatRequest {
+
+    /**
+     * Rough estimate: 4 characters per token, 4 tokens for the role and
+     * separators.
+     */
+    public static final ToIntFunction<Message> ESTIMATE = m -> 4 + (null == m.content ? 0 : (m.content.length() + 3) / 4);
+    /**
+     * Ollama's default context size.
+     */
+    public static final int DEFAULT_NUM_CTX = 2048;
+    private final ArrayList<Message> history = new ArrayList<>();
+    private int[] tokens = new int[16];
+    private final ArrayList<Integer> systemAt = new ArrayList<>();
+    private final ToIntFunction<Message> counter;
+    private int budget;
+
+    /**
+     * @param model The model.
+     */
+    public Conversation(String model) {
+        this(model, ESTIMATE);
+    }
+
+    /**
+     * @param model The model.
+     * @param counter Tokens of one message.
+     */
+    public Conversation(String model, ToIntFunction<Message> counter) {
+        this.model = model;
+        this.counter = counter;
+    }
+
+    /**
+     * Set the token budget for the messages.
+     *
+     * @param budget Tokens; 0 (the default) for options.numCtx (or 2048)
+     * minus room for the answer, options.numPredict or a quarter of the
+     * context.
+     */
+    public void setBudget(int budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * @return The budget in effect.
+     */
+    public int getBudget() {
+        if (budget > 0) {
+            return budget;
+        }
+        int ctx = null != options && null != options.numCtx && options.numCtx > 0 ? options.numCtx : DEFAULT_NUM_CTX;
+        int reserve = null != options && null != options.numPredict && options.numPredict > 0 ? options.numPredict : ctx / 4;
+        return Math.max(1, ctx - reserve);
+    }
+
+    /**
+     * Append a message.
+     *
+     * @param msg The message.
+     * @return this.
+     */
+    public Conversation add(Message msg) {
+        int i = history.size();
+        if (i == tokens.length) {
+            tokens = Arrays.copyOf(tokens, i * 2);
+        }
+        tokens[i] = counter.applyAsInt(msg);
+        history.add(msg);
+        if (Message.Roles.system.name().equals(msg.role)) {
+            systemAt.add(i);
+        }
+        return this;
+    }
+
+    /**
+     * Append a system message.
+     *
+     * @param message The text.
+     * @return this.
+     */
+    public Conversation addSystemMessage(String message) {
+        return add(new Message(Message.Roles.system, message));
+    }
+
+    @Override
+    public void addUserMessage(String message) {
+        add(new Message(Message.Roles.user, message));
+    }
+
+    /**
+     * Append the answer to the last request, the content of all parts as one
+     * assistant message.
+     *
+     * @param answer As returned by OllamaJava.chat().
+     * @return this.
+     */
+    public Conversation addAnswer(List<Response> answer) {
+        Message msg = OllamaJava.answerMessage(answer);
+        if (null != msg) {
+            add(msg);
+        }
+        return this;
+    }
+
+    /**
+     * @return All messages, also those outside the window.
+     */
+    public List<Message> getHistory() {
+        return Collections.unmodifiableList(history);
+    }
+
+    /**
+     * The messages that are sent: system messages and the newest turns that
+     * fit in the budget, in their original order.
+     *
+     * @return The window.
+     * @throws IllegalStateException If not even the last turn fits.
+     */
+    @JsonProperty("messages")
+    public List<Message> window() {
+        int max = getBudget();
+        int n = history.size();
+        int used = 0;
+        for (int s : systemAt) {
+            used += tokens[s];
+        }
+        if (used > max) {
+            throw new IllegalStateException("Conversation does not fit: the system messages need "
+                    + used + " tokens, the budget is " + max);
+        }
+        // the first message that is not a system message starts a turn too
+        int first = 0;
+        while (first < n && Message.Roles.system.name().equals(history.get(first).role)) {
+            first++;
+        }
+        int cut = n;
+        int group = 0;
+        for (int i = n - 1; i >= 0; i--) {
+            Message m = history.get(i);
+            if (Message.Roles.system.name().equals(m.role)) {
+                continue;
+            }
+            group += tokens[i];
+            if (i == first || Message.Roles.user.name().equals(m.role)) {
+                if (used + group > max) {
+                    break;
+                }
+                used += group;
+                group = 0;
+                cut = i;
+            }
+        }
+        if (cut == n && n > systemAt.size()) {
+            throw new IllegalStateException("Conversation does not fit: the system messages and the last turn need "
+                    + (used + group) + " tokens, the budget is " + max);
+        }
+        ArrayList<Message> ret = new ArrayList<>(n - cut + systemAt.size());
+        for (int s : systemAt) {
+            if (s >= cut) {
+                break;
+            }
+            ret.add(history.get(s));
+        }
+        ret.addAll(history.subList(cut, n));
+        return ret;
+    }
+}
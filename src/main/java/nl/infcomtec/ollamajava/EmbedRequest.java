@@ -0,0 +1,51 @@
+/*
+ * Copyright (c) 2024 by Walter Stroebel and InfComTec.
+ */
+package nl.infcomtec.ollamajava;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * For the "embed" endpoint, one or more texts in, one vector per text out.
+ *
+ * @author walter
+ */
+public class EmbedRequest {
+
+    /**
+     * The name of the model to use. This field is required.
+     */
+    public String model;
+
+    /**
+     * The texts to embed.
+     */
+    public String[] input;
+
+    /**
+     * Truncate each input to fit the context length; if false an input that
+     * is too long is an error. Defaults to true.
+     */
+    public Boolean truncate;
+
+    /**
+     * Specifies the time the Ollama service should keep the model loaded. Can
+     * be specified in minutes (m), seconds (s), or hours (h). The default is
+     * 5m. A negative value indicates an infinite keep-alive period.
+     */
+    @JsonProperty(value = "keep_alive")
+    public String keepAlive;
+
+    /**
+     * Additional model parameters as documented for the Modelfile.
+     */
+    public Options options;
+
+    public EmbedRequest() {
+    }
+
+    public EmbedRequest(String model, String... input) {
+        this.model = model;
+        this.input = input;
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2024 by Walter Stroebel and InfComTec.
+ */
+package nl.infcomtec.ollamajava;
+
+import com.fasterxml.jackson.annotation.JsonValue;
+
+/**
+ * An image encoded for the API. In JSON it is written as a base64 string,
+ * produced by the generator directly into the output; there is no base64
+ * String on the heap.
+ *
+ * @author walter
+ */
+public final class EncodedImage {
+
+    /**
+     * Hex SHA-256 over the pixels and size, see ImageCache.
+     */
+    public final String pixelHash;
+    /**
+     * Image format name, like "png".
+     */
+    public final String format;
+    private final byte[] data;
+
+    public EncodedImage(String pixelHash, String format, byte[] data) {
+        this.pixelHash = pixelHash;
+        this.format = format;
+        this.data = data;
+    }
+
+    /**
+     * @return The encoded bytes, shared, do not modify.
+     */
+    @JsonValue
+    public byte[] data() {
+        return data;
+    }
+
+    /**
+     * @return Size of the encoded image.
+     */
+    public int length() {
+        return data.length;
+    }
+
+    @Override
+    public String toString() {
+        return format + " " + data.length + " bytes " + pixelHash;
+    }
+
+    /**
+     * Both kinds of images as one JSON array.
+     *
+     * @param base64 Images given as base64 text, may be null.
+     * @param encoded Encoded images, may be null.
+     * @return Null if there are none, else Strings followed by EncodedImages.
+     */
+    static Object[] join(String[] base64, EncodedImage[] encoded) {
+        int a = null == base64 ? 0 : base64.length;
+        int b = null == encoded ? 0 : encoded.length;
+        if (a + b == 0) {
+            return base64;
+        }
+        Object[] ret = new Object[a + b];
+        if (a > 0) {
+            System.arraycopy(base64, 0, ret, 0, a);
+        }
+        if (b > 0) {
+            System.arraycopy(encoded, 0, ret, a, b);
+        }
+        return ret;
+    }
+}
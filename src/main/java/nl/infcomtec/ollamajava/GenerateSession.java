@@ -0,0 +1,228 @@
+/*
+ * Copyright (c) 2024 by Walter Stroebel and InfComTec.
+ */
+package nl.infcomtec.ollamajava;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A conversation over the generate endpoint that feeds Response.context back
+ * into the next request, so each turn only sends (and the server only
+ * evaluates) the new prompt.
+ * <p>
+ * For every turn the prompt evaluation time saved is estimated: the context
+ * tokens that were not sent as text times this turn's prompt evaluation time
+ * per token. A session can be checkpointed and restored, or forked to try
+ * different follow-ups from the same point.
+ * <p>
+ * Not thread-safe, one turn at a time.
+ *
+ * @author walter
+ */
+public class GenerateSession {
+
+    private final OllamaJava ollama;
+    private final Config cfg;
+    public final String model;
+    /**
+     * System prompt, sent with every turn.
+     */
+    public String system;
+    /**
+     * Model options, sent with every turn; shared with forks.
+     */
+    public Options options;
+    /**
+     * Keep the model loaded between turns, like "30m".
+     */
+    public String keepAlive;
+    private TokenContext context;
+    private final ArrayList<Turn> turns = new ArrayList<>();
+
+    /**
+     * @param ollama The client.
+     * @param cfg Where to run.
+     * @param model The model to use.
+     */
+    public GenerateSession(OllamaJava ollama, Config cfg, String model) {
+        this.ollama = ollama;
+        this.cfg = cfg;
+        this.model = model;
+    }
+
+    /**
+     * Ask, with the context so far.
+     *
+     * @param prompt Only the new text.
+     * @return The response.
+     * @throws Exception For reasons.
+     */
+    public Response ask(String prompt) throws Exception {
+        Request rq = next(prompt);
+        rq.stream = false;
+        return record(prompt, rq, ollama.request(cfg, rq));
+    }
+
+    /**
+     * Ask, with the context so far, streaming.
+     *
+     * @param prompt Only the new text.
+     * @param listener Callback.
+     * @return The response, null if the listener stopped the stream; the
+     * context is then unchanged.
+     * @throws Exception For reasons.
+     */
+    public Response askWithStream(String prompt, OllamaJava.StreamListener listener) throws Exception {
+        Request rq = next(prompt);
+        return record(prompt, rq, ollama.requestWithStream(cfg, rq, listener));
+    }
+
+    private Request next(String prompt) {
+        Request rq = new Request();
+        rq.model = model;
+        rq.prompt = prompt;
+        rq.system = system;
+        rq.options = options;
+        rq.keepAlive = keepAlive;
+        rq.context = context;
+        return rq;
+    }
+
+    private Response record(String prompt, Request rq, Response resp) {
+        if (null == resp || null == resp.context || resp.context.isEmpty()) {
+            // stopped, or an error: keep the old context
+            return resp;
+        }
+        int reused = null == rq.context ? 0 : rq.context.size();
+        long perToken = resp.promptEvalCount > 0 ? resp.promptEvalDuration / resp.promptEvalCount : 0;
+        turns.add(new Turn(prompt, reused, resp.promptEvalCount, resp.promptEvalDuration, reused * perToken));
+        context = resp.context;
+        return resp;
+    }
+
+    /**
+     * @return The context to send with the next turn, null before the first.
+     */
+    public TokenContext getContext() {
+        return context;
+    }
+
+    /**
+     * @return The turns so far.
+     */
+    public List<Turn> getTurns() {
+        return Collections.unmodifiableList(turns);
+    }
+
+    /**
+     * @return Estimated prompt evaluation time saved over all turns, in
+     * nanoseconds.
+     */
+    public long getSavedNanos() {
+        long sum = 0;
+        for (Turn t : turns) {
+            sum += t.savedNanos;
+        }
+        return sum;
+    }
+
+    /**
+     * Remember this point; the context is kept packed.
+     *
+     * @return The checkpoint.
+     */
+    public Checkpoint checkpoint() {
+        return new Checkpoint(null == context ? null : context.pack(), new ArrayList<>(turns));
+    }
+
+    /**
+     * Go back to a checkpoint of this or another session of the same model.
+     *
+     * @param cp The checkpoint.
+     */
+    public void restore(Checkpoint cp) {
+        context = null == cp.packedContext ? null : TokenContext.unpack(cp.packedContext);
+        turns.clear();
+        turns.addAll(cp.turns);
+    }
+
+    /**
+     * A new session from this point; both go their own way from here.
+     *
+     * @return The copy.
+     */
+    public GenerateSession fork() {
+        GenerateSession ret = new GenerateSession(ollama, cfg, model);
+        ret.system = system;
+        ret.options = options;
+        ret.keepAlive = keepAlive;
+        ret.context = context;
+        ret.turns.addAll(turns);
+        return ret;
+    }
+
+    /**
+     * One question and answer.
+     */
+    public static class Turn {
+
+        public final String prompt;
+        /**
+         * Context tokens sent instead of the earlier text.
+         */
+        public final int contextTokens;
+        /**
+         * Tokens the server evaluated for the prompt.
+         */
+        public final int promptEvalCount;
+        /**
+         * Nanoseconds the server spent on them.
+         */
+        public final long promptEvalDuration;
+        /**
+         * Estimate of the nanoseconds it would have spent on the context
+         * tokens as text.
+         */
+        public final long savedNanos;
+
+        Turn(String prompt, int contextTokens, int promptEvalCount, long promptEvalDuration, long savedNanos) {
+            this.prompt = prompt;
+            this.contextTokens = contextTokens;
+            this.promptEvalCount = promptEvalCount;
+            this.promptEvalDuration = promptEvalDuration;
+            this.savedNanos = savedNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("context=%d promptEval=%d/%.1fms saved=%.1fms",
+                    contextTokens, promptEvalCount, promptEvalDuration / 1E6, savedNanos / 1E6);
+        }
+    }
+
+    /**
+     * A saved session state.
+     */
+    public static class Checkpoint {
+
+        /**
+         * The context as TokenContext.pack(), null before the first turn.
+         */
+        public final byte[] packedContext;
+        final List<Turn> turns;
+
+        Checkpoint(byte[] packedContext, List<Turn> turns) {
+            this.packedContext = packedContext;
+            this.turns = turns;
+        }
+
+        /**
+         * @return Turns up to this point.
+         */
+        public int getTurnCount() {
+            return turns.size();
+        }
+    }
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright (c) 2024 by Walter Stroebel and InfComTec.
+ */
+package nl.infcomtec.ollamajava;
+
+import java.io.IOException;
+
+/**
+ * The server answered, but with an HTTP error status.
+ *
+ * @author walter
+ */
+public class HttpStatusException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+    /**
+     * The HTTP status code, 400 or more.
+     */
+    public final int status;
+
+    public HttpStatusException(int status, String message) {
+        super(message);
+        this.status = status;
+    }
+
+    /**
+     * @return True for 5xx, the server is in trouble; false for 4xx, the
+     * request is.
+     */
+    public boolean isServerError() {
+        return status >= 500;
+    }
+}
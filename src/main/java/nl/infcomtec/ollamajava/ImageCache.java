@@ -0,0 +1,322 @@
+/*
+ * Copyright (c) 2024 by Walter Stroebel and InfComTec.
+ */
+package nl.infcomtec.ollamajava;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Encodes images for the API, once per distinct picture.
+ * <p>
+ * The key is a SHA-256 over the pixels, not the object, so an image that is
+ * sent again (every turn of a chat, say) or redrawn identically is found.
+ * Hashing the pixels is much cheaper than PNG compression. Entries are kept
+ * in an LRU map of about maxBytes encoded bytes. Scaling and the choice of
+ * format are up to the ImagePreprocessor, which is part of the key; several
+ * images are encoded in parallel on its worker pool. Each cache has its own
+ * preprocessor; give an OllamaJava a cache of its own (setImageCache()) to
+ * preprocess for that client only.
+ *
+ * @author walter
+ */
+public class ImageCache {
+
+    /**
+     * Used by Message and, unless given another, OllamaJava; 64MB.
+     */
+    public static final ImageCache DEFAULT = new ImageCache(64L << 20);
+    private final long maxBytes;
+    private final LinkedHashMap<String, EncodedImage> lru = new LinkedHashMap<>(64, 0.75f, true);
+    private final ReentrantLock lock = new ReentrantLock();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private volatile ImagePreprocessor preprocessor = ImagePreprocessor.NONE;
+    private long bytes;
+
+    /**
+     * @param maxBytes Approximate limit of the encoded bytes kept.
+     */
+    public ImageCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Scale and/or use JPEG from now on.
+     *
+     * @param preprocessor The preprocessor, ImagePreprocessor.NONE for plain
+     * PNG.
+     */
+    public void setPreprocessor(ImagePreprocessor preprocessor) {
+        this.preprocessor = preprocessor;
+    }
+
+    /**
+     * @return The current preprocessor.
+     */
+    public ImagePreprocessor getPreprocessor() {
+        return preprocessor;
+    }
+
+    /**
+     * Preprocess and encode one image, or get it from the cache.
+     *
+     * @param im The image.
+     * @return The encoded image.
+     * @throws IOException If ImageIO fails.
+     */
+    public EncodedImage encode(RenderedImage im) throws IOException {
+        return encode(im, preprocessor);
+    }
+
+    private EncodedImage encode(RenderedImage im, ImagePreprocessor pre) throws IOException {
+        String hash = pixelHash(im);
+        String key = hash + '@' + pre.signature();
+        lock.lock();
+        try {
+            EncodedImage e = lru.get(key);
+            if (null != e) {
+                hits.incrementAndGet();
+                return e;
+            }
+        } finally {
+            lock.unlock();
+        }
+        misses.incrementAndGet();
+        EncodedImage e = pre.encode(im, hash);
+        remember(key, e);
+        return e;
+    }
+
+    /**
+     * Encode several images, in parallel if there are more than one.
+     *
+     * @param images The images, may be null.
+     * @return The encoded images in the same order, null if images was null.
+     * @throws IOException If ImageIO fails, or the preprocessor was closed.
+     */
+    public EncodedImage[] encodeAll(RenderedImage... images) throws IOException {
+        if (null == images) {
+            return null;
+        }
+        ImagePreprocessor pre = preprocessor;
+        EncodedImage[] ret = new EncodedImage[images.length];
+        if (images.length == 1) {
+            ret[0] = encode(images[0], pre);
+            return ret;
+        }
+        ArrayList<Future<EncodedImage>> todo = new ArrayList<>(images.length);
+        try {
+            for (RenderedImage im : images) {
+                todo.add(pre.workers().submit(() -> encode(im, pre)));
+            }
+            for (int i = 0; i < ret.length; i++) {
+                ret[i] = todo.get(i).get();
+            }
+            return ret;
+        } catch (RejectedExecutionException ex) {
+            throw new IOException("Image preprocessor " + pre.signature() + " is closed", ex);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while encoding images");
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException(ex.getCause());
+        } finally {
+            for (Future<EncodedImage> f : todo) {
+                f.cancel(true);
+            }
+        }
+    }
+
+    private void remember(String key, EncodedImage e) {
+        if (e.length() > maxBytes) {
+            return;
+        }
+        lock.lock();
+        try {
+            EncodedImage old = lru.put(key, e);
+            if (null != old) {
+                bytes -= old.length();
+            }
+            bytes += e.length();
+            for (Iterator<Map.Entry<String, EncodedImage>> it = lru.entrySet().iterator(); bytes > maxBytes && it.hasNext();) {
+                EncodedImage eldest = it.next().getValue();
+                it.remove();
+                bytes -= eldest.length();
+                evictions.incrementAndGet();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Hash of the size, pixel layout and pixels. The backing array of a
+     * common BufferedImage type is hashed as is; anything else row by row as
+     * ARGB.
+     *
+     * @param im The image.
+     * @return Hex SHA-256.
+     */
+    public static String pixelHash(RenderedImage im) {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new RuntimeException(ex);
+        }
+        int w = im.getWidth();
+        int h = im.getHeight();
+        BufferedImage bi = im instanceof BufferedImage ? (BufferedImage) im : null;
+        int type = null == bi ? BufferedImage.TYPE_CUSTOM : bi.getType();
+        md.update(ByteBuffer.allocate(12).putInt(w).putInt(h).putInt(type).array());
+        if (null != bi && !hashBacking(md, bi)) {
+            md.update((byte) 1);
+            int[] row = new int[w];
+            ByteBuffer buf = ByteBuffer.allocate(4 * w);
+            for (int y = 0; y < h; y++) {
+                bi.getRGB(0, y, w, 1, row, 0, w);
+                buf.clear();
+                buf.asIntBuffer().put(row);
+                md.update(buf.array());
+            }
+        } else if (null == bi) {
+            md.update((byte) 2);
+            Raster r = im.getData();
+            int bands = r.getNumBands();
+            int[] row = new int[w * bands];
+            ByteBuffer buf = ByteBuffer.allocate(4 * row.length);
+            for (int y = 0; y < h; y++) {
+                r.getPixels(r.getMinX(), r.getMinY() + y, w, 1, row);
+                buf.clear();
+                buf.asIntBuffer().put(row);
+                md.update(buf.array());
+            }
+        }
+        StringBuilder sb = new StringBuilder(64);
+        for (byte b : md.digest()) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Hash the backing array if it holds exactly this image, in a type whose
+     * bytes say it all (no palette).
+     */
+    private static boolean hashBacking(MessageDigest md, BufferedImage bi) {
+        switch (bi.getType()) {
+            case BufferedImage.TYPE_INT_RGB:
+            case BufferedImage.TYPE_INT_ARGB:
+            case BufferedImage.TYPE_INT_ARGB_PRE:
+            case BufferedImage.TYPE_INT_BGR:
+            case BufferedImage.TYPE_3BYTE_BGR:
+            case BufferedImage.TYPE_4BYTE_ABGR:
+            case BufferedImage.TYPE_4BYTE_ABGR_PRE:
+            case BufferedImage.TYPE_BYTE_GRAY:
+                break;
+            default:
+                return false;
+        }
+        if (null != bi.getRaster().getParent()) {
+            // a sub image shares a larger buffer
+            return false;
+        }
+        DataBuffer db = bi.getRaster().getDataBuffer();
+        int elements = bi.getWidth() * bi.getHeight() * (db instanceof DataBufferInt ? 1 : bi.getRaster().getNumDataElements());
+        if (db.getNumBanks() != 1 || db.getOffset() != 0 || db.getSize() != elements) {
+            return false;
+        }
+        // tag the form, so backing bytes never hash like ARGB rows
+        md.update((byte) 0);
+        if (db instanceof DataBufferByte) {
+            md.update(((DataBufferByte) db).getData());
+            return true;
+        }
+        if (db instanceof DataBufferInt) {
+            int[] data = ((DataBufferInt) db).getData();
+            ByteBuffer buf = ByteBuffer.allocate(4 * 4096);
+            for (int off = 0; off < data.length; off += 4096) {
+                int n = Math.min(4096, data.length - off);
+                buf.clear();
+                buf.asIntBuffer().put(data, off, n);
+                md.update(buf.array(), 0, 4 * n);
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Empty the cache.
+     */
+    public void clear() {
+        lock.lock();
+        try {
+            lru.clear();
+            bytes = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return Encoded bytes held.
+     */
+    public long getBytes() {
+        lock.lock();
+        try {
+            return bytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return Images found in the cache.
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return Images encoded.
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return Images dropped to stay under maxBytes.
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    @Override
+    public String toString() {
+        return "ImageCache{bytes=" + getBytes() + ", hits=" + hits + ", misses=" + misses + ", evictions=" + evictions + '}';
+    }
+}
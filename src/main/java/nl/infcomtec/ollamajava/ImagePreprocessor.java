@@ -0,0 +1,237 @@
+/*
+ * Copyright (c) 2024 by Walter Stroebel and InfComTec.
+ */
+package nl.infcomtec.ollamajava;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.RenderedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+/**
+ * Prepares images for a vision model: scale down to a maximum edge, then
+ * encode as PNG or, if allowed and smaller, as JPEG.
+ * <p>
+ * Vision models work on a few hundred pixels per side; a full resolution scan
+ * costs upload time and server side resizing for nothing. Scaling goes in
+ * halving steps with bilinear filtering, which looks nearly as good as
+ * bicubic and is much faster. Images with transparency stay PNG. Encoding runs
+ * on a fixed pool of daemon threads, or on an executor passed in; close() shuts
+ * down an own pool.
+ *
+ * @author walter
+ */
+public class ImagePreprocessor implements Closeable {
+
+    private static final AtomicInteger THREADS = new AtomicInteger();
+    /**
+     * Initial output buffer cap, the buffer grows beyond it if needed.
+     */
+    private static final int MAX_INITIAL_BUFFER = 1 << 20;
+    /**
+     * No scaling, always PNG: what the API got before.
+     */
+    public static final ImagePreprocessor NONE = new ImagePreprocessor(0, false, 0.85f,
+            Math.min(4, Runtime.getRuntime().availableProcessors()));
+    /**
+     * Longest side after scaling, 0 for no scaling.
+     */
+    public final int maxEdge;
+    /**
+     * Try JPEG and use it if smaller than PNG.
+     */
+    public final boolean allowJpeg;
+    /**
+     * JPEG quality, 0 to 1.
+     */
+    public final float jpegQuality;
+    private final ExecutorService workers;
+    private final boolean ownWorkers;
+
+    /**
+     * @param maxEdge Longest side after scaling, 0 for no scaling.
+     * @param allowJpeg Try JPEG and use it if smaller than PNG.
+     * @param jpegQuality JPEG quality, 0 to 1.
+     * @param threads Size of the worker pool.
+     */
+    public ImagePreprocessor(int maxEdge, boolean allowJpeg, float jpegQuality, int threads) {
+        this(maxEdge, allowJpeg, jpegQuality, Executors.newFixedThreadPool(Math.max(1, threads), r -> {
+            Thread t = new Thread(r, "OllamaJava-image-" + THREADS.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }), true);
+    }
+
+    /**
+     * @param maxEdge Longest side after scaling, 0 for no scaling.
+     * @param allowJpeg Try JPEG and use it if smaller than PNG.
+     * @param jpegQuality JPEG quality, 0 to 1.
+     * @param workers Executor to encode on, owned by the caller; close() leaves
+     * it running.
+     */
+    public ImagePreprocessor(int maxEdge, boolean allowJpeg, float jpegQuality, ExecutorService workers) {
+        this(maxEdge, allowJpeg, jpegQuality, workers, false);
+    }
+
+    private ImagePreprocessor(int maxEdge, boolean allowJpeg, float jpegQuality, ExecutorService workers, boolean ownWorkers) {
+        this.maxEdge = maxEdge;
+        this.allowJpeg = allowJpeg;
+        this.jpegQuality = jpegQuality;
+        this.workers = workers;
+        this.ownWorkers = ownWorkers;
+    }
+
+    /**
+     * @param maxEdge Longest side after scaling, 0 for no scaling.
+     * @param allowJpeg Try JPEG and use it if smaller than PNG.
+     */
+    public ImagePreprocessor(int maxEdge, boolean allowJpeg) {
+        this(maxEdge, allowJpeg, 0.85f, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * @return The bounded pool images are encoded on.
+     */
+    public ExecutorService workers() {
+        return workers;
+    }
+
+    /**
+     * Shut down the worker pool if this preprocessor made it. NONE is shared
+     * and stays open.
+     */
+    @Override
+    public void close() {
+        if (ownWorkers && this != NONE) {
+            workers.shutdown();
+        }
+    }
+
+    /**
+     * Identifies the settings, part of the image cache key.
+     *
+     * @return Like "1024/jpeg0.85".
+     */
+    public String signature() {
+        return maxEdge + (allowJpeg ? "/jpeg" + jpegQuality : "/png");
+    }
+
+    /**
+     * Scale and encode.
+     *
+     * @param im The image.
+     * @param pixelHash For the result.
+     * @return The encoded image.
+     * @throws IOException If ImageIO fails.
+     */
+    public EncodedImage encode(RenderedImage im, String pixelHash) throws IOException {
+        RenderedImage scaled = scale(im);
+        byte[] png = write(scaled, "png");
+        if (allowJpeg && !scaled.getColorModel().hasAlpha()) {
+            byte[] jpeg = jpeg(scaled);
+            if (jpeg.length < png.length) {
+                return new EncodedImage(pixelHash, "jpeg", jpeg);
+            }
+        }
+        return new EncodedImage(pixelHash, "png", png);
+    }
+
+    /**
+     * Scale down so the longest side is at most maxEdge.
+     *
+     * @param im The image.
+     * @return The image itself if small enough, else a scaled copy.
+     */
+    public RenderedImage scale(RenderedImage im) {
+        int w = im.getWidth();
+        int h = im.getHeight();
+        if (maxEdge <= 0 || Math.max(w, h) <= maxEdge) {
+            return im;
+        }
+        double f = (double) maxEdge / Math.max(w, h);
+        int tw = Math.max(1, (int) Math.round(w * f));
+        int th = Math.max(1, (int) Math.round(h * f));
+        BufferedImage cur = toBuffered(im);
+        int type = im.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+        // halve while more than twice too big, bilinear loses detail beyond that
+        while (w / 2 >= tw && h / 2 >= th) {
+            w /= 2;
+            h /= 2;
+            cur = draw(cur, w, h, type);
+        }
+        if (w != tw || h != th) {
+            cur = draw(cur, tw, th, type);
+        }
+        return cur;
+    }
+
+    private static BufferedImage toBuffered(RenderedImage im) {
+        if (im instanceof BufferedImage) {
+            return (BufferedImage) im;
+        }
+        ColorModel cm = im.getColorModel();
+        return new BufferedImage(cm, im.copyData(null), cm.isAlphaPremultiplied(), null);
+    }
+
+    private static BufferedImage draw(BufferedImage src, int w, int h, int type) {
+        BufferedImage dst = new BufferedImage(w, h, type);
+        Graphics2D g = dst.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            g.drawImage(src, 0, 0, w, h, null);
+        } finally {
+            g.dispose();
+        }
+        return dst;
+    }
+
+    private static int initialSize(long guess) {
+        return (int) Math.min(MAX_INITIAL_BUFFER, guess + 1024);
+    }
+
+    private static byte[] write(RenderedImage im, String format) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(initialSize((long) im.getWidth() * im.getHeight()));
+        if (!ImageIO.write(im, format, baos)) {
+            throw new IOException("No " + format + " writer for " + im);
+        }
+        return baos.toByteArray();
+    }
+
+    private byte[] jpeg(RenderedImage im) throws IOException {
+        BufferedImage rgb = toBuffered(im);
+        int t = rgb.getType();
+        if (t != BufferedImage.TYPE_INT_RGB && t != BufferedImage.TYPE_3BYTE_BGR && t != BufferedImage.TYPE_BYTE_GRAY) {
+            rgb = draw(rgb, rgb.getWidth(), rgb.getHeight(), BufferedImage.TYPE_INT_RGB);
+        }
+        Iterator<ImageWriter> it = ImageIO.getImageWritersByFormatName("jpeg");
+        if (!it.hasNext()) {
+            throw new IOException("No JPEG writer");
+        }
+        ImageWriter writer = it.next();
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(initialSize((long) rgb.getWidth() * rgb.getHeight() / 4));
+        try (MemoryCacheImageOutputStream out = new MemoryCacheImageOutputStream(baos)) {
+            writer.setOutput(out);
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(jpegQuality);
+            writer.write(null, new IIOImage(rgb, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        return baos.toByteArray();
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2024 by Walter Stroebel and InfComTec.
+ */
+package nl.infcomtec.ollamajava;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import com.fasterxml.jackson.datatype.jsr310.deser.LocalDateTimeDeserializer;
+import com.fasterxml.jackson.datatype.jsr310.ser.LocalDateTimeSerializer;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeFormatterBuilder;
+import java.time.temporal.ChronoField;
+
+/**
+ * One configured ObjectMapper plus the readers and writers derived from it.
+ * <p>
+ * Building an ObjectMapper and resolving (de)serializers is expensive, using
+ * them is cheap and thread-safe. So build once, use many times.
+ *
+ * @author walter
+ */
+public final class JsonCodec {
+
+    /**
+     * Ollama time stamps, like "2023-08-04T19:22:45.499127Z".
+     */
+    public static final DateTimeFormatter FORMATTER = new DateTimeFormatterBuilder()
+            .appendPattern("yyyy-MM-dd'T'HH:mm:ss")
+            .appendFraction(ChronoField.NANO_OF_SECOND, 0, 9, true)
+            .appendPattern("XXX")
+            .toFormatter();
+    /**
+     * For writing: a LocalDateTime has no offset, Ollama time stamps are UTC.
+     */
+    public static final DateTimeFormatter WRITE_FORMATTER = new DateTimeFormatterBuilder()
+            .appendPattern("yyyy-MM-dd'T'HH:mm:ss")
+            .appendFraction(ChronoField.NANO_OF_SECOND, 0, 9, true)
+            .appendLiteral('Z')
+            .toFormatter();
+    /**
+     * The mapper, do not reconfigure after construction.
+     */
+    public final ObjectMapper mapper;
+    /**
+     * Reads a Response.
+     */
+    public final ObjectReader responseReader;
+    /**
+     * Reads any JSON as a tree.
+     */
+    public final ObjectReader treeReader;
+    /**
+     * Compact writer for a Request, for the wire.
+     */
+    public final ObjectWriter requestWriter;
+    /**
+     * Compact writer for a ChatRequest, for the wire.
+     */
+    public final ObjectWriter chatWriter;
+    /**
+     * Compact writer for anything else.
+     */
+    public final ObjectWriter compactWriter;
+    /**
+     * Human readable writer, indents and new lines.
+     */
+    public final ObjectWriter prettyWriter;
+
+    public JsonCodec() {
+        mapper = newMapper();
+        responseReader = mapper.readerFor(Response.class);
+        treeReader = mapper.readerFor(JsonNode.class);
+        requestWriter = mapper.writerFor(Request.class);
+        chatWriter = mapper.writerFor(ChatRequest.class);
+        compactWriter = mapper.writer();
+        prettyWriter = mapper.writerWithDefaultPrettyPrinter();
+    }
+
+    /**
+     * The writer for a chat request; subclasses such as Conversation have
+     * their own serializer.
+     *
+     * @param rq The request.
+     * @return chatWriter or compactWriter.
+     */
+    public ObjectWriter writerForChat(ChatRequest rq) {
+        return rq.getClass() == ChatRequest.class ? chatWriter : compactWriter;
+    }
+
+    /**
+     * Build a new "object-aware" ObjectMapper. Output is compact, use
+     * prettyWriter or OllamaJava.pretty() for humans.
+     *
+     * @return Jackson object mapper.
+     */
+    public static ObjectMapper newMapper() {
+        ObjectMapper mapper = new ObjectMapper();
+        JavaTimeModule module = new JavaTimeModule();
+        module.addSerializer(LocalDateTime.class, new LocalDateTimeSerializer(WRITE_FORMATTER));
+        module.addDeserializer(LocalDateTime.class, new LocalDateTimeDeserializer(FORMATTER));
+        mapper.registerModule(module);
+        mapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+        return mapper;
+    }
+}
@@ -0,0 +1,381 @@
+/*
+ * Copyright (c) 2024 by Walter Stroebel and InfComTec.
+ */
+package nl.infcomtec.ollamajava;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Command line load generator: replays Request and ChatRequest records
+ * against one or more hosts and reports throughput, time to first token,
+ * end-to-end latency and the server's tokens per second.
+ * <p>
+ * Open loop (--rate) starts calls at a fixed rate whatever the server does;
+ * latency is counted from when a call was due, so a server that falls behind
+ * shows it instead of slowing down the test. Closed loop (--concurrency)
+ * keeps a fixed number of calls going, each starting when the previous one
+ * is done. Calls go round robin over the hosts; records are used in turn.
+ * <p>
+ * Records are JSON lines, a ChatRequest if it has "messages", a Request
+ * otherwise; or a TraceJournal directory, of which the generate and chat
+ * requests are used.
+ *
+ * @author walter
+ */
+public class LoadGenerator {
+
+    private static final String USAGE = "Usage: LoadGenerator [options] <records.jsonl | trace journal directory>\n"
+            + "  --host host[:port]   host to call, repeat or separate with commas (default 127.0.0.1:11434)\n"
+            + "  --rate n             open loop, n calls per second\n"
+            + "  --concurrency n      closed loop, n calls at a time (default 4)\n"
+            + "  --duration s         seconds to run (default 60)\n"
+            + "  --requests n         stop after n calls\n"
+            + "  --model name         use this model for all records\n"
+            + "  --no-stream          do not stream, no time to first token then\n"
+            + "  --stub               run against a StubServer in this process";
+    private final OllamaJava ollama;
+    private final Config[] hosts;
+    private final List<Object> records;
+    private final boolean stream;
+    private final AtomicInteger nextHost = new AtomicInteger();
+    /**
+     * Time to first token, from when the call was due.
+     */
+    public final LogHistogram firstToken = new LogHistogram();
+    /**
+     * Until the final response, from when the call was due.
+     */
+    public final LogHistogram endToEnd = new LogHistogram();
+    private final LongAdder ok = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder promptTokens = new LongAdder();
+    private final LongAdder promptNanos = new LongAdder();
+    private final LongAdder evalTokens = new LongAdder();
+    private final LongAdder evalNanos = new LongAdder();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private volatile Exception lastError;
+    private long elapsedNanos;
+    private long unfinished;
+
+    /**
+     * @param ollama The client, with its own MetricsRegistry for the per host
+     * figures.
+     * @param hosts Hosts to call.
+     * @param records Request or ChatRequest objects.
+     * @param stream Stream the calls.
+     */
+    public LoadGenerator(OllamaJava ollama, Config[] hosts, List<Object> records, boolean stream) {
+        if (hosts.length == 0 || records.isEmpty()) {
+            throw new IllegalArgumentException("Need at least one host and one record");
+        }
+        this.ollama = ollama;
+        this.hosts = hosts;
+        this.records = records;
+        this.stream = stream;
+        for (Object rq : records) {
+            if (rq instanceof ChatRequest) {
+                ((ChatRequest) rq).stream = stream;
+            } else {
+                ((Request) rq).stream = stream;
+            }
+        }
+    }
+
+    /**
+     * Read records.
+     *
+     * @param codec For the JSON.
+     * @param path JSON lines file or TraceJournal directory.
+     * @return Request and ChatRequest objects, in order.
+     * @throws IOException For reasons.
+     */
+    public static List<Object> readRecords(JsonCodec codec, Path path) throws IOException {
+        List<Object> ret = new ArrayList<>();
+        if (Files.isDirectory(path)) {
+            try (TraceJournal.Reader rd = TraceJournal.read(path)) {
+                while (rd.hasNext()) {
+                    OllamaJava.JSONIO io = rd.next();
+                    if (io.isOut && io.endPoint.endsWith("/api/chat")) {
+                        ret.add(codec.mapper.readValue(io.json, ChatRequest.class));
+                    } else if (io.isOut && io.endPoint.endsWith("/api/generate")) {
+                        ret.add(codec.mapper.readValue(io.json, Request.class));
+                    }
+                }
+            }
+            return ret;
+        }
+        try (BufferedReader br = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            String line;
+            while (null != (line = br.readLine())) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                JsonNode node = codec.treeReader.readTree(line);
+                if (node.has("messages")) {
+                    ret.add(codec.mapper.treeToValue(node, ChatRequest.class));
+                } else {
+                    ret.add(codec.mapper.treeToValue(node, Request.class));
+                }
+            }
+        }
+        return ret;
+    }
+
+    private void call(Object rq, long due) {
+        Config cfg = hosts[Math.floorMod(nextHost.getAndIncrement(), hosts.length)];
+        long start = System.nanoTime();
+        inFlight.incrementAndGet();
+        try {
+            Response r;
+            if (rq instanceof ChatRequest) {
+                List<Response> answer = ollama.chat(cfg, (ChatRequest) rq, part -> true);
+                r = answer.isEmpty() ? null : answer.get(answer.size() - 1);
+            } else if (stream) {
+                r = ollama.requestWithStream(cfg, (Request) rq, part -> true);
+            } else {
+                r = ollama.request(cfg, (Request) rq);
+            }
+            long end = System.nanoTime();
+            // a stream that broke off, as MetricsRegistry counts it
+            if (null == r || r.error || !r.done) {
+                errors.increment();
+                return;
+            }
+            ok.increment();
+            endToEnd.record(end - due);
+            if (null != r.stats) {
+                firstToken.record(start - due + r.stats.firstTokenNanos);
+            }
+            promptTokens.add(r.promptEvalCount);
+            promptNanos.add(r.promptEvalDuration);
+            evalTokens.add(r.evalCount);
+            evalNanos.add(r.evalDuration);
+        } catch (Exception ex) {
+            errors.increment();
+            lastError = ex;
+        } finally {
+            inFlight.decrementAndGet();
+        }
+    }
+
+    /**
+     * Start calls at a fixed rate.
+     *
+     * @param perSecond Calls per second.
+     * @param seconds How long to keep starting calls.
+     * @param max Stop after this many calls, 0 for no limit.
+     * @throws InterruptedException If interrupted.
+     */
+    public void openLoop(double perSecond, double seconds, long max) throws InterruptedException {
+        ExecutorService pool = TaskExecutors.newPerTaskExecutor("load");
+        long interval = (long) (1E9 / perSecond);
+        long start = System.nanoTime();
+        long stop = start + (long) (seconds * 1E9);
+        for (long i = 0; max <= 0 || i < max; i++) {
+            long due = start + i * interval;
+            if (due - stop >= 0) {
+                break;
+            }
+            for (long left = due - System.nanoTime(); left > 0; left = due - System.nanoTime()) {
+                LockSupport.parkNanos(left);
+            }
+            Object rq = records.get((int) (i % records.size()));
+            pool.execute(() -> call(rq, due));
+        }
+        finish(pool, start);
+    }
+
+    /**
+     * Keep a fixed number of calls going.
+     *
+     * @param concurrency Calls at a time.
+     * @param seconds How long to keep starting calls.
+     * @param max Stop after this many calls, 0 for no limit.
+     * @throws InterruptedException If interrupted.
+     */
+    public void closedLoop(int concurrency, double seconds, long max) throws InterruptedException {
+        ExecutorService pool = TaskExecutors.newPerTaskExecutor("load");
+        AtomicLong issued = new AtomicLong();
+        long start = System.nanoTime();
+        long stop = start + (long) (seconds * 1E9);
+        for (int c = 0; c < concurrency; c++) {
+            pool.execute(() -> {
+                for (long i = issued.getAndIncrement(); (max <= 0 || i < max) && System.nanoTime() - stop < 0;
+                        i = issued.getAndIncrement()) {
+                    call(records.get((int) (i % records.size())), System.nanoTime());
+                }
+            });
+        }
+        finish(pool, start);
+    }
+
+    private void finish(ExecutorService pool, long start) throws InterruptedException {
+        pool.shutdown();
+        // let the calls in progress complete, but not forever
+        if (pool.awaitTermination(10, TimeUnit.MINUTES)) {
+            unfinished = 0;
+        } else {
+            unfinished = inFlight.get() + pool.shutdownNow().size();
+        }
+        elapsedNanos = System.nanoTime() - start;
+    }
+
+    /**
+     * @return Results of the last run, for humans.
+     */
+    public String report() {
+        double secs = Math.max(1, elapsedNanos) / 1E9;
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("calls %d ok, %d errors in %.1f s: %.2f calls/s%n", ok.sum(), errors.sum(), secs, ok.sum() / secs));
+        if (unfinished > 0) {
+            sb.append(String.format("calls %d unfinished after 10 minutes, interrupted%n", unfinished));
+        }
+        if (stream) {
+            sb.append("time to first token ").append(firstToken.summary()).append(System.lineSeparator());
+        }
+        sb.append("end to end          ").append(endToEnd.summary()).append(System.lineSeparator());
+        long pn = promptNanos.sum();
+        long en = evalNanos.sum();
+        sb.append(String.format("server: prompt %.1f tokens/s, generation %.1f tokens/s per call, %.1f tokens/s in total%n",
+                pn > 0 ? promptTokens.sum() * 1E9 / pn : 0, en > 0 ? evalTokens.sum() * 1E9 / en : 0, evalTokens.sum() / secs));
+        MetricsRegistry metrics = ollama.getMetrics();
+        if (null != metrics) {
+            for (MetricsRegistry.ModelMetrics m : metrics.getAll()) {
+                sb.append("  ").append(m).append(System.lineSeparator());
+            }
+        }
+        Exception last = lastError;
+        if (null != last) {
+            sb.append("last error: ").append(last).append(System.lineSeparator());
+        }
+        return sb.toString();
+    }
+
+    private static Config host(String spec) {
+        int colon = spec.lastIndexOf(':');
+        if (colon < 0) {
+            return new Config(spec);
+        }
+        Config ret = new Config(spec.substring(0, colon));
+        ret.port = Integer.parseInt(spec.substring(colon + 1));
+        return ret;
+    }
+
+    /**
+     * @param args See USAGE.
+     * @throws Exception For reasons.
+     */
+    public static void main(String[] args) throws Exception {
+        List<Config> hosts = new ArrayList<>();
+        double rate = 0;
+        int concurrency = 4;
+        double seconds = 60;
+        long max = 0;
+        String model = null;
+        boolean stream = true;
+        boolean stub = false;
+        Path input = null;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--host":
+                        for (String h : args[++i].split(",")) {
+                            hosts.add(host(h.trim()));
+                        }
+                        break;
+                    case "--rate":
+                        rate = Double.parseDouble(args[++i]);
+                        break;
+                    case "--concurrency":
+                        concurrency = Integer.parseInt(args[++i]);
+                        break;
+                    case "--duration":
+                        seconds = Double.parseDouble(args[++i]);
+                        break;
+                    case "--requests":
+                        max = Long.parseLong(args[++i]);
+                        break;
+                    case "--model":
+                        model = args[++i];
+                        break;
+                    case "--no-stream":
+                        stream = false;
+                        break;
+                    case "--stub":
+                        stub = true;
+                        break;
+                    default:
+                        if (args[i].startsWith("--") || null != input) {
+                            throw new IllegalArgumentException(args[i]);
+                        }
+                        input = Paths.get(args[i]);
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException | IllegalArgumentException ex) {
+            input = null;
+        }
+        if (null == input) {
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+        OllamaJava ollama = new OllamaJava();
+        ollama.getTraceBuffer().setSampleEvery(0);
+        ollama.setMetrics(new MetricsRegistry(null));
+        List<Object> records = readRecords(ollama.getCodec(), input);
+        Set<String> models = new LinkedHashSet<>();
+        for (Object rq : records) {
+            if (rq instanceof ChatRequest) {
+                ChatRequest c = (ChatRequest) rq;
+                c.model = null == model ? c.model : model;
+                models.add(c.model);
+            } else {
+                Request r = (Request) rq;
+                r.model = null == model ? r.model : model;
+                models.add(r.model);
+            }
+        }
+        StubServer server = null;
+        if (stub) {
+            StubServer.noDelay();
+            server = new StubServer(0);
+            server.models = models.toArray(new String[0]);
+            hosts.clear();
+            hosts.add(server.config());
+        } else if (hosts.isEmpty()) {
+            hosts.add(new Config());
+        }
+        LoadGenerator gen = new LoadGenerator(ollama, hosts.toArray(new Config[0]), records, stream);
+        System.out.println(String.format("%s against %d host(s), %d records, %s", rate > 0
+                ? String.format("Open loop, %.1f calls/s", rate) : "Closed loop, " + concurrency + " at a time",
+                hosts.size(), records.size(), max > 0 ? "at most " + max + " calls in " + seconds + " s" : seconds + " s"));
+        try {
+            if (rate > 0) {
+                gen.openLoop(rate, seconds, max);
+            } else {
+                gen.closedLoop(concurrency, seconds, max);
+            }
+        } finally {
+            if (null != server) {
+                server.close();
+            }
+        }
+        System.out.print(gen.report());
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright (c) 2024 by Walter Stroebel and InfComTec.
+ */
+package nl.infcomtec.ollamajava;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of non-negative longs (nanoseconds, mostly) in fixed memory.
+ * <p>
+ * Like HdrHistogram: every power of two is split in 32 linear buckets, so a
+ * percentile is within about 3% of the true value, from 1 to Long.MAX_VALUE,
+ * in 1888 counters (15kB). Recording is lock-free: one increment and a few
+ * adders. Reading while others record gives a slightly blurred but consistent
+ * enough picture.
+ *
+ * @author walter
+ */
+public class LogHistogram {
+
+    private static final int SUB_BITS = 5;
+    private static final int SUB = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB;
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator min = new LongAccumulator(Math::min, Long.MAX_VALUE);
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /**
+     * @param value Negative values are counted as 0.
+     */
+    public void record(long value) {
+        long v = Math.max(0, value);
+        counts.incrementAndGet(index(v));
+        count.increment();
+        sum.add(v);
+        min.accumulate(v);
+        max.accumulate(v);
+    }
+
+    static int index(long v) {
+        if (v < SUB) {
+            return (int) v;
+        }
+        int e = 63 - Long.numberOfLeadingZeros(v);
+        return ((e - SUB_BITS + 1) << SUB_BITS) | (int) ((v >>> (e - SUB_BITS)) & (SUB - 1));
+    }
+
+    /**
+     * @return Lowest value of a bucket.
+     */
+    static long lowest(int index) {
+        if (index < SUB) {
+            return index;
+        }
+        int e = (index >> SUB_BITS) + SUB_BITS - 1;
+        return (long) (SUB | (index & (SUB - 1))) << (e - SUB_BITS);
+    }
+
+    /**
+     * @return Values recorded.
+     */
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * @return Smallest value, 0 if none.
+     */
+    public long getMin() {
+        long m = min.get();
+        return m == Long.MAX_VALUE ? 0 : m;
+    }
+
+    /**
+     * @return Largest value, 0 if none.
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * @return Average, 0 if none.
+     */
+    public double getMean() {
+        long n = count.sum();
+        return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    /**
+     * @param percentile Like 99.9.
+     * @return The value at or below which that part of the values lies,
+     * within the bucket precision; 0 if none.
+     */
+    public long getValueAtPercentile(double percentile) {
+        long[] c = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            c[i] = counts.get(i);
+            total += c[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(Math.min(100, Math.max(0, percentile)) / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += c[i];
+            if (seen >= rank) {
+                long lo = lowest(i);
+                long hi = i + 1 < BUCKETS ? lowest(i + 1) - 1 : Long.MAX_VALUE;
+                // middle of the bucket, but never outside what was seen
+                long mid = lo + (hi - lo) / 2;
+                return Math.max(getMin(), Math.min(getMax(), mid));
+            }
+        }
+        return getMax();
+    }
+
+    /**
+     * Start over.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        count.reset();
+        sum.reset();
+        min.reset();
+        max.reset();
+    }
+
+    /**
+     * The usual numbers, in milliseconds, for values in nanoseconds.
+     *
+     * @return A summary.
+     */
+    public Summary summary() {
+        return new Summary(this);
+    }
+
+    /**
+     * Count, mean and percentiles in milliseconds; JMX shows it as composite
+     * data.
+     */
+    public static class Summary {
+
+        private final long count;
+        private final double mean;
+        private final double p50;
+        private final double p90;
+        private final double p99;
+        private final double p999;
+        private final double max;
+
+        Summary(LogHistogram h) {
+            count = h.getCount();
+            mean = h.getMean() / 1E6;
+            p50 = h.getValueAtPercentile(50) / 1E6;
+            p90 = h.getValueAtPercentile(90) / 1E6;
+            p99 = h.getValueAtPercentile(99) / 1E6;
+            p999 = h.getValueAtPercentile(99.9) / 1E6;
+            max = h.getMax() / 1E6;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getMeanMillis() {
+            return mean;
+        }
+
+        public double getP50Millis() {
+            return p50;
+        }
+
+        public double getP90Millis() {
+            return p90;
+        }
+
+        public double getP99Millis() {
+            return p99;
+        }
+
+        public double getP999Millis() {
+            return p999;
+        }
+
+        public double getMaxMillis() {
+            return max;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("n=%d mean=%.1f p50=%.1f p90=%.1f p99=%.1f max=%.1f ms", count, mean, p50, p90, p99, max);
+        }
+    }
+}
@@ -3,10 +3,10 @@
  */
 package nl.infcomtec.ollamajava;
 
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonProperty;
 import java.awt.image.RenderedImage;
-import java.io.ByteArrayOutputStream;
-import java.util.Base64;
-import javax.imageio.ImageIO;
 
 /**
  * One message.
@@ -32,8 +32,15 @@ public class Message {
      * such as llava.
      */
     public String[] images;
+    /**
+     * Images added as pictures, sent after the images above. Encoded once
+     * per distinct picture, see ImageCache.
+     */
+    @JsonIgnore
+    public EncodedImage[] encodedImages;
 
-    public Message(String role, String content) {
+    @JsonCreator
+    public Message(@JsonProperty("role") String role, @JsonProperty("content") String content) {
         this(Roles.valueOf(role), content);
     }
 
@@ -47,26 +54,32 @@ public class Message {
     }
 
     public Message(Roles role, String content, RenderedImage... images) throws Exception {
+        this(role, content, ImageCache.DEFAULT, images);
+    }
+
+    /**
+     * A message with pictures, encoded by a given cache, for instance
+     * OllamaJava.getImageCache().
+     *
+     * @param role The role.
+     * @param content The text.
+     * @param cache Encodes the images.
+     * @param images The pictures.
+     * @throws Exception For reasons.
+     */
+    public Message(Roles role, String content, ImageCache cache, RenderedImage... images) throws Exception {
         this.role = role.name();
         this.content = content;
-        if (null != images) {
-            for (RenderedImage im : images) {
-                try (ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
-                    ImageIO.write(im, "png", baos);
-                    baos.flush();
-                    String enc = Base64.getEncoder().encodeToString(baos.toByteArray());
-                    if (null == this.images) {
-                        this.images = new String[1];
-                        this.images[0] = enc;
-                    } else {
-                        String[] oi = this.images;
-                        this.images = new String[oi.length + 1];
-                        System.arraycopy(oi, 0, this.images, 0, oi.length);
-                        this.images[oi.length] = enc;
-                    }
-                }
-            }
-        }
+        this.encodedImages = cache.encodeAll(images);
     }
 
+    /**
+     * What goes out as "images": the base64 Strings plus the encoded images.
+     *
+     * @return Both, or null.
+     */
+    @JsonProperty("images")
+    public Object[] jsonImages() {
+        return EncodedImage.join(images, encodedImages);
+    }
 }
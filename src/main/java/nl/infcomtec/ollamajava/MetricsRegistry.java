@@ -0,0 +1,420 @@
+/*
+ * Copyright (c) 2024 by Walter Stroebel and InfComTec.
+ */
+package nl.infcomtec.ollamajava;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Latency and throughput per model and host, from the timing fields of each
+ * Response plus the wall time the client saw.
+ * <p>
+ * Each model on each host gets a ModelMetrics with a LogHistogram per timing,
+ * so memory is fixed however many calls are made. If the registry has a JMX
+ * domain, every ModelMetrics is registered as an MXBean
+ * "domain:type=ModelMetrics,host=...,model=..." in the platform MBean server,
+ * for jconsole, VisualVM or a JMX exporter. Registries other than DEFAULT add
+ * ",registry=n" to the name, so two registries on one domain both show up;
+ * close() takes a registry out of JMX again.
+ *
+ * @author walter
+ */
+public class MetricsRegistry implements AutoCloseable {
+
+    private static final AtomicInteger INSTANCES = new AtomicInteger();
+
+    /**
+     * Used by OllamaJava unless told otherwise; in JMX as
+     * "nl.infcomtec.ollamajava".
+     */
+    public static final MetricsRegistry DEFAULT = new MetricsRegistry("nl.infcomtec.ollamajava");
+    private final String jmxDomain;
+    private final ConcurrentHashMap<String, ModelMetrics> metrics = new ConcurrentHashMap<>();
+    private final int instance = INSTANCES.getAndIncrement();
+    private final Set<ObjectName> registered = ConcurrentHashMap.newKeySet();
+    private volatile boolean closed;
+
+    /**
+     * @param jmxDomain Domain for the MXBeans, null to stay out of JMX.
+     */
+    public MetricsRegistry(String jmxDomain) {
+        this.jmxDomain = jmxDomain;
+    }
+
+    static String host(Config cfg) {
+        return cfg.hostOrIP + ':' + cfg.port;
+    }
+
+    /**
+     * The metrics of a model on a host, created on first use.
+     *
+     * @param host Like "127.0.0.1:11434".
+     * @param model The model name as requested.
+     * @return The metrics.
+     */
+    public ModelMetrics get(String host, String model) {
+        String key = host + '\n' + model;
+        ModelMetrics ret = metrics.get(key);
+        if (null == ret) {
+            ret = new ModelMetrics(host, model);
+            ModelMetrics other = metrics.putIfAbsent(key, ret);
+            if (null != other) {
+                return other;
+            }
+            register(ret);
+        }
+        return ret;
+    }
+
+    private void register(ModelMetrics m) {
+        if (null == jmxDomain || closed) {
+            return;
+        }
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(jmxDomain + ":type=ModelMetrics,"
+                    + (this == DEFAULT ? "" : "registry=" + instance + ",")
+                    + "host=" + ObjectName.quote(m.host) + ",model=" + ObjectName.quote(m.model));
+            server.registerMBean(m, name);
+            registered.add(name);
+        } catch (JMException ex) {
+            // not in JMX then, the metrics still work
+        }
+    }
+
+    /**
+     * Unregister the MXBeans of this registry; it keeps counting, but new
+     * models no longer go into JMX.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (ObjectName name : registered) {
+            try {
+                server.unregisterMBean(name);
+            } catch (JMException ex) {
+                // already gone
+            }
+            registered.remove(name);
+        }
+    }
+
+    /**
+     * @return All metrics so far.
+     */
+    public List<ModelMetrics> getAll() {
+        return new ArrayList<>(metrics.values());
+    }
+
+    /**
+     * Record a call that got an answer.
+     *
+     * @param cfg The host.
+     * @param model The model name as requested.
+     * @param wallNanos Time from sending to the final response.
+     * @param r The final response.
+     */
+    public void record(Config cfg, String model, long wallNanos, Response r) {
+        get(host(cfg), model).record(wallNanos, r);
+    }
+
+    /**
+     * Record a call that failed.
+     *
+     * @param cfg The host.
+     * @param model The model name as requested.
+     * @param wallNanos Time until it failed.
+     */
+    public void recordError(Config cfg, String model, long wallNanos) {
+        ModelMetrics m = get(host(cfg), model);
+        m.calls.increment();
+        m.errors.increment();
+        m.wall.record(wallNanos);
+    }
+
+    /**
+     * Record the outcome of a call as either of the above.
+     *
+     * @param cfg The host.
+     * @param model The model name as requested.
+     * @param startNanos System.nanoTime() when it was sent.
+     * @param r The final response, or an error response; null if the
+     * listener stopped the stream, which is not recorded. A response that is
+     * not done (the stream broke off) counts as an error.
+     * @param err If it failed.
+     */
+    void recordCall(Config cfg, String model, long startNanos, Response r, Throwable err) {
+        long wallNanos = System.nanoTime() - startNanos;
+        if (null != err || (null != r && (r.error || !r.done))) {
+            recordError(cfg, model, wallNanos);
+        } else if (null != r) {
+            record(cfg, model, wallNanos, r);
+        }
+    }
+
+    /**
+     * Start over for all.
+     */
+    public void reset() {
+        for (ModelMetrics m : metrics.values()) {
+            m.reset();
+        }
+    }
+
+    /**
+     * What JMX shows of a ModelMetrics.
+     */
+    public interface ModelMetricsMXBean {
+
+        String getHost();
+
+        String getModel();
+
+        /**
+         * @return Calls made, including those that failed.
+         */
+        long getCalls();
+
+        long getErrors();
+
+        /**
+         * @return Calls where the model had to be loaded first.
+         */
+        long getColdLoads();
+
+        double getPromptTokensPerSecond();
+
+        double getEvalTokensPerSecond();
+
+        LogHistogram.Summary getWallTime();
+
+        LogHistogram.Summary getTotalDuration();
+
+        LogHistogram.Summary getLoadDuration();
+
+        LogHistogram.Summary getPromptEvalDuration();
+
+        LogHistogram.Summary getEvalDuration();
+
+        /**
+         * @return Calls that were streamed, with client side timings.
+         */
+        long getStreams();
+
+        LogHistogram.Summary getConnectTime();
+
+        LogHistogram.Summary getTimeToFirstToken();
+
+        /**
+         * @return Time to first token less load and prompt evaluation.
+         */
+        LogHistogram.Summary getQueueTime();
+
+        LogHistogram.Summary getInterTokenGap();
+
+        /**
+         * @return Gaps between tokens of StreamStats.STALL_NANOS or more.
+         */
+        long getStalls();
+
+        void reset();
+    }
+
+    /**
+     * Metrics of one model on one host.
+     */
+    public static class ModelMetrics implements ModelMetricsMXBean {
+
+        public final String host;
+        public final String model;
+        /**
+         * Client side, sending the request to the final response.
+         */
+        public final LogHistogram wall = new LogHistogram();
+        public final LogHistogram total = new LogHistogram();
+        public final LogHistogram load = new LogHistogram();
+        public final LogHistogram promptEval = new LogHistogram();
+        public final LogHistogram eval = new LogHistogram();
+        /**
+         * Streamed calls, from StreamStats; connect only for new connections.
+         */
+        public final LogHistogram connect = new LogHistogram();
+        public final LogHistogram firstToken = new LogHistogram();
+        public final LogHistogram queue = new LogHistogram();
+        public final LogHistogram gap = new LogHistogram();
+        private final LongAdder streams = new LongAdder();
+        private final LongAdder stalls = new LongAdder();
+        private final LongAdder calls = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder coldLoads = new LongAdder();
+        private final LongAdder promptTokens = new LongAdder();
+        private final LongAdder promptNanos = new LongAdder();
+        private final LongAdder evalTokens = new LongAdder();
+        private final LongAdder evalNanos = new LongAdder();
+
+        ModelMetrics(String host, String model) {
+            this.host = host;
+            this.model = model;
+        }
+
+        void record(long wallNanos, Response r) {
+            calls.increment();
+            wall.record(wallNanos);
+            total.record(r.totalDuration);
+            load.record(r.loadDuration);
+            promptEval.record(r.promptEvalDuration);
+            eval.record(r.evalDuration);
+            if (r.loadDuration > ModelRouter.COLD_LOAD_NANOS) {
+                coldLoads.increment();
+            }
+            promptTokens.add(r.promptEvalCount);
+            promptNanos.add(r.promptEvalDuration);
+            evalTokens.add(r.evalCount);
+            evalNanos.add(r.evalDuration);
+            StreamStats st = r.stats;
+            if (null != st) {
+                streams.increment();
+                if (st.connectNanos > 0) {
+                    connect.record(st.connectNanos);
+                }
+                firstToken.record(st.firstTokenNanos);
+                if (st.queueNanos >= 0) {
+                    queue.record(st.queueNanos);
+                }
+                st.gapsTo(gap);
+                stalls.add(st.getStalls());
+            }
+        }
+
+        @Override
+        public String getHost() {
+            return host;
+        }
+
+        @Override
+        public String getModel() {
+            return model;
+        }
+
+        @Override
+        public long getCalls() {
+            return calls.sum();
+        }
+
+        @Override
+        public long getErrors() {
+            return errors.sum();
+        }
+
+        @Override
+        public long getColdLoads() {
+            return coldLoads.sum();
+        }
+
+        @Override
+        public double getPromptTokensPerSecond() {
+            long ns = promptNanos.sum();
+            return ns > 0 ? promptTokens.sum() * 1E9 / ns : 0;
+        }
+
+        @Override
+        public double getEvalTokensPerSecond() {
+            long ns = evalNanos.sum();
+            return ns > 0 ? evalTokens.sum() * 1E9 / ns : 0;
+        }
+
+        @Override
+        public LogHistogram.Summary getWallTime() {
+            return wall.summary();
+        }
+
+        @Override
+        public LogHistogram.Summary getTotalDuration() {
+            return total.summary();
+        }
+
+        @Override
+        public LogHistogram.Summary getLoadDuration() {
+            return load.summary();
+        }
+
+        @Override
+        public LogHistogram.Summary getPromptEvalDuration() {
+            return promptEval.summary();
+        }
+
+        @Override
+        public LogHistogram.Summary getEvalDuration() {
+            return eval.summary();
+        }
+
+        @Override
+        public long getStreams() {
+            return streams.sum();
+        }
+
+        @Override
+        public LogHistogram.Summary getConnectTime() {
+            return connect.summary();
+        }
+
+        @Override
+        public LogHistogram.Summary getTimeToFirstToken() {
+            return firstToken.summary();
+        }
+
+        @Override
+        public LogHistogram.Summary getQueueTime() {
+            return queue.summary();
+        }
+
+        @Override
+        public LogHistogram.Summary getInterTokenGap() {
+            return gap.summary();
+        }
+
+        @Override
+        public long getStalls() {
+            return stalls.sum();
+        }
+
+        @Override
+        public void reset() {
+            connect.reset();
+            firstToken.reset();
+            queue.reset();
+            gap.reset();
+            streams.reset();
+            stalls.reset();
+            wall.reset();
+            total.reset();
+            load.reset();
+            promptEval.reset();
+            eval.reset();
+            calls.reset();
+            errors.reset();
+            coldLoads.reset();
+            promptTokens.reset();
+            promptNanos.reset();
+            evalTokens.reset();
+            evalNanos.reset();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s@%s calls=%d errors=%d cold=%d wall{%s} ttft{%s} eval=%.1f tok/s stalls=%d",
+                    model, host, getCalls(), getErrors(), getColdLoads(), wall.summary(), firstToken.summary(),
+                    getEvalTokensPerSecond(), getStalls());
+        }
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright (c) 2024 by Walter Stroebel and InfComTec.
+ */
+package nl.infcomtec.ollamajava;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache for what the server says about its models: the /api/tags list, model
+ * details, token lists and tokenizers, per host.
+ * <p>
+ * The model list is kept for a short time, by default ten seconds. Everything
+ * about one model is keyed on its digest in that list, so a model that is
+ * pulled again or replaced is fetched again as soon as the list is; entries
+ * of digests that are gone are dropped when a new list comes in. On top of
+ * that model entries expire after a longer time, by default an hour.
+ * <p>
+ * Loading is single-flight: concurrent callers asking for the same thing wait
+ * for one fetch instead of each doing their own. A failed fetch is not
+ * cached. Cached values are shared, do not modify them.
+ *
+ * @author walter
+ */
+public class ModelCache {
+
+    /**
+     * Fetches a value from the server.
+     *
+     * @param <T> Type of the value.
+     */
+    interface Loader<T> {
+
+        T load() throws Exception;
+    }
+    private static final String TAGS = "\ntags";
+    private final JsonCodec codec = new JsonCodec();
+    private final long tagsTtlMillis;
+    private final long modelTtlMillis;
+    private final ConcurrentHashMap<String, Slot> slots = new ConcurrentHashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong loads = new AtomicLong();
+
+    /**
+     * Ten seconds for the model list, an hour for the rest.
+     */
+    public ModelCache() {
+        this(10_000, 3_600_000);
+    }
+
+    /**
+     * @param tagsTtlMillis How long to keep the model list.
+     * @param modelTtlMillis How long to keep details of a model whose digest
+     * did not change.
+     */
+    public ModelCache(long tagsTtlMillis, long modelTtlMillis) {
+        this.tagsTtlMillis = tagsTtlMillis;
+        this.modelTtlMillis = modelTtlMillis;
+    }
+
+    private static final class Slot {
+
+        final CompletableFuture<Object> value = new CompletableFuture<>();
+        volatile long expires;
+    }
+
+    /**
+     * A model list and the digests in it.
+     */
+    private static final class Tags {
+
+        final String json;
+        final Map<String, String> digests;
+
+        Tags(String json, Map<String, String> digests) {
+            this.json = json;
+            this.digests = digests;
+        }
+    }
+
+    private static String host(Config cfg) {
+        return cfg.proto + cfg.hostOrIP + ':' + cfg.port;
+    }
+
+    /**
+     * The model list as JSON.
+     *
+     * @param cfg The host.
+     * @param fetch Gets it from the server.
+     * @return What /api/tags returned.
+     * @throws Exception From fetch.
+     */
+    String tags(Config cfg, Loader<String> fetch) throws Exception {
+        return tagsOf(cfg, fetch).json;
+    }
+
+    private Tags tagsOf(Config cfg, Loader<String> fetch) throws Exception {
+        String host = host(cfg);
+        return get(host + TAGS, tagsTtlMillis, () -> {
+            String json = fetch.load();
+            HashMap<String, String> digests = new HashMap<>();
+            JsonNode models = codec.treeReader.readTree(json).get("models");
+            if (null != models) {
+                for (JsonNode m : models) {
+                    JsonNode name = m.get("name");
+                    JsonNode digest = m.get("digest");
+                    if (null != name && null != digest) {
+                        digests.put(name.asText(), digest.asText());
+                    }
+                }
+            }
+            dropStale(host, digests);
+            return new Tags(json, digests);
+        });
+    }
+
+    /**
+     * Something about one model, as long as its digest does not change.
+     *
+     * @param <T> Type of the value.
+     * @param cfg The host.
+     * @param model The model name.
+     * @param kind What it is, like "details".
+     * @param tags Gets the model list from the server.
+     * @param fetch Gets the value from the server.
+     * @return The value.
+     * @throws Exception From fetch.
+     */
+    <T> T model(Config cfg, String model, String kind, Loader<String> tags, Loader<T> fetch) throws Exception {
+        Map<String, String> digests = tagsOf(cfg, tags).digests;
+        String digest = digests.get(model);
+        if (null == digest && model.indexOf(':') < 0) {
+            digest = digests.get(model + ":latest");
+        }
+        // not listed: cache on the TTL alone
+        return get(host(cfg) + '\n' + model + '@' + (null == digest ? "" : digest) + '\n' + kind, modelTtlMillis, fetch);
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> T get(String key, long ttl, Loader<T> fetch) throws Exception {
+        for (;;) {
+            Slot s = slots.get(key);
+            if (null != s) {
+                if (!s.value.isDone() || s.expires > System.currentTimeMillis()) {
+                    hits.incrementAndGet();
+                    return (T) join(s);
+                }
+                slots.remove(key, s);
+            }
+            Slot mine = new Slot();
+            if (null != slots.putIfAbsent(key, mine)) {
+                // somebody else is loading it
+                continue;
+            }
+            loads.incrementAndGet();
+            T v;
+            try {
+                v = fetch.load();
+            } catch (Exception | Error ex) {
+                slots.remove(key, mine);
+                mine.value.completeExceptionally(ex);
+                throw ex;
+            }
+            mine.expires = System.currentTimeMillis() + ttl;
+            mine.value.complete(v);
+            return v;
+        }
+    }
+
+    private static Object join(Slot s) throws Exception {
+        try {
+            return s.value.get();
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw ex;
+        }
+    }
+
+    /**
+     * Remove entries of models that are gone or have a new digest.
+     */
+    private void dropStale(String host, Map<String, String> digests) {
+        String prefix = host + '\n';
+        for (Iterator<String> it = slots.keySet().iterator(); it.hasNext();) {
+            String key = it.next();
+            int at = key.lastIndexOf('@');
+            int nl = key.lastIndexOf('\n');
+            if (!key.startsWith(prefix) || at < prefix.length() || nl < at) {
+                continue;
+            }
+            String digest = key.substring(at + 1, nl);
+            if (digest.isEmpty()) {
+                continue;
+            }
+            String model = key.substring(prefix.length(), at);
+            String now = digests.get(model);
+            if (null == now && model.indexOf(':') < 0) {
+                now = digests.get(model + ":latest");
+            }
+            if (!digest.equals(now)) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Get the model list of a host from the server on the next call; model
+     * details stay as long as their digests do.
+     *
+     * @param cfg The host.
+     */
+    public void invalidateModelList(Config cfg) {
+        slots.remove(host(cfg) + TAGS);
+    }
+
+    /**
+     * Forget everything about one host.
+     *
+     * @param cfg The host.
+     */
+    public void invalidate(Config cfg) {
+        String prefix = host(cfg) + '\n';
+        slots.keySet().removeIf(k -> k.startsWith(prefix));
+    }
+
+    /**
+     * Forget everything.
+     */
+    public void clear() {
+        slots.clear();
+    }
+
+    /**
+     * @return Calls answered from the cache, including those that waited for
+     * another caller's fetch.
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return Fetches from a server.
+     */
+    public long getLoads() {
+        return loads.get();
+    }
+
+    @Override
+    public String toString() {
+        return "ModelCache{entries=" + slots.size() + ", hits=" + hits + ", loads=" + loads + '}';
+    }
+}
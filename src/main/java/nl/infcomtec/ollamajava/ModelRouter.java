@@ -0,0 +1,245 @@
+/*
+ * Copyright (c) 2024 by Walter Stroebel and InfComTec.
+ */
+package nl.infcomtec.ollamajava;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A ClusterClient that knows which host has which model, and which host has it
+ * loaded.
+ * <p>
+ * The catalog (model name to hosts) is rebuilt from getModels() on every host
+ * every refresh period. A host that answered for a model without loading it
+ * (Response.loadDuration under COLD_LOAD_NANOS) is "warm" for that model for
+ * the warm period (think keep_alive); calls go to a warm host unless all warm
+ * hosts have maxWarmOutstanding calls in progress, only then a host that has
+ * the model on disk gets to load it. Calls that did load are counted as cold
+ * loads and do not make the host warm.
+ * <p>
+ * The constructor does no network I/O: the first refresh runs on the refresh
+ * thread right away, or when refresh() is called if there is no refresh
+ * period. Until then calls go to any host, as with a plain ClusterClient.
+ *
+ * @author walter
+ */
+public class ModelRouter extends ClusterClient implements Closeable {
+
+    /**
+     * A loadDuration of this or more means the model was loaded for the call.
+     */
+    public static final long COLD_LOAD_NANOS = 500_000_000L;
+    private final long warmMillis;
+    private final int maxWarmOutstanding;
+    private final ScheduledExecutorService refresher;
+    private final AtomicLong coldLoads = new AtomicLong();
+    private final AtomicLong warmHits = new AtomicLong();
+    private final AtomicReference<Map<String, List<Node>>> catalog = new AtomicReference<>(Collections.emptyMap());
+    /**
+     * Per node: model name to the last time it served that model.
+     */
+    private final Map<Node, ConcurrentHashMap<String, Long>> warm = new HashMap<>();
+
+    /**
+     * Router with a 5 minute warm period and catalog refresh, at most 2 calls
+     * per warm host before loading the model elsewhere.
+     *
+     * @param configs One per machine.
+     */
+    public ModelRouter(List<Config> configs) {
+        this(new OllamaJava(), configs, Policy.LEAST_OUTSTANDING, 300_000, 300_000, 2);
+    }
+
+    /**
+     * Full control.
+     *
+     * @param ollama The client to use, shared by all nodes.
+     * @param configs One per machine.
+     * @param policy How to choose among equally suitable hosts.
+     * @param refreshMillis How often to rebuild the catalog, 0 for only on
+     * refresh(), which the caller must then do at least once.
+     * @param warmMillis How long a model stays loaded after use.
+     * @param maxWarmOutstanding Calls in progress on a warm host before a cold
+     * host is considered.
+     */
+    public ModelRouter(OllamaJava ollama, List<Config> configs, Policy policy, long refreshMillis, long warmMillis, int maxWarmOutstanding) {
+        super(ollama, configs, policy);
+        this.warmMillis = warmMillis;
+        this.maxWarmOutstanding = maxWarmOutstanding;
+        for (Node n : nodes) {
+            warm.put(n, new ConcurrentHashMap<>());
+        }
+        if (refreshMillis > 0) {
+            refresher = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "OllamaJava-model-catalog");
+                t.setDaemon(true);
+                return t;
+            });
+            refresher.scheduleWithFixedDelay(this::refresh, 0, refreshMillis, TimeUnit.MILLISECONDS);
+        } else {
+            refresher = null;
+        }
+    }
+
+    /**
+     * Rebuild the catalog now. Hosts that cannot be reached keep their old
+     * entries.
+     */
+    public final void refresh() {
+        Map<String, List<Node>> old = catalog.get();
+        HashMap<String, List<Node>> fresh = new HashMap<>();
+        ModelCache mc = ollama.getModelCache();
+        for (Node n : nodes) {
+            try {
+                if (null != mc) {
+                    mc.invalidateModelList(n.cfg);
+                }
+                for (JsonNode m : ollama.getModels(n.cfg)) {
+                    fresh.computeIfAbsent(normalize(m.get("name").asText()), k -> new ArrayList<>()).add(n);
+                }
+            } catch (Exception ex) {
+                for (Map.Entry<String, List<Node>> e : old.entrySet()) {
+                    if (e.getValue().contains(n)) {
+                        fresh.computeIfAbsent(e.getKey(), k -> new ArrayList<>()).add(n);
+                    }
+                }
+            }
+        }
+        catalog.set(fresh);
+    }
+
+    /**
+     * Ollama adds ":latest" to a name without a tag.
+     *
+     * @param model Name as given.
+     * @return Name with tag.
+     */
+    public static String normalize(String model) {
+        return model.indexOf(':') < 0 ? model + ":latest" : model;
+    }
+
+    /**
+     * @return Model name to the hosts that have it, as of the last refresh.
+     */
+    public Map<String, List<Node>> getCatalog() {
+        return Collections.unmodifiableMap(catalog.get());
+    }
+
+    /**
+     * Is the model probably loaded on this node?
+     *
+     * @param node The node.
+     * @param model The model.
+     * @return True if it answered for that model without loading it, within
+     * the warm period.
+     */
+    public boolean isWarm(Node node, String model) {
+        Long last = warm.get(node).get(normalize(model));
+        return null != last && System.currentTimeMillis() - last < warmMillis;
+    }
+
+    @Override
+    protected Node select(String model, Node exclude) {
+        if (null == model) {
+            return choose(nodes, exclude);
+        }
+        List<Node> hosts = catalog.get().get(normalize(model));
+        if (null == hosts || hosts.isEmpty()) {
+            // unknown model, let any host try (and fail with a 404 if need be)
+            return choose(nodes, exclude);
+        }
+        ArrayList<Node> hot = new ArrayList<>();
+        ArrayList<Node> cold = new ArrayList<>();
+        for (Node n : hosts) {
+            if (n != exclude && n.isHealthy()) {
+                (isWarm(n, model) ? hot : cold).add(n);
+            }
+        }
+        Node best = choose(hot, exclude);
+        if (null != best && (best.getOutstanding() < maxWarmOutstanding || cold.isEmpty())) {
+            warmHits.incrementAndGet();
+            return best;
+        }
+        Node other = choose(cold, exclude);
+        if (null != other) {
+            return other;
+        }
+        return choose(hosts, exclude);
+    }
+
+    @Override
+    protected void completed(Node node, String model, Response last, long nanos) {
+        if (null == model) {
+            return;
+        }
+        if (null == last || last.error) {
+            // no timings to go by
+            return;
+        }
+        if (last.loadDuration < COLD_LOAD_NANOS) {
+            warm.get(node).put(normalize(model), System.currentTimeMillis());
+        } else {
+            coldLoads.incrementAndGet();
+        }
+    }
+
+    @Override
+    protected void failed(Node node, String model, IOException ex) {
+        if (null == model) {
+            return;
+        }
+        String name = normalize(model);
+        warm.get(node).remove(name);
+        if (ex instanceof HttpStatusException && ((HttpStatusException) ex).status == 404) {
+            // not there after all, forget it until the next refresh
+            catalog.updateAndGet(cur -> {
+                List<Node> hosts = cur.get(name);
+                if (null == hosts || !hosts.contains(node)) {
+                    return cur;
+                }
+                HashMap<String, List<Node>> fresh = new HashMap<>(cur);
+                ArrayList<Node> left = new ArrayList<>(hosts);
+                left.remove(node);
+                fresh.put(name, left);
+                return fresh;
+            });
+        }
+    }
+
+    /**
+     * @return Calls that had to load their model first.
+     */
+    public long getColdLoads() {
+        return coldLoads.get();
+    }
+
+    /**
+     * @return Calls routed to a warm host.
+     */
+    public long getWarmHits() {
+        return warmHits.get();
+    }
+
+    /**
+     * Stop refreshing the catalog.
+     */
+    @Override
+    public void close() {
+        if (null != refresher) {
+            refresher.shutdownNow();
+        }
+    }
+}
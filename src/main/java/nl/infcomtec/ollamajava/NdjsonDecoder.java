@@ -0,0 +1,317 @@
+/*
+ * Copyright (c) 2024 by Walter Stroebel and InfComTec.
+ */
+package nl.infcomtec.ollamajava;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Walks a stream of concatenated JSON objects (NDJSON) as sent by Ollama in
+ * streaming mode, straight from the bytes.
+ * <p>
+ * No lines, no Strings per line and no data binding: the fields of the partial
+ * frames are picked up by hand. Only the final ("done") frame becomes a full
+ * Response with the timing fields and the context.
+ *
+ * @author walter
+ */
+public class NdjsonDecoder implements Closeable {
+
+    /**
+     * Fields that only the final frame has, and that need a Response.
+     */
+    private static final Set<String> HEAVY = new HashSet<>(Arrays.asList("context", "total_duration",
+            "load_duration", "sample_count", "sample_duration", "prompt_eval_count", "prompt_eval_duration",
+            "eval_count", "eval_duration", "tool_calls"));
+    private final JsonCodec codec;
+    private final JsonParser parser;
+    private final RecordingInputStream recorder;
+    private final boolean partialAsResponse;
+    private String lastFrame;
+    private boolean lastWasError;
+
+    /**
+     * Decoder that returns StreamedResponse objects for partial frames.
+     *
+     * @param codec For the odd field that needs data binding.
+     * @param in UTF-8 bytes, for instance ConnectionPool.Exchange.body().
+     * @throws IOException For reasons.
+     */
+    public NdjsonDecoder(JsonCodec codec, InputStream in) throws IOException {
+        this(codec, in, false, false);
+    }
+
+    /**
+     * Full control.
+     *
+     * @param codec For the odd field that needs data binding.
+     * @param in UTF-8 bytes, for instance ConnectionPool.Exchange.body().
+     * @param partialAsResponse If true, partial frames are (sparsely filled)
+     * Response objects, for callers that collect them in a List of Response.
+     * @param keepText If true, the JSON text of each frame is available from
+     * getLastFrame(), for tracing.
+     * @throws IOException For reasons.
+     */
+    public NdjsonDecoder(JsonCodec codec, InputStream in, boolean partialAsResponse, boolean keepText) throws IOException {
+        this.codec = codec;
+        this.partialAsResponse = partialAsResponse;
+        if (keepText) {
+            recorder = new RecordingInputStream(in);
+            in = recorder;
+        } else {
+            recorder = null;
+        }
+        this.parser = codec.mapper.getFactory().createParser(in);
+    }
+
+    /**
+     * The JSON text of the frame returned by the last call to next().
+     *
+     * @return The JSON or null if keepText was false.
+     */
+    public String getLastFrame() {
+        return lastFrame;
+    }
+
+    /**
+     * Decode the next frame.
+     *
+     * @return A StreamedResponse for partial frames; a Response if the frame is
+     * done or an error (see isError()); null at the end of the stream.
+     * @throws IOException For reasons.
+     */
+    public StreamedResponse next() throws IOException {
+        JsonToken t = parser.nextToken();
+        if (null == t) {
+            lastFrame = null;
+            lastWasError = false;
+            return null;
+        }
+        if (t != JsonToken.START_OBJECT) {
+            throw new IOException("Expected a JSON object, got " + t + " at " + parser.getTokenLocation());
+        }
+        long start = parser.getTokenLocation().getByteOffset();
+        String model = null;
+        String createdAt = null;
+        String response = null;
+        String doneReason = null;
+        String error = null;
+        Message message = null;
+        boolean done = false;
+        Response full = null;
+        while ((t = parser.nextToken()) == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            t = parser.nextToken();
+            switch (name) {
+                case "model":
+                    model = parser.getValueAsString();
+                    break;
+                case "created_at":
+                    createdAt = parser.getValueAsString();
+                    break;
+                case "response":
+                    response = parser.getValueAsString();
+                    break;
+                case "done":
+                    done = t == JsonToken.VALUE_TRUE;
+                    break;
+                case "done_reason":
+                    doneReason = parser.getValueAsString();
+                    break;
+                case "error":
+                    error = t.isScalarValue() ? parser.getValueAsString() : parser.readValueAsTree().toString();
+                    break;
+                case "message":
+                    if (t == JsonToken.START_OBJECT) {
+                        message = new Message(Message.Roles.assistant, null);
+                        full = readMessage(message, full);
+                    }
+                    break;
+                default:
+                    if (HEAVY.contains(name)) {
+                        full = readHeavy(name, t, null == full ? new Response() : full);
+                    } else {
+                        // a field we do not know costs no Response
+                        parser.skipChildren();
+                    }
+                    break;
+            }
+        }
+        if (null != recorder) {
+            long end = parser.getCurrentLocation().getByteOffset();
+            lastFrame = recorder.slice(start, end);
+            recorder.discardBefore(end);
+        }
+        lastWasError = null != error;
+        if (lastWasError) {
+            return OllamaJava.errorResponse(codec.compactWriter.writeValueAsString(Collections.singletonMap("error", error)));
+        }
+        StreamedResponse ret;
+        if (done || null != full || partialAsResponse) {
+            ret = null == full ? new Response() : full;
+        } else {
+            ret = new StreamedResponse();
+        }
+        ret.model = model;
+        ret.createdAt = null == createdAt ? null : LocalDateTime.parse(createdAt, JsonCodec.FORMATTER);
+        ret.response = response;
+        ret.message = message;
+        ret.done = done;
+        ret.doneReason = doneReason;
+        return ret;
+    }
+
+    /**
+     * Did the server send an error in the frame returned by the last call to
+     * next()? That frame is then a Response with the error JSON as response.
+     *
+     * @return True if the server sent an error.
+     */
+    public boolean isError() {
+        return lastWasError;
+    }
+
+    private Response readMessage(Message message, Response full) throws IOException {
+        JsonToken t;
+        while ((t = parser.nextToken()) == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            t = parser.nextToken();
+            switch (name) {
+                case "role":
+                    message.role = parser.getValueAsString();
+                    break;
+                case "content":
+                    message.content = parser.getValueAsString();
+                    break;
+                case "images":
+                    message.images = t == JsonToken.START_ARRAY ? codec.mapper.readValue(parser, String[].class) : null;
+                    break;
+                case "tool_calls":
+                    full = readHeavy(name, t, null == full ? new Response() : full);
+                    break;
+                default:
+                    parser.skipChildren();
+                    break;
+            }
+        }
+        return full;
+    }
+
+    private Response readHeavy(String name, JsonToken t, Response full) throws IOException {
+        switch (name) {
+            case "context":
+                if (t == JsonToken.START_ARRAY) {
+                    full.context = TokenContext.read(parser);
+                }
+                break;
+            case "total_duration":
+                full.totalDuration = parser.getValueAsLong();
+                break;
+            case "load_duration":
+                full.loadDuration = parser.getValueAsLong();
+                break;
+            case "sample_count":
+                full.sampleCount = parser.getValueAsInt();
+                break;
+            case "sample_duration":
+                full.sampleDuration = parser.getValueAsLong();
+                break;
+            case "prompt_eval_count":
+                full.promptEvalCount = parser.getValueAsInt();
+                break;
+            case "prompt_eval_duration":
+                full.promptEvalDuration = parser.getValueAsLong();
+                break;
+            case "eval_count":
+                full.evalCount = parser.getValueAsInt();
+                break;
+            case "eval_duration":
+                full.evalDuration = parser.getValueAsLong();
+                break;
+            case "tool_calls":
+                if (t == JsonToken.START_ARRAY) {
+                    full.toolCalls = codec.mapper.readValue(parser, JsonNode[].class);
+                }
+                break;
+            default:
+                parser.skipChildren();
+                break;
+        }
+        return full;
+    }
+
+    @Override
+    public void close() throws IOException {
+        parser.close();
+    }
+
+    /**
+     * Keeps the bytes read until told to forget them, to recover the text of a
+     * frame from the parser's byte offsets.
+     */
+    private static class RecordingInputStream extends FilterInputStream {
+
+        private byte[] buf = new byte[8192];
+        private int len;
+        private long base;
+
+        RecordingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int c = in.read();
+            if (c >= 0) {
+                keep(new byte[]{(byte) c}, 0, 1);
+            }
+            return c;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int n) throws IOException {
+            int r = in.read(b, off, n);
+            if (r > 0) {
+                keep(b, off, r);
+            }
+            return r;
+        }
+
+        private void keep(byte[] b, int off, int n) {
+            if (len + n > buf.length) {
+                byte[] nb = new byte[Math.max(buf.length * 2, len + n)];
+                System.arraycopy(buf, 0, nb, 0, len);
+                buf = nb;
+            }
+            System.arraycopy(b, off, buf, len, n);
+            len += n;
+        }
+
+        String slice(long from, long to) {
+            int f = (int) Math.max(0, from - base);
+            int t = (int) Math.min(len, to - base);
+            return t > f ? new String(buf, f, t - f, StandardCharsets.UTF_8) : "";
+        }
+
+        void discardBefore(long pos) {
+            int n = (int) Math.min(len, pos - base);
+            if (n > 0) {
+                System.arraycopy(buf, n, buf, 0, len - n);
+                len -= n;
+                base += n;
+            }
+        }
+    }
+}
@@ -0,0 +1,292 @@
+/*
+ * Copyright (c) 2024 by Walter Stroebel and InfComTec.
+ */
+package nl.infcomtec.ollamajava;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.URL;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+
+/**
+ * Non-blocking version of the generate and chat calls, on top of the JDK
+ * HttpClient. No thread is parked while the model is thinking; the returned
+ * futures complete on the HttpClient's executor, as do the listener calls.
+ *
+ * @author walter
+ */
+public class OllamaAsyncClient {
+
+    private final HttpClient client;
+    private final JsonCodec codec;
+    private volatile MetricsRegistry metrics = MetricsRegistry.DEFAULT;
+
+    public OllamaAsyncClient() {
+        this(HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofSeconds(10))
+                .build());
+    }
+
+    /**
+     * Use your own HttpClient, for instance with a specific executor.
+     *
+     * @param client The client to use.
+     */
+    public OllamaAsyncClient(HttpClient client) {
+        this.client = client;
+        this.codec = new JsonCodec();
+    }
+
+    /**
+     * Record latency and throughput of the calls.
+     *
+     * @param metrics The registry, null to record nothing.
+     */
+    public void setMetrics(MetricsRegistry metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * @return The metrics registry, null if none.
+     */
+    public MetricsRegistry getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Call model via Ollama. If rq.stream is true the partial responses are
+     * collected and only the final one is returned.
+     *
+     * @param cfg The configuration.
+     * @param rq Proper request.
+     * @return Response, later.
+     */
+    public CompletableFuture<Response> request(Config cfg, Request rq) {
+        if (Boolean.TRUE.equals(rq.stream)) {
+            return requestWithStream(cfg, rq, null);
+        }
+        long start = System.nanoTime();
+        try {
+            return measured(cfg, rq.model, start, send(cfg.ollamaGenerateUrl(), codec.requestWriter.writeValueAsBytes(rq)));
+        } catch (Exception any) {
+            return CompletableFuture.failedFuture(any);
+        }
+    }
+
+    /**
+     * Call model via Ollama, streaming. The listener is called for each part
+     * as it arrives.
+     *
+     * @param cfg The configuration.
+     * @param rq Proper request, stream will be set to true.
+     * @param listener Callback, may be null.
+     * @return The final response, with the full (concatenated) response in
+     * the response field; or null if the listener stopped the stream.
+     */
+    public CompletableFuture<Response> requestWithStream(Config cfg, Request rq, OllamaJava.StreamListener listener) {
+        rq.stream = true;
+        long start = System.nanoTime();
+        try {
+            return measured(cfg, rq.model, start, stream(cfg.ollamaGenerateUrl(), codec.requestWriter.writeValueAsBytes(rq), listener));
+        } catch (Exception any) {
+            return CompletableFuture.failedFuture(any);
+        }
+    }
+
+    /**
+     * Use the chat interface. If rq.stream is true the partial responses are
+     * collected and only the final one is returned.
+     *
+     * @param cfg The configuration.
+     * @param rq The full chat request.
+     * @return Response, later.
+     */
+    public CompletableFuture<Response> chat(Config cfg, ChatRequest rq) {
+        if (Boolean.TRUE.equals(rq.stream)) {
+            return chatWithStream(cfg, rq, null);
+        }
+        long start = System.nanoTime();
+        try {
+            return measured(cfg, rq.model, start, send(cfg.ollamaChatUrl(), codec.writerForChat(rq).writeValueAsBytes(rq)));
+        } catch (Exception any) {
+            return CompletableFuture.failedFuture(any);
+        }
+    }
+
+    /**
+     * Use the chat interface, streaming. The listener is called for each part
+     * as it arrives.
+     *
+     * @param cfg The configuration.
+     * @param rq The full chat request, stream will be set to true.
+     * @param listener Callback, may be null.
+     * @return The final response, with the full (concatenated) content in the
+     * response field and in message; or null if the listener stopped the
+     * stream.
+     */
+    public CompletableFuture<Response> chatWithStream(Config cfg, ChatRequest rq, OllamaJava.StreamListener listener) {
+        rq.stream = true;
+        long start = System.nanoTime();
+        try {
+            return measured(cfg, rq.model, start, stream(cfg.ollamaChatUrl(), codec.writerForChat(rq).writeValueAsBytes(rq), listener));
+        } catch (Exception any) {
+            return CompletableFuture.failedFuture(any);
+        }
+    }
+
+    /**
+     * Record the call when it completes, from a start taken before the request
+     * was serialized.
+     */
+    private CompletableFuture<Response> measured(Config cfg, String model, long start, CompletableFuture<Response> call) {
+        MetricsRegistry m = metrics;
+        if (null != m) {
+            call.whenComplete((r, err) -> m.recordCall(cfg, model, start, r, err));
+        }
+        return call;
+    }
+
+    private HttpRequest post(URL url, byte[] body) throws Exception {
+        return HttpRequest.newBuilder(url.toURI())
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofByteArray(body))
+                .build();
+    }
+
+    private CompletableFuture<Response> send(URL url, byte[] body) throws Exception {
+        return client.sendAsync(post(url, body), HttpResponse.BodyHandlers.ofByteArray())
+                .thenApply(resp -> {
+                    try {
+                        if (resp.statusCode() >= 400) {
+                            throw new HttpStatusException(resp.statusCode(), httpError(url.toURI(), resp.statusCode(), resp.body()));
+                        }
+                        return codec.responseReader.readValue(resp.body());
+                    } catch (IOException ex) {
+                        throw new UncheckedIOException(ex);
+                    } catch (Exception ex) {
+                        throw new RuntimeException(ex);
+                    }
+                });
+    }
+
+    private CompletableFuture<Response> stream(URL url, byte[] body, OllamaJava.StreamListener listener) throws Exception {
+        final URI uri = url.toURI();
+        final Frames frames = new Frames(listener);
+        client.sendAsync(post(url, body), info -> {
+            frames.stats.headers();
+            if (info.statusCode() >= 400) {
+                return HttpResponse.BodySubscribers.mapping(HttpResponse.BodySubscribers.ofByteArray(), err -> {
+                    frames.result.completeExceptionally(new HttpStatusException(info.statusCode(), httpError(uri, info.statusCode(), err)));
+                    return null;
+                });
+            }
+            return HttpResponse.BodySubscribers.fromLineSubscriber(frames, f -> null, StandardCharsets.UTF_8, "\n");
+        }).whenComplete((resp, t) -> {
+            if (null != t) {
+                frames.result.completeExceptionally(t);
+            }
+        });
+        return frames.result;
+    }
+
+    private static String httpError(URI uri, int status, byte[] body) {
+        return "Server returned HTTP response code: " + status + " for URL: " + uri
+                + ": " + new String(body, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Receives the NDJSON lines, one at a time, as they arrive.
+     */
+    private class Frames implements Flow.Subscriber<String> {
+
+        final CompletableFuture<Response> result = new CompletableFuture<>();
+        final StreamStats stats = new StreamStats();
+        private final OllamaJava.StreamListener listener;
+        private final StringBuilder fullResponse = new StringBuilder();
+        private Flow.Subscription subscription;
+
+        Frames(OllamaJava.StreamListener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            subscription.request(1);
+        }
+
+        @Override
+        public void onNext(String line) {
+            if (result.isDone()) {
+                return;
+            }
+            try {
+                if (!line.trim().isEmpty()) {
+                    if (line.startsWith("{\"error")) {
+                        Response err = OllamaJava.errorResponse(line);
+                        stats.finish(err);
+                        err.stats = stats;
+                        if (null != listener) {
+                            listener.onResponseReceived(err);
+                        }
+                        finish(err);
+                        return;
+                    }
+                    Response val = codec.responseReader.readValue(line);
+                    if (val.done) {
+                        stats.finish(val);
+                        val.stats = stats;
+                    } else {
+                        stats.token();
+                    }
+                    if (null != val.response) {
+                        fullResponse.append(val.response);
+                    } else if (null != val.message && null != val.message.content) {
+                        fullResponse.append(val.message.content);
+                    }
+                    if (val.done) {
+                        val.response = fullResponse.toString();
+                        if (null != val.message) {
+                            val.message.content = val.response;
+                        }
+                        finish(val);
+                        return;
+                    }
+                    if (null != listener && !listener.onResponseReceived(val)) {
+                        finish(null);
+                        return;
+                    }
+                }
+                subscription.request(1);
+            } catch (Exception any) {
+                subscription.cancel();
+                result.completeExceptionally(any);
+            }
+        }
+
+        private void finish(Response r) {
+            subscription.cancel();
+            result.complete(r);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            result.completeExceptionally(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            if (!result.isDone()) {
+                result.completeExceptionally(new IOException("Stream ended without a final response"));
+            }
+        }
+    }
+}
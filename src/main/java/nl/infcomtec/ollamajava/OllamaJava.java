@@ -3,36 +3,36 @@
  */
 package nl.infcomtec.ollamajava;
 
-import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.SerializationFeature;
-import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
-import com.fasterxml.jackson.datatype.jsr310.deser.LocalDateTimeDeserializer;
-import com.fasterxml.jackson.datatype.jsr310.ser.LocalDateTimeSerializer;
+import com.fasterxml.jackson.databind.ObjectWriter;
 import com.formdev.flatlaf.FlatDarculaLaf;
 import com.formdev.flatlaf.FlatLaf;
 import java.awt.image.RenderedImage;
 import java.io.BufferedReader;
+import java.io.EOFException;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.net.HttpURLConnection;
 import java.net.URL;
 import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
-import java.time.format.DateTimeFormatterBuilder;
-import java.time.temporal.ChronoField;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Base64;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
 import javax.imageio.ImageIO;
 import javax.swing.JOptionPane;
 
@@ -42,14 +42,27 @@ import javax.swing.JOptionPane;
  */
 public class OllamaJava {
 
-    private static final DateTimeFormatter formatter = new DateTimeFormatterBuilder()
-            .appendPattern("yyyy-MM-dd'T'HH:mm:ss")
-            .appendFraction(ChronoField.NANO_OF_SECOND, 0, 9, true)
-            .appendPattern("XXX")
-            .toFormatter();
-    private final LinkedList<JSONIO> jsonIO = new LinkedList<>();
+    private final TraceBuffer trace;
+    private final CopyOnWriteArrayList<TraceSink> sinks = new CopyOnWriteArrayList<>();
+    private final JsonCodec codec = new JsonCodec();
+    private volatile ResponseCache cache;
+    private volatile ExecutorService executor;
+    private volatile ModelCache models = new ModelCache();
+    private volatile MetricsRegistry metrics = MetricsRegistry.DEFAULT;
+    private volatile ImageCache images = ImageCache.DEFAULT;
 
     public OllamaJava() {
+        this(new TraceBuffer());
+    }
+
+    /**
+     * With a specific trace buffer, for instance a bigger one or one that
+     * samples.
+     *
+     * @param trace The trace buffer.
+     */
+    public OllamaJava(TraceBuffer trace) {
+        this.trace = trace;
     }
 
     /**
@@ -60,13 +73,46 @@ public class OllamaJava {
      * @throws java.lang.Exception It was not valid.
      */
     public String pretty(String json) throws Exception {
-        ObjectMapper mapper = getMapper();
-        JsonNode tree = mapper.readTree(json);
-        return mapper.writeValueAsString(tree);
+        JsonNode tree = codec.treeReader.readValue(json);
+        return codec.prettyWriter.writeValueAsString(tree);
     }
 
     /**
-     * Fetch the currently available (downloaded) models.
+     * The tokenizer of a model, built from its token list on first use and
+     * kept in the model cache. The token list comes from modelTokenList(), so
+     * /api/show is asked once for both.
+     *
+     * @param cfg The configuration.
+     * @param model Name of an existing model.
+     * @return The tokenizer.
+     * @throws Exception For reasons.
+     */
+    public Tokenizer tokenizer(Config cfg, String model) throws Exception {
+        ModelCache mc = models;
+        if (null == mc) {
+            return new Tokenizer(fetchTokenList(cfg, model));
+        }
+        return mc.model(cfg, model, "tokenizer", () -> fetchModels(cfg), () -> new Tokenizer(modelTokenList(cfg, model)));
+    }
+
+    /**
+     * Cache the model list and model details.
+     *
+     * @param models The cache, null to always ask the server.
+     */
+    public void setModelCache(ModelCache models) {
+        this.models = models;
+    }
+
+    /**
+     * @return The model cache, null if none.
+     */
+    public ModelCache getModelCache() {
+        return models;
+    }
+
+    /**
+     * The currently available (downloaded) models.
      *
      * @param cfg The configuration.
      * @return JSON, one object, one field "models" which is a list of model
@@ -74,21 +120,19 @@ public class OllamaJava {
      * @throws Exception For reasons.
      */
     public String listModels(Config cfg) throws Exception {
-        URL url = cfg.ollamaTagsUrl();
-        HttpURLConnection con = (HttpURLConnection) url.openConnection();
+        ModelCache mc = models;
+        return null == mc ? fetchModels(cfg) : mc.tags(cfg, () -> fetchModels(cfg));
+    }
 
-        try (BufferedReader br = new BufferedReader(new InputStreamReader(con.getInputStream(), StandardCharsets.UTF_8))) {
-            StringBuilder response = new StringBuilder();
-            String responseLine;
-            while ((responseLine = br.readLine()) != null) {
-                response.append(responseLine.trim());
-            }
-            return response.toString();
+    private String fetchModels(Config cfg) throws Exception {
+        URL url = cfg.ollamaTagsUrl();
+        try (ConnectionPool.Exchange ex = cfg.pool().get(url.getPath()).checkStatus(url.getPath())) {
+            return ex.bodyAsString().trim();
         }
     }
 
     /**
-     * Fetch detailed information on a model.
+     * Detailed information on a model.
      *
      * @param cfg The configuration.
      * @param model Name of an existing model.
@@ -96,23 +140,38 @@ public class OllamaJava {
      * @throws Exception For reasons.
      */
     public String modelDetails(Config cfg, String model) throws Exception {
+        ModelCache mc = models;
+        if (null == mc) {
+            return fetchDetails(cfg, model);
+        }
+        return mc.model(cfg, model, "details", () -> fetchModels(cfg), () -> fetchDetails(cfg, model));
+    }
+
+    private String fetchDetails(Config cfg, String model) throws Exception {
         URL url = cfg.ollamaShowUrl();
-        return pretty(sendRequest(url, "{ \"model\": \"" + model + "\", \"verbose\": false }"));
+        return pretty(sendRequest(cfg, url, "{ \"model\": \"" + model + "\", \"verbose\": false }"));
     }
 
     /**
-     * Fetch GGML token list for a model.
+     * GGML token list for a model.
      *
      * @param cfg The configuration.
      * @param model Name of an existing model.
-     * @return JSON describing the model.
+     * @return The tokens in id order; shared if cached, so read-only.
      * @throws Exception For reasons.
      */
     public List<String> modelTokenList(Config cfg, String model) throws Exception {
+        ModelCache mc = models;
+        if (null == mc) {
+            return fetchTokenList(cfg, model);
+        }
+        return mc.model(cfg, model, "tokens", () -> fetchModels(cfg), () -> fetchTokenList(cfg, model));
+    }
+
+    private List<String> fetchTokenList(Config cfg, String model) throws Exception {
         URL url = cfg.ollamaShowUrl();
-        String mi = sendRequest(url, "{ \"model\": \"" + model + "\", \"verbose\": true }");
-        ObjectMapper mapper = getMapper();
-        JsonNode tree = mapper.readTree(mi);
+        String mi = sendRequest(cfg, url, "{ \"model\": \"" + model + "\", \"verbose\": true }");
+        JsonNode tree = codec.treeReader.readValue(mi);
         JsonNode mInf = tree.get("model_info");
         JsonNode tList = mInf.get("tokenizer.ggml.tokens");
         int n = tList.size();
@@ -120,11 +179,11 @@ public class OllamaJava {
         for (int i = 0; i < n; i++) {
             ret.add(tList.get(i).asText());
         }
-        return ret;
+        return Collections.unmodifiableList(ret);
     }
 
     /**
-     * Fetch the currently available (downloaded) models.
+     * The currently available (downloaded) models.
      *
      * @param cfg The configuration.
      * @return List of JSON objects, should at least have a "name" field.
@@ -132,8 +191,7 @@ public class OllamaJava {
      */
     public List<JsonNode> getModels(Config cfg) throws Exception {
         String models = listModels(cfg);
-        ObjectMapper mapper = getMapper();
-        JsonNode tree = mapper.readTree(models);
+        JsonNode tree = codec.treeReader.readValue(models);
         JsonNode node = tree.get("models");
         LinkedList<JsonNode> ret = new LinkedList<>();
         Iterator<JsonNode> it;
@@ -204,9 +262,7 @@ public class OllamaJava {
      * Reset the trace buffer.
      */
     public void clearTrace() {
-        synchronized (jsonIO) {
-            jsonIO.clear();
-        }
+        trace.clear();
     }
 
     /**
@@ -224,14 +280,7 @@ public class OllamaJava {
      * @param before This point in time in milliseconds.
      */
     public void clearTrace(long before) {
-        synchronized (jsonIO) {
-            for (Iterator<JSONIO> it = jsonIO.iterator(); it.hasNext();) {
-                JSONIO jio = it.next();
-                if (jio.at < before) {
-                    it.remove();
-                }
-            }
-        }
+        trace.clearBefore(before);
     }
 
     /**
@@ -241,28 +290,181 @@ public class OllamaJava {
      * @return A copy of the call traces.
      */
     public LinkedList<JSONIO> getTrace(boolean... andClear) {
-        synchronized (jsonIO) {
-            LinkedList<JSONIO> ret = new LinkedList<>(jsonIO);
-            if (null != andClear && andClear[0]) {
-                jsonIO.clear();
-            }
-            return ret;
+        return trace.snapshot(null != andClear && andClear.length > 0 && andClear[0]);
+    }
+
+    /**
+     * The trace buffer, for its settings and drop counters.
+     *
+     * @return The trace buffer.
+     */
+    public TraceBuffer getTraceBuffer() {
+        return trace;
+    }
+
+    /**
+     * Also send all call traces to this sink, for instance a TraceJournal.
+     * Sinks see every call, sampling only applies to the trace buffer.
+     *
+     * @param sink The sink.
+     */
+    public void addTraceSink(TraceSink sink) {
+        sinks.add(sink);
+    }
+
+    /**
+     * Stop sending call traces to this sink.
+     *
+     * @param sink The sink.
+     */
+    public void removeTraceSink(TraceSink sink) {
+        sinks.remove(sink);
+    }
+
+    private boolean traceResponses(boolean traced) {
+        return (traced && trace.wantsResponses()) || !sinks.isEmpty();
+    }
+
+    private void trace(boolean traced, JSONIO io) {
+        if (traced) {
+            trace.add(io);
+        }
+        for (TraceSink sink : sinks) {
+            sink.accept(io);
         }
     }
 
     /**
-     * Get an "object-aware" version of ObjectMapper.
+     * Use a response cache for generate and chat calls.
+     *
+     * @param cache The cache, null to stop caching.
+     */
+    public void setResponseCache(ResponseCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Record latency and throughput of generate and chat calls.
+     *
+     * @param metrics The registry, null to record nothing.
+     */
+    public void setMetrics(MetricsRegistry metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * @return The metrics registry, null if none.
+     */
+    public MetricsRegistry getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Encode the images of this client's calls with this cache, and so with
+     * its preprocessor, instead of ImageCache.DEFAULT.
+     *
+     * @param images The cache, null for ImageCache.DEFAULT.
+     */
+    public void setImageCache(ImageCache images) {
+        this.images = null == images ? ImageCache.DEFAULT : images;
+    }
+
+    /**
+     * @return The image cache in use.
+     */
+    public ImageCache getImageCache() {
+        return images;
+    }
+
+    /**
+     * @return The response cache, null if none.
+     */
+    public ResponseCache getResponseCache() {
+        return cache;
+    }
+
+    /**
+     * Run the submit() calls on this executor instead of the default one.
+     *
+     * @param executor The executor, null for the default.
+     */
+    public void setExecutor(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * The executor for submit(). The default starts a virtual thread per call
+     * on Java 21 and up, see TaskExecutors.
+     *
+     * @return The executor.
+     */
+    public ExecutorService getExecutor() {
+        ExecutorService ex = executor;
+        return null != ex ? ex : DefaultExecutor.INSTANCE;
+    }
+
+    /**
+     * Created on first use only.
+     */
+    private static final class DefaultExecutor {
+
+        static final ExecutorService INSTANCE = TaskExecutors.newPerTaskExecutor("OllamaJava-call");
+    }
+
+    /**
+     * Call model via Ollama on the executor.
+     *
+     * @param cfg The configuration.
+     * @param rq Proper request.
+     * @return Response, later.
+     */
+    public CompletableFuture<Response> submit(Config cfg, Request rq) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return request(cfg, rq);
+            } catch (Exception ex) {
+                throw new CompletionException(ex);
+            }
+        }, getExecutor());
+    }
+
+    /**
+     * Use the chat interface on the executor.
+     *
+     * @param cfg The configuration.
+     * @param rq The full chat request.
+     * @param listener If not null, will be called for each partial response,
+     * on the executor's thread.
+     * @return List of responses, later.
+     */
+    public CompletableFuture<List<Response>> submitChat(Config cfg, ChatRequest rq, StreamListener listener) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return chat(cfg, rq, listener);
+            } catch (Exception ex) {
+                throw new CompletionException(ex);
+            }
+        }, getExecutor());
+    }
+
+    /**
+     * Get the "object-aware" ObjectMapper of this instance. It is shared and
+     * thread-safe, do not reconfigure it. Output is compact, use pretty() or
+     * getCodec().prettyWriter for humans.
      *
      * @return Jackson object mapper.
      */
     public ObjectMapper getMapper() {
-        ObjectMapper mapper = new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT);
-        JavaTimeModule module = new JavaTimeModule();
-        module.addSerializer(LocalDateTime.class, new LocalDateTimeSerializer(formatter));
-        module.addDeserializer(LocalDateTime.class, new LocalDateTimeDeserializer(formatter));
-        mapper.registerModule(module);
-        mapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
-        return mapper;
+        return codec.mapper;
+    }
+
+    /**
+     * Get the shared, pre-built readers and writers of this instance.
+     *
+     * @return The codec.
+     */
+    public JsonCodec getCodec() {
+        return codec;
     }
 
     /**
@@ -286,41 +488,235 @@ public class OllamaJava {
      */
     public Response request(Config cfg, Request rq) throws Exception {
         URL url = cfg.ollamaGenerateUrl();
-        ObjectMapper mapper = getMapper();
-        String requestBody = mapper.writeValueAsString(rq);
-        String response = sendRequest(url, requestBody);
-        return mapper.readValue(response, Response.class);
+        ResponseCache rc = cache;
+        String key = null;
+        if (null != rc && rc.isCacheable(rq)) {
+            key = rc.key(url.getPath(), rq);
+            ResponseCache.Entry hit = rc.get(key);
+            if (null != hit) {
+                return hit.last;
+            }
+        }
+        Response ret;
+        boolean traced = trace.sampleCall();
+        long start = System.nanoTime();
+        try (ConnectionPool.Exchange ex = post(cfg, url, codec.requestWriter, rq, traced).checkStatus(url.getPath())) {
+            if (traceResponses(traced)) {
+                String response = ex.bodyAsString().trim();
+                trace(traced, new JSONIO(false, url.getPath(), response));
+                ret = codec.responseReader.readValue(response);
+            } else {
+                try (JsonParser p = codec.mapper.getFactory().createParser(ex.body())) {
+                    ret = codec.responseReader.readValue(p);
+                    ex.finish();
+                }
+            }
+        } catch (Exception ex) {
+            measured(cfg, rq.model, start, null, ex);
+            throw ex;
+        }
+        measured(cfg, rq.model, start, ret, null);
+        if (null != key) {
+            rc.put(key, new ResponseCache.Entry(Collections.<StreamedResponse>emptyList(), ret));
+        }
+        return ret;
     }
 
-    private String sendRequest(URL url, String requestBody) throws Exception {
-        HttpURLConnection con = (HttpURLConnection) url.openConnection();
-        con.setRequestMethod("POST");
-        con.setRequestProperty("Content-Type", "application/json");
-        con.setDoOutput(true);
-        synchronized (jsonIO) {
-            jsonIO.add(new JSONIO(true, url.getPath(), requestBody));
+    /**
+     * Post a request object. The JSON is generated straight onto the
+     * connection, chunked; no String, no byte[]. A traced call copies the body
+     * (or its start, see TraceBuffer.setMaxRequestBytes()) while it streams;
+     * only trace sinks need the JSON text first. The trace entry is stamped
+     * with the time the request was sent, not when the reply started.
+     */
+    private ConnectionPool.Exchange post(Config cfg, URL url, ObjectWriter writer, Object rq, boolean traced) throws IOException {
+        if (!sinks.isEmpty()) {
+            String requestBody = writer.writeValueAsString(rq);
+            trace(traced, new JSONIO(true, url.getPath(), requestBody));
+            return cfg.pool().post(url.getPath(), requestBody.getBytes(StandardCharsets.UTF_8));
+        }
+        if (!traced) {
+            return cfg.pool().post(url.getPath(), out -> writer.writeValue(out, rq));
+        }
+        int max = trace.getMaxRequestBytes();
+        TracePrefix prefix = new TracePrefix(max > 0 ? max : Integer.MAX_VALUE);
+        long at = System.currentTimeMillis();
+        try {
+            return cfg.pool().post(url.getPath(), out -> writer.writeValue(prefix.tee(out), rq));
+        } finally {
+            trace.add(new JSONIO(at, true, url.getPath(), prefix.toString()));
         }
-        try (OutputStream os = con.getOutputStream()) {
-            byte[] input = requestBody.getBytes(StandardCharsets.UTF_8);
-            os.write(input, 0, input.length);
+    }
+
+    /**
+     * The start of a request body, copied while it is written.
+     */
+    private static final class TracePrefix extends OutputStream {
+
+        private final int max;
+        private byte[] buf = new byte[256];
+        private int len;
+        private boolean cut;
+        private OutputStream out;
+
+        TracePrefix(int max) {
+            this.max = max;
         }
 
-        try (BufferedReader br = new BufferedReader(new InputStreamReader(con.getInputStream(), StandardCharsets.UTF_8))) {
+        OutputStream tee(OutputStream out) {
+            this.out = out;
+            // a retry on a new connection writes the body again
+            len = 0;
+            cut = false;
+            return this;
+        }
+
+        private void keep(byte[] b, int off, int n) {
+            int room = max - len;
+            if (n > room) {
+                cut = true;
+                n = room;
+            }
+            if (n <= 0) {
+                return;
+            }
+            if (len + n > buf.length) {
+                buf = Arrays.copyOf(buf, (int) Math.min(max, Math.max(len + n, buf.length * 2L)));
+            }
+            System.arraycopy(b, off, buf, len, n);
+            len += n;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (len == max) {
+                cut = true;
+            } else {
+                if (len == buf.length) {
+                    buf = Arrays.copyOf(buf, (int) Math.min(max, buf.length * 2L));
+                }
+                buf[len++] = (byte) b;
+            }
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int n) throws IOException {
+            keep(b, off, n);
+            out.write(b, off, n);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+
+        @Override
+        public String toString() {
+            String ret = new String(buf, 0, len, StandardCharsets.UTF_8);
+            return cut ? ret + "..." : ret;
+        }
+    }
+
+    private String sendRequest(Config cfg, URL url, String requestBody) throws Exception {
+        boolean traced = trace.sampleCall();
+        trace(traced, new JSONIO(true, url.getPath(), requestBody));
+        byte[] input = requestBody.getBytes(StandardCharsets.UTF_8);
+        try (ConnectionPool.Exchange ex = cfg.pool().post(url.getPath(), input).checkStatus(url.getPath());
+                BufferedReader br = new BufferedReader(new InputStreamReader(ex.body(), StandardCharsets.UTF_8))) {
             StringBuilder response = new StringBuilder();
             String responseLine;
             while ((responseLine = br.readLine()) != null) {
                 response.append(responseLine.trim());
             }
             String ret = response.toString();
-            synchronized (jsonIO) {
-                jsonIO.add(new JSONIO(false, url.getPath(), ret));
-            }
+            trace(traced, new JSONIO(false, url.getPath(), ret));
             return ret;
-        } finally {
-            con.disconnect();
         }
     }
 
+    /**
+     * Embed one or more texts.
+     *
+     * @param cfg The configuration.
+     * @param model The embedding model.
+     * @param input The texts.
+     * @return One vector per text, in order.
+     * @throws Exception For reasons.
+     */
+    public float[][] embed(Config cfg, String model, String... input) throws Exception {
+        return embed(cfg, new EmbedRequest(model, input));
+    }
+
+    /**
+     * Embed one or more texts. The vectors are read straight from the
+     * response into float arrays, without boxing or a JSON tree.
+     *
+     * @param cfg The configuration.
+     * @param rq The request.
+     * @return One vector per input, in order.
+     * @throws Exception For reasons.
+     */
+    public float[][] embed(Config cfg, EmbedRequest rq) throws Exception {
+        URL url = cfg.ollamaEmbedUrl();
+        byte[] body = codec.compactWriter.writeValueAsBytes(rq);
+        boolean traced = trace.sampleCall();
+        trace(traced, new JSONIO(true, url.getPath(), new String(body, StandardCharsets.UTF_8)));
+        try (ConnectionPool.Exchange ex = cfg.pool().post(url.getPath(), body).checkStatus(url.getPath())) {
+            if (traceResponses(traced)) {
+                String json = ex.bodyAsString();
+                trace(traced, new JSONIO(false, url.getPath(), json));
+                try (JsonParser p = codec.mapper.getFactory().createParser(json)) {
+                    return readEmbeddings(p);
+                }
+            }
+            try (JsonParser p = codec.mapper.getFactory().createParser(ex.body())) {
+                float[][] ret = readEmbeddings(p);
+                ex.finish();
+                return ret;
+            }
+        }
+    }
+
+    private static float[][] readEmbeddings(JsonParser p) throws IOException {
+        if (p.nextToken() != JsonToken.START_OBJECT) {
+            throw new IOException("Expected an object");
+        }
+        float[][] ret = null;
+        while (p.nextToken() == JsonToken.FIELD_NAME) {
+            String name = p.getCurrentName();
+            JsonToken t = p.nextToken();
+            if ("embeddings".equals(name) && t == JsonToken.START_ARRAY) {
+                ArrayList<float[]> vectors = new ArrayList<>();
+                float[] buf = new float[1024];
+                while (p.nextToken() == JsonToken.START_ARRAY) {
+                    int n = 0;
+                    while (p.nextToken() != JsonToken.END_ARRAY) {
+                        if (n == buf.length) {
+                            buf = Arrays.copyOf(buf, n * 2);
+                        }
+                        buf[n++] = p.getFloatValue();
+                    }
+                    vectors.add(Arrays.copyOf(buf, n));
+                }
+                ret = vectors.toArray(new float[vectors.size()][]);
+            } else if ("error".equals(name)) {
+                throw new IOException(p.getValueAsString());
+            } else {
+                p.skipChildren();
+            }
+        }
+        if (null == ret) {
+            throw new IOException("No embeddings in response");
+        }
+        return ret;
+    }
+
     /**
      * This calls the listener for each word.
      *
@@ -335,19 +731,86 @@ public class OllamaJava {
      * @throws Exception For reasons.
      */
     public Response askWithStream(String model, String prompt, StreamListener listener, RenderedImage... images) throws Exception {
+        return askWithStream(new Config(), model, prompt, listener, images);
+    }
+
+    /**
+     * This calls the listener for each word.
+     *
+     * @param cfg The configuration.
+     * @param model The model to use.
+     * @param prompt The question.
+     * @param listener Callback.
+     * @param images For vision capable models.
+     * @return Unlike the specification at
+     * https://github.com/jmorganca/ollama/blob/main/docs/api.md, this will also
+     * contain the full (concatenated) response in the response field of the
+     * Response object.
+     * @throws Exception For reasons.
+     */
+    public Response askWithStream(Config cfg, String model, String prompt, StreamListener listener, RenderedImage... images) throws Exception {
         if (null == listener) {
             throw (new RuntimeException("Listener is null"));
         }
-        ObjectMapper mapper = getMapper();
-
         Request rq = new Request();
         rq.model = model;
         rq.prompt = prompt;
-        rq.stream = true;
         setReqImages(images, rq);
-        String requestBody = mapper.writeValueAsString(rq);
-        Response resp = sendRequestWithStreaming(requestBody, listener);
-        return resp;
+        return requestWithStream(cfg, rq, listener);
+    }
+
+    /**
+     * Call model via Ollama, streaming; this calls the listener for each
+     * word.
+     *
+     * @param cfg The configuration.
+     * @param rq Proper request, stream will be set to true.
+     * @param listener Callback.
+     * @return As askWithStream(), with the full response in the response
+     * field; null if the listener stopped the stream.
+     * @throws Exception For reasons.
+     */
+    public Response requestWithStream(Config cfg, Request rq, StreamListener listener) throws Exception {
+        if (null == listener) {
+            throw (new RuntimeException("Listener is null"));
+        }
+        rq.stream = true;
+        ResponseCache rc = cache;
+        if (null != rc && rc.isCacheable(rq)) {
+            String key = rc.key(cfg.ollamaGenerateUrl().getPath(), rq);
+            ResponseCache.Entry hit = rc.get(key);
+            if (null != hit) {
+                return replay(hit, listener);
+            }
+            List<StreamedResponse> parts = new ArrayList<>();
+            Response resp = sendRequestWithStreaming(cfg, rq, part -> {
+                parts.add(part);
+                return listener.onResponseReceived(part);
+            });
+            if (null != resp && resp.done && !resp.error) {
+                rc.put(key, new ResponseCache.Entry(parts, resp));
+            }
+            return resp;
+        }
+        return sendRequestWithStreaming(cfg, rq, listener);
+    }
+
+    private static Response replay(ResponseCache.Entry hit, StreamListener listener) {
+        if (hit.parts.isEmpty()) {
+            StreamedResponse part = new StreamedResponse();
+            part.model = hit.last.model;
+            part.createdAt = hit.last.createdAt;
+            part.response = hit.last.response;
+            if (!listener.onResponseReceived(part)) {
+                return null;
+            }
+        }
+        for (StreamedResponse part : hit.parts) {
+            if (!listener.onResponseReceived(part)) {
+                return null;
+            }
+        }
+        return hit.last;
     }
 
     /**
@@ -384,49 +847,107 @@ public class OllamaJava {
      */
     public List<Response> chat(Config cfg, ChatRequest rq, StreamListener listener) throws Exception {
         URL url = cfg.ollamaChatUrl();
-        ObjectMapper mapper = getMapper();
-        HttpURLConnection con = (HttpURLConnection) url.openConnection();
-        con.setRequestMethod("POST");
-        con.setRequestProperty("Content-Type", "application/json");
-        con.setDoOutput(true);
-        String requestBody = mapper.writeValueAsString(rq);
-        synchronized (jsonIO) {
-            jsonIO.add(new JSONIO(true, url.getPath(), requestBody));
-            System.out.println(requestBody);
+        if (rq instanceof Conversation) {
+            // throws if it does not fit, before anything is sent
+            ((Conversation) rq).window();
         }
-        List<Response> ret = new ArrayList<>();
+        ResponseCache rc = cache;
+        if (null != rc && rc.isCacheable(rq)) {
+            String key = rc.key(url.getPath(), rq);
+            ResponseCache.Entry hit = rc.get(key);
+            if (null != hit) {
+                List<Response> ret = new ArrayList<>(hit.parts.size() + 1);
+                for (StreamedResponse part : hit.parts) {
+                    ret.add(asResponse(part));
+                }
+                ret.add(hit.last);
+                if (null != listener) {
+                    for (Response r : ret) {
+                        listener.onResponseReceived(r);
+                    }
+                }
+                return ret;
+            }
+            List<Response> ret = chatCall(cfg, url, rq, listener);
+            Response last = ret.isEmpty() ? null : ret.get(ret.size() - 1);
+            if (null != last && last.done && !last.error) {
+                rc.put(key, new ResponseCache.Entry(ret.subList(0, ret.size() - 1), last));
+            }
+            return ret;
+        }
+        return chatCall(cfg, url, rq, listener);
+    }
 
-        try (OutputStream os = con.getOutputStream()) {
-            byte[] input = requestBody.getBytes(StandardCharsets.UTF_8);
-            os.write(input, 0, input.length);
+    private static Response asResponse(StreamedResponse part) {
+        if (part instanceof Response) {
+            return (Response) part;
         }
+        Response r = new Response();
+        r.model = part.model;
+        r.createdAt = part.createdAt;
+        r.response = part.response;
+        r.message = part.message;
+        r.done = part.done;
+        r.doneReason = part.doneReason;
+        return r;
+    }
 
-        try (BufferedReader br = new BufferedReader(new InputStreamReader(con.getInputStream(), StandardCharsets.UTF_8))) {
-            String responseLine;
-            while ((responseLine = br.readLine()) != null) {
-                synchronized (jsonIO) {
-                    jsonIO.add(new JSONIO(false, url.getPath(), responseLine));
+    private void measured(Config cfg, String model, long start, Response r, Throwable err) {
+        MetricsRegistry m = metrics;
+        if (null != m) {
+            m.recordCall(cfg, model, start, r, err);
+        }
+    }
+
+    private List<Response> chatCall(Config cfg, URL url, ChatRequest rq, StreamListener listener) throws Exception {
+        long start = System.nanoTime();
+        try {
+            List<Response> ret = chatExchange(cfg, url, rq, listener);
+            if (ret.isEmpty()) {
+                measured(cfg, rq.model, start, null, new EOFException("Stream ended without a response"));
+            } else {
+                // the last part is not done if the stream broke off
+                measured(cfg, rq.model, start, ret.get(ret.size() - 1), null);
+            }
+            return ret;
+        } catch (Exception ex) {
+            measured(cfg, rq.model, start, null, ex);
+            throw ex;
+        }
+    }
+
+    private List<Response> chatExchange(Config cfg, URL url, ChatRequest rq, StreamListener listener) throws Exception {
+        boolean traced = trace.sampleCall();
+        List<Response> ret = new ArrayList<>();
+        StreamStats stats = new StreamStats();
+        try (ConnectionPool.Exchange ex = post(cfg, url, codec.writerForChat(rq), rq, traced).checkStatus(url.getPath());
+                NdjsonDecoder dec = new NdjsonDecoder(codec, ex.body(), true, traceResponses(traced))) {
+            stats.sent(ex);
+            StreamedResponse frame;
+            while (null != (frame = dec.next())) {
+                if (null != dec.getLastFrame()) {
+                    trace(traced, new JSONIO(false, url.getPath(), dec.getLastFrame()));
                 }
-                if (!responseLine.trim().isEmpty()) {
-                    if (responseLine.startsWith("{\"error")) {
-                        ret.add(errorResponse(responseLine));
-                        if (null != listener) {
-                            listener.onResponseReceived(errorResponse(responseLine));
-                        }
-                        return ret;
-                    }
-                    Response val = mapper.readValue(responseLine, Response.class);
-                    ret.add(val);
-                    if (null != listener) {
-                        listener.onResponseReceived(val);
-                    }
-                    if (val.done) {
-                        break;
-                    }
+                Response val = (Response) frame;
+                if (val.done || dec.isError()) {
+                    stats.finish(val);
+                    // one frame is a plain call, not a stream
+                    val.stats = Boolean.FALSE.equals(rq.stream) ? null : stats;
+                } else {
+                    stats.token();
+                }
+                ret.add(val);
+                if (null != listener) {
+                    listener.onResponseReceived(val);
+                }
+                if (dec.isError()) {
+                    return ret;
+                }
+                if (val.done) {
+                    ex.finish();
+                    break;
                 }
             }
-        } finally {
-            con.disconnect();
         }
         return ret;
     }
@@ -439,90 +960,104 @@ public class OllamaJava {
      * @return The chat request with the answers appended to messages.
      */
     public ChatRequest merge(ChatRequest in, List<Response> answer) {
-        List<Message> messages = new LinkedList<>();
-        if (null != in.messages && in.messages.length > 0) {
-            messages.addAll(Arrays.asList(in.messages));
+        if (in instanceof Conversation) {
+            return ((Conversation) in).addAnswer(answer);
         }
-        for (Response resp : answer) {
-            if (null != resp.messages && resp.messages.length > 0) {
-                messages.addAll(Arrays.asList(resp.messages));
-            }
+        Message msg = answerMessage(answer);
+        if (null != msg) {
+            Message[] cur = null == in.messages ? new Message[0] : in.messages;
+            in.messages = Arrays.copyOf(cur, cur.length + 1);
+            in.messages[cur.length] = msg;
         }
-        in.messages = messages.toArray(new Message[0]);
         return in;
     }
 
-    private void setReqImages(RenderedImage[] images, Request rq) throws IOException {
-        if (null != images) {
-            for (RenderedImage im : images) {
-                try (ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
-                    ImageIO.write(im, "png", baos);
-                    baos.flush();
-                    String enc = Base64.getEncoder().encodeToString(baos.toByteArray());
-                    if (null == rq.images) {
-                        rq.images = new String[1];
-                        rq.images[0] = enc;
-                    } else {
-                        String[] oi = rq.images;
-                        rq.images = new String[oi.length + 1];
-                        System.arraycopy(oi, 0, rq.images, 0, oi.length);
-                        rq.images[oi.length] = enc;
-                    }
+    /**
+     * The answer of a chat call as one message: the content of all parts,
+     * streamed or not.
+     *
+     * @param answer As returned by chat().
+     * @return The message, null if there was no content (or only an error).
+     */
+    static Message answerMessage(List<Response> answer) {
+        StringBuilder sb = new StringBuilder();
+        String role = null;
+        boolean any = false;
+        for (Response resp : answer) {
+            if (null != resp.message) {
+                any = true;
+                if (null == role) {
+                    role = resp.message.role;
+                }
+                if (null != resp.message.content) {
+                    sb.append(resp.message.content);
                 }
             }
         }
+        if (!any) {
+            return null;
+        }
+        return new Message(null == role ? Message.Roles.assistant.name() : role, sb.toString());
     }
 
-    private Response sendRequestWithStreaming(String requestBody, StreamListener listener) throws Exception {
-        URL url = new Config().ollamaGenerateUrl();
-        HttpURLConnection con = (HttpURLConnection) url.openConnection();
-        con.setRequestMethod("POST");
-        con.setRequestProperty("Content-Type", "application/json");
-        con.setDoOutput(true);
-        synchronized (jsonIO) {
-            jsonIO.add(new JSONIO(true, url.getPath(), requestBody));
+    private void setReqImages(RenderedImage[] images, Request rq) throws IOException {
+        if (null != images && images.length > 0) {
+            rq.encodedImages = this.images.encodeAll(images);
         }
+    }
 
-        try (OutputStream os = con.getOutputStream()) {
-            byte[] input = requestBody.getBytes(StandardCharsets.UTF_8);
-            os.write(input, 0, input.length);
+    private Response sendRequestWithStreaming(Config cfg, Request rq, StreamListener listener) throws Exception {
+        long start = System.nanoTime();
+        try {
+            Response ret = streamExchange(cfg, rq, listener);
+            measured(cfg, rq.model, start, ret, null);
+            return ret;
+        } catch (Exception ex) {
+            measured(cfg, rq.model, start, null, ex);
+            throw ex;
         }
+    }
 
-        try (BufferedReader br = new BufferedReader(new InputStreamReader(con.getInputStream(), StandardCharsets.UTF_8))) {
-            ObjectMapper mapper = getMapper();
-            String responseLine;
+    private Response streamExchange(Config cfg, Request rq, StreamListener listener) throws Exception {
+        URL url = cfg.ollamaGenerateUrl();
+        boolean traced = trace.sampleCall();
+        StreamStats stats = new StreamStats();
+        try (ConnectionPool.Exchange ex = post(cfg, url, codec.requestWriter, rq, traced).checkStatus(url.getPath());
+                NdjsonDecoder dec = new NdjsonDecoder(codec, ex.body(), false, traceResponses(traced))) {
+            stats.sent(ex);
             StringBuilder fullResponse = new StringBuilder();
-            while ((responseLine = br.readLine()) != null) {
-                synchronized (jsonIO) {
-                    jsonIO.add(new JSONIO(false, url.getPath(), responseLine));
+            StreamedResponse val;
+            while (null != (val = dec.next())) {
+                if (null != dec.getLastFrame()) {
+                    trace(traced, new JSONIO(false, url.getPath(), dec.getLastFrame()));
                 }
-                if (!responseLine.trim().isEmpty()) {
-                    if (responseLine.startsWith("{\"error")) {
-                        Response err = errorResponse(responseLine);
-                        listener.onResponseReceived(err);
-                        return err;
-                    }
-                    Response val = mapper.readValue(responseLine, Response.class);
-                    if (val.done) {
-                        val.response = fullResponse.toString();
-                        return val;
-                    } else {
-                        fullResponse.append(val.response);
-                        if (!listener.onResponseReceived(val)) {
-                            return null;
-                        }
-                    }
+                if (dec.isError()) {
+                    stats.finish((Response) val);
+                    ((Response) val).stats = stats;
+                    listener.onResponseReceived(val);
+                    return (Response) val;
+                }
+                if (val.done) {
+                    Response fin = (Response) val;
+                    fin.response = fullResponse.toString();
+                    stats.finish(fin);
+                    fin.stats = stats;
+                    ex.finish();
+                    return fin;
+                }
+                stats.token();
+                fullResponse.append(val.response);
+                if (!listener.onResponseReceived(val)) {
+                    return null;
                 }
             }
-            return mapper.readValue(responseLine, Response.class);
-        } finally {
-            con.disconnect();
+            throw new IOException("Stream ended without a final response");
         }
     }
 
-    private Response errorResponse(String responseLine) {
+    static Response errorResponse(String responseLine) {
         Response err = new Response();
-        err.context = new LinkedList<>();
+        err.context = TokenContext.EMPTY;
         err.createdAt = LocalDateTime.now();
         err.done = true;
         err.evalCount = 0;
@@ -535,6 +1070,7 @@ public class OllamaJava {
         err.sampleDuration = 1;
         err.totalDuration = 3;
         err.response = responseLine;
+        err.error = true;
         return err;
     }
 
@@ -546,7 +1082,7 @@ public class OllamaJava {
         /**
          * Time the call was made or a response arrived
          */
-        public final long at = System.currentTimeMillis();
+        public final long at;
         /**
          * True for requests, false for responses.
          */
@@ -561,6 +1097,19 @@ public class OllamaJava {
         public final String json;
 
         public JSONIO(boolean isOut, String endPoint, String json) {
+            this(System.currentTimeMillis(), isOut, endPoint, json);
+        }
+
+        /**
+         * For replaying saved traces.
+         *
+         * @param at Time of the original call or response.
+         * @param isOut True for requests, false for responses.
+         * @param endPoint Endpoint used.
+         * @param json Actual JSON.
+         */
+        public JSONIO(long at, boolean isOut, String endPoint, String json) {
+            this.at = at;
             this.isOut = isOut;
             this.endPoint = endPoint;
             this.json = json;
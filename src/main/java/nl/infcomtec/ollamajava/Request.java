@@ -1,5 +1,6 @@
 package nl.infcomtec.ollamajava;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
 
 /**
@@ -32,6 +33,12 @@ public class Request {
      * llava.
      */
     public String[] images;
+    /**
+     * Images added as pictures, sent after the images above. Encoded once
+     * per distinct picture, see ImageCache.
+     */
+    @JsonIgnore
+    public EncodedImage[] encodedImages;
 
     /**
      * System prompt that overrides what is defined in the Modelfile, used to
@@ -60,9 +67,9 @@ public class Request {
 
     /**
      * Specifies the context tokens for the model to consider when generating a
-     * response.
+     * response; pass Response.context of the previous call.
      */
-    public Integer[] context;
+    public TokenContext context;
 
     /**
      * Specifies the time the Ollama service should keep the model loaded. Can
@@ -84,4 +91,13 @@ public class Request {
      */
     public Options options;
 
+    /**
+     * What goes out as "images": the base64 Strings plus the encoded images.
+     *
+     * @return Both, or null.
+     */
+    @JsonProperty("images")
+    public Object[] jsonImages() {
+        return EncodedImage.join(images, encodedImages);
+    }
 }
@@ -1,8 +1,8 @@
 package nl.infcomtec.ollamajava;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.databind.JsonNode;
-import java.util.List;
 
 /**
  * This is the full response, returned in synchronous mode or at the end of a
@@ -12,9 +12,10 @@ public class Response extends StreamedResponse {
 
     /**
      * An encoding of the conversation used in this response, this can be sent
-     * in the next request to keep a conversational memory.
+     * in the next request to keep a conversational memory. Backed by an
+     * int[].
      */
-    public List<Integer> context;
+    public TokenContext context;
 
     /**
      * Time spent generating the response in nanoseconds.
@@ -78,6 +79,20 @@ public class Response extends StreamedResponse {
      */
     public Message[] messages;
 
+    /**
+     * Client side timing, on the final response of a streamed call; null
+     * otherwise or when it came from the cache.
+     */
+    @JsonIgnore
+    public StreamStats stats;
+
+    /**
+     * True if the server sent an error instead of an answer; the error JSON
+     * is then in response and model is "?".
+     */
+    @JsonIgnore
+    public boolean error;
+
     /**
      * Calculates how fast the response is generated in tokens per second
      * (token/s).
@@ -0,0 +1,440 @@
+/*
+ * Copyright (c) 2024 by Walter Stroebel and InfComTec.
+ */
+package nl.infcomtec.ollamajava;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Opt-in cache for generate and chat results.
+ * <p>
+ * The key is a SHA-256 over the endpoint and a canonical form of the request:
+ * all fields except stream and keep_alive, nulls left out, object keys
+ * sorted. By default only deterministic requests are cached, those with
+ * options.seed set and options.temperature 0.
+ * <p>
+ * Entries live in an LRU map of about maxBytes, and optionally also as JSON
+ * files in a directory which survives restarts. Streamed parts are kept so a
+ * hit can be replayed to a StreamListener. Entries are copied going in and
+ * coming out, so callers can do what they like with them; a hit has no
+ * stats. Writing to disk is best effort: a failure is counted and logged, the
+ * entry stays in memory.
+ *
+ * @author walter
+ */
+public class ResponseCache {
+
+    private final JsonCodec codec = new JsonCodec();
+    private final long maxBytes;
+    private final Path dir;
+    private final LinkedHashMap<String, Entry> lru = new LinkedHashMap<>(256, 0.75f, true);
+    private final ReentrantLock lock = new ReentrantLock();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong diskFailures = new AtomicLong();
+    private volatile boolean deterministicOnly = true;
+    private long bytes;
+
+    /**
+     * Memory only.
+     *
+     * @param maxBytes Approximate size limit of the entries.
+     */
+    public ResponseCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+        this.dir = null;
+    }
+
+    /**
+     * Memory plus disk.
+     *
+     * @param maxBytes Approximate size limit of the entries in memory.
+     * @param dir Directory for the disk tier, created if needed.
+     * @throws IOException For reasons.
+     */
+    public ResponseCache(long maxBytes, Path dir) throws IOException {
+        this.maxBytes = maxBytes;
+        this.dir = Files.createDirectories(dir);
+    }
+
+    /**
+     * Cache all requests, not only the deterministic ones. Only makes sense if
+     * "the same question, the same answer" is good enough.
+     *
+     * @param deterministicOnly False to cache everything.
+     */
+    public void setDeterministicOnly(boolean deterministicOnly) {
+        this.deterministicOnly = deterministicOnly;
+    }
+
+    /**
+     * @param rq The request.
+     * @return True if the answer may be cached.
+     */
+    public boolean isCacheable(Request rq) {
+        return !deterministicOnly || isDeterministic(rq.options);
+    }
+
+    /**
+     * @param rq The request.
+     * @return True if the answer may be cached.
+     */
+    public boolean isCacheable(ChatRequest rq) {
+        return !deterministicOnly || isDeterministic(rq.options);
+    }
+
+    private static boolean isDeterministic(Options opt) {
+        return null != opt && null != opt.seed && null != opt.temperature && opt.temperature == 0;
+    }
+
+    /**
+     * The cache key of a request.
+     *
+     * @param endPoint Like "/api/generate".
+     * @param rq A Request or ChatRequest.
+     * @return Hex SHA-256.
+     * @throws IOException For reasons.
+     */
+    public String key(String endPoint, Object rq) throws IOException {
+        JsonNode tree = codec.mapper.valueToTree(rq);
+        if (tree instanceof ObjectNode) {
+            ((ObjectNode) tree).remove("stream");
+            ((ObjectNode) tree).remove("keep_alive");
+        }
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IOException(ex);
+        }
+        try (DigestOutputStream dos = new DigestOutputStream(OutputStream.nullOutputStream(), md);
+                JsonGenerator gen = codec.mapper.getFactory().createGenerator(dos)) {
+            gen.writeString(endPoint);
+            writeCanonical(gen, tree);
+        }
+        StringBuilder sb = new StringBuilder(64);
+        for (byte b : md.digest()) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    private static void writeCanonical(JsonGenerator gen, JsonNode node) throws IOException {
+        if (node.isObject()) {
+            ArrayList<String> names = new ArrayList<>();
+            for (Iterator<String> it = node.fieldNames(); it.hasNext();) {
+                String name = it.next();
+                if (!node.get(name).isNull()) {
+                    names.add(name);
+                }
+            }
+            names.sort(null);
+            gen.writeStartObject();
+            for (String name : names) {
+                gen.writeFieldName(name);
+                writeCanonical(gen, node.get(name));
+            }
+            gen.writeEndObject();
+        } else if (node.isArray()) {
+            gen.writeStartArray();
+            for (JsonNode n : node) {
+                writeCanonical(gen, n);
+            }
+            gen.writeEndArray();
+        } else {
+            gen.writeTree(node);
+        }
+    }
+
+    /**
+     * Look up an entry, in memory first, then on disk.
+     *
+     * @param key From key().
+     * @return A copy of the entry, or null.
+     */
+    public Entry get(String key) {
+        lock.lock();
+        try {
+            Entry e = lru.get(key);
+            if (null != e) {
+                hits.incrementAndGet();
+                return e.copy();
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (null != dir) {
+            Path f = dir.resolve(key + ".json");
+            if (Files.exists(f)) {
+                try {
+                    Entry e = codec.mapper.readValue(f.toFile(), Entry.class);
+                    diskHits.incrementAndGet();
+                    remember(key, e);
+                    return e.copy();
+                } catch (IOException ex) {
+                    // unreadable, treat as a miss; it will be overwritten
+                }
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Store a copy of an entry, in memory and, if configured, on disk. A
+     * failure to write to disk is counted, not thrown: the call that produced
+     * the entry did succeed.
+     *
+     * @param key From key().
+     * @param e The entry.
+     */
+    public void put(String key, Entry e) {
+        Entry mine = e.copy();
+        remember(key, mine);
+        if (null != dir) {
+            Path tmp = null;
+            try {
+                tmp = Files.createTempFile(dir, key, ".tmp");
+                codec.mapper.writeValue(tmp.toFile(), mine);
+                Files.move(tmp, dir.resolve(key + ".json"), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException ex) {
+                diskFailures.incrementAndGet();
+                Logger.getLogger(ResponseCache.class.getName()).log(Level.WARNING, "Could not write cache entry to " + dir, ex);
+            } finally {
+                if (null != tmp) {
+                    try {
+                        Files.deleteIfExists(tmp);
+                    } catch (IOException ex) {
+                        // left behind, harmless
+                    }
+                }
+            }
+        }
+    }
+
+    private void remember(String key, Entry e) {
+        e.weight = weigh(e);
+        if (e.weight > maxBytes) {
+            return;
+        }
+        lock.lock();
+        try {
+            Entry old = lru.put(key, e);
+            if (null != old) {
+                bytes -= old.weight;
+            }
+            bytes += e.weight;
+            for (Iterator<Map.Entry<String, Entry>> it = lru.entrySet().iterator(); bytes > maxBytes && it.hasNext();) {
+                Entry eldest = it.next().getValue();
+                it.remove();
+                bytes -= eldest.weight;
+                evictions.incrementAndGet();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static long weigh(Entry e) {
+        long w = 64;
+        if (null != e.parts) {
+            for (StreamedResponse p : e.parts) {
+                w += weigh(p);
+            }
+        }
+        if (null != e.last) {
+            w += weigh(e.last);
+            w += null == e.last.context ? 0 : 16 + 4L * e.last.context.size();
+        }
+        return w;
+    }
+
+    private static long weigh(StreamedResponse p) {
+        long w = 96 + (null == p.response ? 0 : 2L * p.response.length());
+        if (null != p.message && null != p.message.content) {
+            w += 48 + 2L * p.message.content.length();
+        }
+        return w;
+    }
+
+    /**
+     * Empty the memory tier.
+     */
+    public void clear() {
+        lock.lock();
+        try {
+            lru.clear();
+            bytes = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return Approximate size of the memory tier.
+     */
+    public long getBytes() {
+        lock.lock();
+        try {
+            return bytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return Hits in memory.
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return Hits on disk.
+     */
+    public long getDiskHits() {
+        return diskHits.get();
+    }
+
+    /**
+     * @return Misses.
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return Entries that could not be written to disk.
+     */
+    public long getDiskFailures() {
+        return diskFailures.get();
+    }
+
+    /**
+     * @return Entries dropped from memory to stay under maxBytes.
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    @Override
+    public String toString() {
+        return "ResponseCache{bytes=" + getBytes() + ", hits=" + hits + ", diskHits=" + diskHits
+                + ", misses=" + misses + ", evictions=" + evictions + ", diskFailures=" + diskFailures + '}';
+    }
+
+    /**
+     * One cached result.
+     */
+    public static class Entry {
+
+        /**
+         * The streamed parts before the final response, empty if the call was
+         * not streamed.
+         */
+        public List<StreamedResponse> parts = new ArrayList<>();
+        /**
+         * The final response.
+         */
+        public Response last;
+        /**
+         * Approximate size in memory.
+         */
+        transient long weight;
+
+        public Entry() {
+        }
+
+        public Entry(List<? extends StreamedResponse> parts, Response last) {
+            this.parts.addAll(parts);
+            this.last = last;
+        }
+
+        /**
+         * @return A copy that shares nothing mutable with this one, without
+         * stats.
+         */
+        public Entry copy() {
+            Entry ret = new Entry();
+            for (StreamedResponse p : parts) {
+                ret.parts.add(copy(p));
+            }
+            ret.last = null == last ? null : (Response) copy(last);
+            ret.weight = weight;
+            return ret;
+        }
+
+        private static StreamedResponse copy(StreamedResponse p) {
+            StreamedResponse ret;
+            if (p instanceof Response) {
+                Response r = (Response) p;
+                Response c = new Response();
+                // TokenContext is immutable
+                c.context = r.context;
+                c.totalDuration = r.totalDuration;
+                c.loadDuration = r.loadDuration;
+                c.sampleCount = r.sampleCount;
+                c.sampleDuration = r.sampleDuration;
+                c.promptEvalCount = r.promptEvalCount;
+                c.promptEvalDuration = r.promptEvalDuration;
+                c.evalCount = r.evalCount;
+                c.evalDuration = r.evalDuration;
+                c.error = r.error;
+                if (null != r.toolCalls) {
+                    c.toolCalls = new JsonNode[r.toolCalls.length];
+                    for (int i = 0; i < r.toolCalls.length; i++) {
+                        c.toolCalls[i] = null == r.toolCalls[i] ? null : r.toolCalls[i].deepCopy();
+                    }
+                }
+                if (null != r.messages) {
+                    c.messages = new Message[r.messages.length];
+                    for (int i = 0; i < r.messages.length; i++) {
+                        c.messages[i] = copy(r.messages[i]);
+                    }
+                }
+                ret = c;
+            } else {
+                ret = new StreamedResponse();
+            }
+            ret.model = p.model;
+            ret.createdAt = p.createdAt;
+            ret.response = p.response;
+            ret.message = copy(p.message);
+            ret.done = p.done;
+            ret.doneReason = p.doneReason;
+            return ret;
+        }
+
+        private static Message copy(Message m) {
+            if (null == m) {
+                return null;
+            }
+            Message ret = new Message(Message.Roles.assistant, m.content);
+            ret.role = m.role;
+            ret.images = null == m.images ? null : m.images.clone();
+            ret.encodedImages = null == m.encodedImages ? null : m.encodedImages.clone();
+            return ret;
+        }
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright (c) 2024 by Walter Stroebel and InfComTec.
+ */
+package nl.infcomtec.ollamajava;
+
+import java.util.Arrays;
+
+/**
+ * Client side timing of one streamed call: connecting, time to first token,
+ * the gaps between tokens and stalls.
+ * <p>
+ * The server's own timings only come with the last frame and do not show
+ * waiting in its queue. Here the time to first token minus the server's load
+ * and prompt evaluation time is taken as queueing (plus network); a high
+ * queue time with normal gaps means a busy server, normal queueing with long
+ * gaps means slow generation. Every frame before the final one counts as a
+ * token, which is what Ollama sends.
+ * <p>
+ * Filled in by the call, on Response.stats of the final response; all times
+ * are in nanoseconds, relative to the start of the call.
+ *
+ * @author walter
+ */
+public class StreamStats {
+
+    /**
+     * A gap between two tokens longer than this is a stall, half a second.
+     */
+    public static final long STALL_NANOS = 500_000_000L;
+    private final long start;
+    /**
+     * TCP (and TLS) handshake; 0 if a pooled connection was used or it is
+     * not known.
+     */
+    public long connectNanos;
+    /**
+     * Until the request was sent, including connecting.
+     */
+    public long sentNanos;
+    /**
+     * Until the response headers came in.
+     */
+    public long headersNanos;
+    /**
+     * Until the first token, -1 if there was none.
+     */
+    public long firstTokenNanos = -1;
+    /**
+     * Until the final frame.
+     */
+    public long totalNanos;
+    /**
+     * Time to first token less the server's load and prompt evaluation: time
+     * spent in its queue and on the network; -1 if not known.
+     */
+    public long queueNanos = -1;
+    /**
+     * Tokens (frames) received before the final one.
+     */
+    public int tokens;
+    private long lastToken;
+    private long[] gaps = new long[64];
+    private int gapCount;
+
+    /**
+     * Starts the clock.
+     */
+    public StreamStats() {
+        this.start = System.nanoTime();
+    }
+
+    /**
+     * The request went out on this exchange.
+     */
+    void sent(ConnectionPool.Exchange ex) {
+        connectNanos = ex.connectNanos;
+        sentNanos = ex.sentAt - start;
+        headersNanos = ex.headersAt - start;
+    }
+
+    /**
+     * The request went out and the headers came in, now.
+     */
+    void headers() {
+        headersNanos = System.nanoTime() - start;
+        sentNanos = headersNanos;
+    }
+
+    /**
+     * A token came in, now.
+     */
+    void token() {
+        long now = System.nanoTime();
+        if (tokens++ == 0) {
+            firstTokenNanos = now - start;
+        } else {
+            if (gapCount == gaps.length) {
+                gaps = Arrays.copyOf(gaps, gapCount * 2);
+            }
+            gaps[gapCount++] = now - lastToken;
+        }
+        lastToken = now;
+    }
+
+    /**
+     * The final frame came in, now.
+     *
+     * @param fin It, for the server's timings.
+     */
+    void finish(Response fin) {
+        totalNanos = System.nanoTime() - start;
+        if (firstTokenNanos < 0) {
+            // not streamed, or nothing but the final frame
+            firstTokenNanos = totalNanos;
+        }
+        if (null != fin && !fin.error) {
+            queueNanos = Math.max(0, firstTokenNanos - fin.loadDuration - fin.promptEvalDuration);
+        }
+    }
+
+    /**
+     * Add the gaps to a histogram.
+     */
+    void gapsTo(LogHistogram h) {
+        for (int i = 0; i < gapCount; i++) {
+            h.record(gaps[i]);
+        }
+    }
+
+    /**
+     * @return The gaps between tokens, in order.
+     */
+    public long[] getGaps() {
+        return Arrays.copyOf(gaps, gapCount);
+    }
+
+    /**
+     * @param percentile Like 99.
+     * @return That percentile of the gaps between tokens, 0 if there were
+     * none.
+     */
+    public long gapAtPercentile(double percentile) {
+        if (gapCount == 0) {
+            return 0;
+        }
+        long[] sorted = getGaps();
+        Arrays.sort(sorted);
+        int rank = (int) Math.ceil(Math.min(100, Math.max(0, percentile)) / 100 * gapCount);
+        return sorted[Math.max(0, rank - 1)];
+    }
+
+    /**
+     * @return The longest gap between tokens.
+     */
+    public long getMaxGap() {
+        long max = 0;
+        for (int i = 0; i < gapCount; i++) {
+            max = Math.max(max, gaps[i]);
+        }
+        return max;
+    }
+
+    /**
+     * @param minGapNanos What counts as a stall.
+     * @return Gaps of at least that long.
+     */
+    public int stalls(long minGapNanos) {
+        int n = 0;
+        for (int i = 0; i < gapCount; i++) {
+            if (gaps[i] >= minGapNanos) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * @return Gaps of at least STALL_NANOS.
+     */
+    public int getStalls() {
+        return stalls(STALL_NANOS);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("connect=%.1f ttft=%.1f queue=%.1f total=%.1f ms, %d tokens, gap p50=%.1f p99=%.1f max=%.1f ms, %d stalls",
+                connectNanos / 1E6, firstTokenNanos / 1E6, queueNanos / 1E6, totalNanos / 1E6, tokens,
+                gapAtPercentile(50) / 1E6, gapAtPercentile(99) / 1E6, getMaxGap() / 1E6, getStalls());
+    }
+}
@@ -17,6 +17,10 @@ public class StreamedResponse {
      * the full response
      */
     public String response;
+    /**
+     * Only for the chat endpoint: the (partial) message from the assistant.
+     */
+    public Message message;
     public boolean done;
     @JsonProperty(value = "done_reason")
     public String doneReason;
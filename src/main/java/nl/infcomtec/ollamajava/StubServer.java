@@ -0,0 +1,737 @@
+/*
+ * Copyright (c) 2024 by Walter Stroebel and InfComTec.
+ */
+package nl.infcomtec.ollamajava;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A stand-in for an Ollama server, for measuring the client without a GPU:
+ * /api/generate, /api/chat, /api/tags and /api/show on the loopback address.
+ * <p>
+ * Answers are made up from a fixed list of words, at a set token rate after a
+ * set first token delay (prompt evaluation). A model that was not used for
+ * keepAliveMillis pays loadMillis first, once, like a cold load. At most
+ * "parallel" calls generate at the same time, the others wait, which shows up
+ * as queue time in StreamStats. Errors can be injected as HTTP errors or as
+ * an error frame halfway a stream. The random choices for the n-th generate
+ * or chat call come from the seed and n alone, so a run can be repeated: the
+ * same calls get errors however the threads are scheduled.
+ * <p>
+ * Instead of made up answers it can replay captured traces (TraceBuffer or
+ * TraceJournal): a request equal to a recorded one gets the recorded frames,
+ * others get the recorded exchanges of that endpoint in turn, at the recorded
+ * pace times replaySpeed. Capture the traces from one thread: responses are
+ * matched to the last request on the same endpoint.
+ * <p>
+ * Settings are public fields and take effect on the next call. For time to
+ * first token below 40ms call noDelay() before the first server starts.
+ *
+ * @author walter
+ */
+public class StubServer implements Closeable {
+
+    private static final String[] WORDS = {"the", "sky", "is", "blue", "because", "of", "Rayleigh", "scattering",
+        "which", "affects", "shorter", "wavelengths", "more", "than", "longer", "ones", "and", "so", "light",
+        "from", "sun", "reaches", "us", "mostly", "as", "a", "diffuse", "glow", "in", "all", "directions", "."};
+    private static final String NDJSON = "application/x-ndjson";
+    private static final String JSON = "application/json; charset=utf-8";
+
+    private final JsonCodec codec = new JsonCodec();
+    private final HttpServer server;
+    private final ExecutorService executor;
+    /**
+     * Models the server has.
+     */
+    public volatile String[] models = {"stub:latest"};
+    /**
+     * Generation speed per call, 0 for as fast as possible.
+     */
+    public volatile double tokensPerSecond = 100;
+    /**
+     * Prompt evaluation, before the first token.
+     */
+    public volatile long firstTokenMillis = 20;
+    /**
+     * Loading a model that is not loaded.
+     */
+    public volatile long loadMillis = 0;
+    /**
+     * A model not used for this long is unloaded.
+     */
+    public volatile long keepAliveMillis = 300_000;
+    /**
+     * Tokens per answer, unless the request has num_predict.
+     */
+    public volatile int tokens = 50;
+    /**
+     * Part of generate and chat calls answered with errorStatus.
+     */
+    public volatile double errorRate;
+    /**
+     * HTTP status of injected errors.
+     */
+    public volatile int errorStatus = 500;
+    /**
+     * Part of streamed calls that end in an error frame halfway.
+     */
+    public volatile double streamErrorRate;
+    /**
+     * 1 for the recorded pace, 2 for twice as fast, 0 for as fast as
+     * possible.
+     */
+    public volatile double replaySpeed = 1;
+    private volatile long seed = 1;
+    private final AtomicLong calls = new AtomicLong();
+    private volatile Semaphore slots = new Semaphore(4, true);
+    private volatile Map<String, Replays> replays = Collections.emptyMap();
+    private final ConcurrentHashMap<String, Loaded> loaded = new ConcurrentHashMap<>();
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder tokensSent = new LongAdder();
+
+    /**
+     * Start a server on the loopback address.
+     *
+     * @param port Port, 0 for any free port.
+     * @throws IOException If the port is taken.
+     */
+    public StubServer(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 1024);
+        executor = TaskExecutors.newPerTaskExecutor("stub");
+        server.setExecutor(executor);
+        server.createContext("/api/generate", ex -> handle(ex, true, (e, rq, rnd) -> complete(e, rq, rnd, false)));
+        server.createContext("/api/chat", ex -> handle(ex, true, (e, rq, rnd) -> complete(e, rq, rnd, true)));
+        server.createContext("/api/tags", ex -> handle(ex, false, (e, rq, rnd) -> tags(e)));
+        server.createContext("/api/show", ex -> handle(ex, false, (e, rq, rnd) -> show(e, rq)));
+        server.start();
+    }
+
+    /**
+     * @return The port it listens on.
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * @return A configuration for this server.
+     */
+    public Config config() {
+        Config ret = new Config(server.getAddress().getAddress().getHostAddress());
+        ret.port = getPort();
+        return ret;
+    }
+
+    /**
+     * @param parallel Calls generating at the same time, like
+     * OLLAMA_NUM_PARALLEL.
+     */
+    public void setParallel(int parallel) {
+        slots = new Semaphore(Math.max(1, parallel), true);
+    }
+
+    /**
+     * Also starts counting calls from 0 again.
+     *
+     * @param seed Seed for the injected errors, to repeat a run.
+     */
+    public void setSeed(long seed) {
+        this.seed = seed;
+        calls.set(0);
+    }
+
+    /**
+     * Unload all models, the next call to each pays loadMillis.
+     */
+    public void unload() {
+        loaded.clear();
+    }
+
+    /**
+     * @return Calls received.
+     */
+    public long getRequests() {
+        return requests.sum();
+    }
+
+    /**
+     * @return Errors injected.
+     */
+    public long getErrors() {
+        return errors.sum();
+    }
+
+    /**
+     * @return Tokens generated, not counting replays.
+     */
+    public long getTokens() {
+        return tokensSent.sum();
+    }
+
+    private interface Handler {
+
+        void handle(HttpExchange ex, JsonNode rq, SplittableRandom rnd) throws IOException, InterruptedException;
+    }
+
+    private void handle(HttpExchange ex, boolean inject, Handler h) {
+        requests.increment();
+        try {
+            byte[] body = ex.getRequestBody().readAllBytes();
+            Replays rp = replays.get(ex.getRequestURI().getPath());
+            JsonNode rq = body.length == 0 ? codec.mapper.createObjectNode() : codec.treeReader.readTree(body);
+            // the choices of the n-th call, whichever thread runs it
+            SplittableRandom rnd = new SplittableRandom(seed ^ (inject ? calls.getAndIncrement() : -1) * 0x9E3779B97F4A7C15L);
+            if (inject && errorRate > 0 && rnd.nextDouble() < errorRate) {
+                errors.increment();
+                error(ex, errorStatus, "stub: injected error");
+            } else if (null != rp) {
+                replay(ex, rp.pick(canonical(rq)));
+            } else {
+                h.handle(ex, rq, rnd);
+            }
+        } catch (JsonProcessingException jpe) {
+            try {
+                error(ex, 400, "invalid JSON: " + jpe.getOriginalMessage());
+            } catch (IOException gone) {
+                // client went away
+            }
+        } catch (IOException gone) {
+            // client went away
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        } finally {
+            ex.close();
+        }
+    }
+
+    private void error(HttpExchange ex, int status, String message) throws IOException {
+        byte[] body = codec.compactWriter.writeValueAsBytes(Collections.singletonMap("error", message));
+        ex.getResponseHeaders().set("Content-Type", JSON);
+        ex.sendResponseHeaders(status, body.length);
+        try (OutputStream out = ex.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private boolean known(String model) {
+        for (String m : models) {
+            if (m.equals(model) || m.equals(model + ":latest")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String text(JsonNode rq, String field) {
+        JsonNode n = rq.get(field);
+        return null == n || n.isNull() ? "" : n.asText();
+    }
+
+    /**
+     * Generate or chat.
+     */
+    private void complete(HttpExchange ex, JsonNode rq, SplittableRandom rnd, boolean chat) throws IOException, InterruptedException {
+        String model = text(rq, "model");
+        if (!known(model)) {
+            error(ex, 404, "model \"" + model + "\" not found, try pulling it first");
+            return;
+        }
+        JsonNode st = rq.get("stream");
+        boolean stream = null == st || st.isNull() || st.asBoolean();
+        int promptChars = 0;
+        if (chat) {
+            JsonNode msgs = rq.get("messages");
+            if (null != msgs) {
+                for (JsonNode m : msgs) {
+                    promptChars += text(m, "content").length() + 16;
+                }
+            }
+        } else {
+            promptChars = text(rq, "system").length() + text(rq, "prompt").length();
+        }
+        int promptTokens = (promptChars + 3) / 4;
+        int n = tokens;
+        JsonNode np = rq.path("options").get("num_predict");
+        if (null != np && np.asInt(-1) >= 0) {
+            n = np.asInt();
+        }
+        if (!chat && promptChars == 0 && !rq.has("images")) {
+            // no prompt just loads the model
+            n = 0;
+        }
+        int failAt = stream && streamErrorRate > 0 && rnd.nextDouble() < streamErrorRate ? n / 2 : -1;
+        int first = rnd.nextInt(WORDS.length);
+        Semaphore s = slots;
+        s.acquire();
+        try {
+            long start = System.nanoTime();
+            long loadNanos = load(model);
+            sleepUntil(System.nanoTime() + firstTokenMillis * 1_000_000);
+            long evalStart = System.nanoTime();
+            double rate = tokensPerSecond;
+            long interval = rate > 0 ? (long) (1E9 / rate) : 0;
+            StringBuilder all = new StringBuilder();
+            JsonGenerator g = null;
+            try {
+                for (int i = 0; i < n; i++) {
+                    sleepUntil(evalStart + (i + 1) * interval);
+                    String word = (i == 0 ? "" : " ") + WORDS[(first + i) % WORDS.length];
+                    tokensSent.increment();
+                    if (!stream) {
+                        all.append(word);
+                        continue;
+                    }
+                    if (null == g) {
+                        g = ndjson(ex);
+                    }
+                    if (i == failAt) {
+                        errors.increment();
+                        g.writeStartObject();
+                        g.writeStringField("error", "stub: injected error after " + i + " tokens");
+                        g.writeEndObject();
+                        g.writeRaw('\n');
+                        return;
+                    }
+                    frame(g, model, chat, word, false);
+                    g.writeRaw('\n');
+                    g.flush();
+                }
+                long end = System.nanoTime();
+                ByteArrayOutputStream single = null;
+                if (null == g) {
+                    if (stream) {
+                        g = ndjson(ex);
+                    } else {
+                        single = new ByteArrayOutputStream(256 + all.length());
+                        g = codec.mapper.getFactory().createGenerator(single);
+                    }
+                }
+                frame(g, model, chat, all.toString(), true);
+                g.writeStringField("done_reason", n == 0 && !chat ? "load" : "stop");
+                if (!chat) {
+                    g.writeArrayFieldStart("context");
+                    for (int i = 0; i < promptTokens + n; i++) {
+                        g.writeNumber(i < promptTokens ? 100 + i % 1000 : 3 + (first + i) % WORDS.length);
+                    }
+                    g.writeEndArray();
+                }
+                g.writeNumberField("total_duration", end - start);
+                g.writeNumberField("load_duration", loadNanos);
+                g.writeNumberField("prompt_eval_count", promptTokens);
+                g.writeNumberField("prompt_eval_duration", evalStart - start - loadNanos);
+                g.writeNumberField("eval_count", n);
+                g.writeNumberField("eval_duration", end - evalStart);
+                g.writeEndObject();
+                if (null != single) {
+                    g.close();
+                    g = null;
+                    ex.getResponseHeaders().set("Content-Type", JSON);
+                    ex.sendResponseHeaders(200, single.size());
+                    try (OutputStream out = ex.getResponseBody()) {
+                        single.writeTo(out);
+                    }
+                } else {
+                    g.writeRaw('\n');
+                }
+            } finally {
+                if (null != g) {
+                    g.close();
+                }
+            }
+        } finally {
+            s.release();
+            touch(model);
+        }
+    }
+
+    /**
+     * Headers for a stream; like Ollama they go out with the first frame.
+     */
+    private JsonGenerator ndjson(HttpExchange ex) throws IOException {
+        ex.getResponseHeaders().set("Content-Type", NDJSON);
+        ex.sendResponseHeaders(200, 0);
+        JsonGenerator g = codec.mapper.getFactory().createGenerator(ex.getResponseBody());
+        g.setRootValueSeparator(null);
+        return g;
+    }
+
+    /**
+     * Writes a frame, leaving it open if it is the final one.
+     */
+    private static void frame(JsonGenerator g, String model, boolean chat, String text, boolean done) throws IOException {
+        g.writeStartObject();
+        g.writeStringField("model", model);
+        g.writeStringField("created_at", Instant.now().toString());
+        if (chat) {
+            g.writeObjectFieldStart("message");
+            g.writeStringField("role", "assistant");
+            g.writeStringField("content", text);
+            g.writeEndObject();
+        } else {
+            g.writeStringField("response", text);
+        }
+        g.writeBooleanField("done", done);
+        if (!done) {
+            g.writeEndObject();
+        }
+    }
+
+    private static void sleepUntil(long deadline) throws InterruptedException {
+        for (long left = deadline - System.nanoTime(); left > 0; left = deadline - System.nanoTime()) {
+            LockSupport.parkNanos(left);
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+    }
+
+    /**
+     * A lock and not a monitor: callers wait out a load, virtual threads
+     * must not pin their carrier meanwhile.
+     */
+    private static final class Loaded {
+
+        final ReentrantLock lock = new ReentrantLock();
+        boolean loaded;
+        long expires;
+    }
+
+    /**
+     * Load the model if needed; calls arriving meanwhile wait for it.
+     *
+     * @return Time spent loading.
+     */
+    private long load(String model) throws InterruptedException {
+        Loaded m = loaded.computeIfAbsent(model, k -> new Loaded());
+        m.lock.lockInterruptibly();
+        try {
+            long now = System.nanoTime();
+            if (m.loaded && m.expires - now > 0) {
+                m.expires = now + keepAliveMillis * 1_000_000;
+                return 0;
+            }
+            sleepUntil(now + loadMillis * 1_000_000);
+            m.loaded = true;
+            long done = System.nanoTime();
+            m.expires = done + keepAliveMillis * 1_000_000;
+            return done - now;
+        } finally {
+            m.lock.unlock();
+        }
+    }
+
+    private void touch(String model) {
+        Loaded m = loaded.get(model);
+        if (null != m) {
+            m.lock.lock();
+            try {
+                m.expires = System.nanoTime() + keepAliveMillis * 1_000_000;
+            } finally {
+                m.lock.unlock();
+            }
+        }
+    }
+
+    private static String digest(String model) {
+        try {
+            byte[] d = MessageDigest.getInstance("SHA-256").digest(model.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder(64);
+            for (byte b : d) {
+                sb.append(Character.forDigit((b >> 4) & 15, 16)).append(Character.forDigit(b & 15, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private void details(JsonGenerator g) throws IOException {
+        g.writeObjectFieldStart("details");
+        g.writeStringField("format", "gguf");
+        g.writeStringField("family", "stub");
+        g.writeArrayFieldStart("families");
+        g.writeString("stub");
+        g.writeEndArray();
+        g.writeStringField("parameter_size", "1B");
+        g.writeStringField("quantization_level", "Q4_0");
+        g.writeEndObject();
+    }
+
+    private void tags(HttpExchange ex) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        try (JsonGenerator g = codec.mapper.getFactory().createGenerator(body)) {
+            g.writeStartObject();
+            g.writeArrayFieldStart("models");
+            for (String m : models) {
+                g.writeStartObject();
+                g.writeStringField("name", m);
+                g.writeStringField("model", m);
+                g.writeStringField("modified_at", "2024-01-01T00:00:00Z");
+                g.writeNumberField("size", 1L << 30);
+                g.writeStringField("digest", digest(m));
+                details(g);
+                g.writeEndObject();
+            }
+            g.writeEndArray();
+            g.writeEndObject();
+        }
+        send(ex, body);
+    }
+
+    private void show(HttpExchange ex, JsonNode rq) throws IOException {
+        String model = text(rq, "model");
+        if (model.isEmpty()) {
+            model = text(rq, "name");
+        }
+        if (!known(model)) {
+            error(ex, 404, "model '" + model + "' not found");
+            return;
+        }
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        try (JsonGenerator g = codec.mapper.getFactory().createGenerator(body)) {
+            g.writeStartObject();
+            g.writeStringField("modelfile", "FROM " + model + "\n");
+            g.writeStringField("parameters", "num_ctx 2048");
+            g.writeStringField("template", "{{ .Prompt }}");
+            details(g);
+            g.writeObjectFieldStart("model_info");
+            g.writeStringField("general.architecture", "stub");
+            g.writeNumberField("general.parameter_count", 1_000_000_000L);
+            g.writeNumberField("stub.context_length", 2048);
+            g.writeStringField("tokenizer.ggml.model", "gpt2");
+            if (rq.path("verbose").asBoolean()) {
+                // byte level, like the words in the answers
+                g.writeArrayFieldStart("tokenizer.ggml.tokens");
+                g.writeString("<unk>");
+                g.writeString("<s>");
+                g.writeString("</s>");
+                for (String w : WORDS) {
+                    g.writeString('\u0120' + w);
+                }
+                for (String w : WORDS) {
+                    g.writeString(w);
+                }
+                for (char c = 'a'; c <= 'z'; c++) {
+                    g.writeString(String.valueOf(c));
+                }
+                g.writeString("\u0120");
+                g.writeEndArray();
+            }
+            g.writeEndObject();
+            g.writeStringField("modified_at", "2024-01-01T00:00:00Z");
+            g.writeEndObject();
+        }
+        send(ex, body);
+    }
+
+    private static void send(HttpExchange ex, ByteArrayOutputStream body) throws IOException {
+        ex.getResponseHeaders().set("Content-Type", JSON);
+        ex.sendResponseHeaders(200, body.size());
+        try (OutputStream out = ex.getResponseBody()) {
+            body.writeTo(out);
+        }
+    }
+
+    /**
+     * A recorded request and what came back.
+     */
+    private static final class Recorded {
+
+        final long at;
+        final ArrayList<OllamaJava.JSONIO> frames = new ArrayList<>();
+
+        Recorded(long at) {
+            this.at = at;
+        }
+    }
+
+    /**
+     * The recorded exchanges of one endpoint.
+     */
+    private static final class Replays {
+
+        final ArrayList<Recorded> all = new ArrayList<>();
+        final HashMap<String, Recorded> exact = new HashMap<>();
+        final AtomicInteger next = new AtomicInteger();
+
+        Recorded pick(String request) {
+            Recorded ret = exact.get(request);
+            return null != ret ? ret : all.get(Math.floorMod(next.getAndIncrement(), all.size()));
+        }
+    }
+
+    private String canonical(JsonNode rq) throws JsonProcessingException {
+        return codec.compactWriter.writeValueAsString(rq);
+    }
+
+    /**
+     * Answer from a trace from now on, instead of making up answers, for the
+     * endpoints in it.
+     *
+     * @param trace Trace elements in order, like TraceBuffer.snapshot().
+     * @return Exchanges found.
+     * @throws IOException For reasons.
+     */
+    public int replay(Iterator<OllamaJava.JSONIO> trace) throws IOException {
+        HashMap<String, Replays> ret = new HashMap<>();
+        HashMap<String, Recorded> open = new HashMap<>();
+        while (trace.hasNext()) {
+            OllamaJava.JSONIO io = trace.next();
+            if (io.isOut) {
+                Recorded r = new Recorded(io.at);
+                open.put(io.endPoint, r);
+                Replays rp = ret.computeIfAbsent(io.endPoint, k -> new Replays());
+                rp.all.add(r);
+                try {
+                    rp.exact.putIfAbsent(canonical(codec.treeReader.readTree(io.json)), r);
+                } catch (JsonProcessingException cut) {
+                    // cut off, TraceBuffer.setMaxRequestBytes() was set
+                }
+            } else {
+                Recorded r = open.get(io.endPoint);
+                if (null != r) {
+                    r.frames.add(io);
+                }
+            }
+        }
+        int n = 0;
+        for (Iterator<Replays> it = ret.values().iterator(); it.hasNext();) {
+            Replays rp = it.next();
+            rp.all.removeIf(r -> r.frames.isEmpty());
+            rp.exact.values().removeIf(r -> r.frames.isEmpty());
+            if (rp.all.isEmpty()) {
+                it.remove();
+            }
+            n += rp.all.size();
+        }
+        replays = ret;
+        return n;
+    }
+
+    /**
+     * Answer from a trace journal from now on.
+     *
+     * @param journal The TraceJournal directory.
+     * @return Exchanges found.
+     * @throws IOException For reasons.
+     */
+    public int replay(Path journal) throws IOException {
+        try (TraceJournal.Reader rd = TraceJournal.read(journal)) {
+            return replay(rd);
+        }
+    }
+
+    /**
+     * Go back to made up answers.
+     */
+    public void stopReplay() {
+        replays = Collections.emptyMap();
+    }
+
+    private void replay(HttpExchange ex, Recorded r) throws IOException, InterruptedException {
+        double speed = replaySpeed;
+        long start = System.nanoTime();
+        if (r.frames.size() == 1) {
+            byte[] body = r.frames.get(0).json.getBytes(StandardCharsets.UTF_8);
+            if (speed > 0) {
+                sleepUntil(start + (long) ((r.frames.get(0).at - r.at) * 1E6 / speed));
+            }
+            ex.getResponseHeaders().set("Content-Type", JSON);
+            ex.sendResponseHeaders(200, body.length);
+            try (OutputStream out = ex.getResponseBody()) {
+                out.write(body);
+            }
+            return;
+        }
+        OutputStream out = null;
+        try {
+            for (OllamaJava.JSONIO f : r.frames) {
+                if (speed > 0) {
+                    sleepUntil(start + (long) ((f.at - r.at) * 1E6 / speed));
+                }
+                if (null == out) {
+                    ex.getResponseHeaders().set("Content-Type", NDJSON);
+                    ex.sendResponseHeaders(200, 0);
+                    out = ex.getResponseBody();
+                }
+                out.write(f.json.getBytes(StandardCharsets.UTF_8));
+                out.write('\n');
+                out.flush();
+            }
+        } finally {
+            if (null != out) {
+                out.close();
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * Turn off Nagle for the JDK HttpServer; without it the first frame waits
+     * for the ACK of the headers, 40ms with delayed ACKs, which skews time to
+     * first token. This sets the system property sun.net.httpserver.nodelay,
+     * so it applies to every HttpServer in the JVM, and only if called before
+     * the first one starts. main() and LoadGenerator --stub do; embedding code
+     * decides for itself.
+     */
+    public static void noDelay() {
+        if (null == System.getProperty("sun.net.httpserver.nodelay")) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+    }
+
+    /**
+     * Run a stub server until killed.
+     *
+     * @param args [port [tokens per second [trace journal directory]]].
+     * @throws Exception For reasons.
+     */
+    public static void main(String[] args) throws Exception {
+        noDelay();
+        StubServer stub = new StubServer(args.length > 0 ? Integer.parseInt(args[0]) : 11434);
+        if (args.length > 1) {
+            stub.tokensPerSecond = Double.parseDouble(args[1]);
+        }
+        if (args.length > 2) {
+            System.out.println("Replaying " + stub.replay(Paths.get(args[2])) + " exchanges");
+        }
+        System.out.println("Stub Ollama server on " + stub.config().hostOrIP + ':' + stub.getPort()
+                + ", " + stub.tokensPerSecond + " tokens/s");
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright (c) 2024 by Walter Stroebel and InfComTec.
+ */
+package nl.infcomtec.ollamajava;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Threads for blocking calls.
+ * <p>
+ * This is the Java 11 version: a cached pool of daemon platform threads. The
+ * multi-release jar has a Java 21 version in META-INF/versions/21 that starts
+ * a virtual thread per task instead.
+ *
+ * @author walter
+ */
+public final class TaskExecutors {
+
+    private static final AtomicInteger THREADS = new AtomicInteger();
+
+    private TaskExecutors() {
+    }
+
+    /**
+     * An executor that runs each task on its own (pooled) thread, for tasks
+     * that mostly wait for the network.
+     *
+     * @param name Thread name prefix.
+     * @return The executor, shut it down when done.
+     */
+    public static ExecutorService newPerTaskExecutor(String name) {
+        return Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, name + '-' + THREADS.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * @return True if newPerTaskExecutor() uses virtual threads.
+     */
+    public static boolean isVirtual() {
+        return false;
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright (c) 2024 by Walter Stroebel and InfComTec.
+ */
+package nl.infcomtec.ollamajava;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.JsonDeserializer;
+import com.fasterxml.jackson.databind.JsonSerializer;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import java.io.IOException;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * The context tokens of a generate call, as an int[].
+ * <p>
+ * A List&lt;Integer&gt; of 32k tokens is some 600kB of boxes and references,
+ * the int[] is 128kB. For keeping many contexts around, pack() makes a varint
+ * byte[] of about 2 to 3 bytes per token. The tokens are vocabulary ids in
+ * text order, not sorted, so delta encoding would not make them smaller.
+ * <p>
+ * Immutable. In JSON it is a plain array of numbers.
+ *
+ * @author walter
+ */
+@JsonSerialize(using = TokenContext.Serializer.class)
+@JsonDeserialize(using = TokenContext.Deserializer.class)
+public final class TokenContext extends AbstractList<Integer> implements RandomAccess {
+
+    public static final TokenContext EMPTY = new TokenContext(new int[0]);
+    private final int[] tokens;
+
+    private TokenContext(int[] tokens) {
+        this.tokens = tokens;
+    }
+
+    /**
+     * @param tokens The tokens, copied.
+     * @return The context.
+     */
+    public static TokenContext of(int... tokens) {
+        return tokens.length == 0 ? EMPTY : new TokenContext(tokens.clone());
+    }
+
+    /**
+     * @param tokens The tokens, copied.
+     * @param len How many of them.
+     * @return The context.
+     */
+    public static TokenContext of(int[] tokens, int len) {
+        return len == 0 ? EMPTY : new TokenContext(Arrays.copyOf(tokens, len));
+    }
+
+    /**
+     * @param tokens The tokens, copied; a TokenContext is returned as is.
+     * @return The context, null if tokens is null.
+     */
+    public static TokenContext of(List<Integer> tokens) {
+        if (null == tokens || tokens instanceof TokenContext) {
+            return (TokenContext) tokens;
+        }
+        int[] a = new int[tokens.size()];
+        for (int i = 0; i < a.length; i++) {
+            a[i] = tokens.get(i);
+        }
+        return new TokenContext(a);
+    }
+
+    @Override
+    public Integer get(int index) {
+        return tokens[index];
+    }
+
+    /**
+     * @param index Position.
+     * @return The token, unboxed.
+     */
+    public int getInt(int index) {
+        return tokens[index];
+    }
+
+    @Override
+    public int size() {
+        return tokens.length;
+    }
+
+    /**
+     * @return A copy of the tokens.
+     */
+    public int[] toIntArray() {
+        return tokens.clone();
+    }
+
+    /**
+     * Compact form: each token as an unsigned varint, 7 bits per byte.
+     *
+     * @return The packed tokens.
+     */
+    public byte[] pack() {
+        byte[] buf = new byte[tokens.length * 5];
+        int n = 0;
+        for (int t : tokens) {
+            while ((t & ~0x7F) != 0) {
+                buf[n++] = (byte) ((t & 0x7F) | 0x80);
+                t >>>= 7;
+            }
+            buf[n++] = (byte) t;
+        }
+        return Arrays.copyOf(buf, n);
+    }
+
+    /**
+     * The reverse of pack().
+     *
+     * @param packed From pack().
+     * @return The context.
+     */
+    public static TokenContext unpack(byte[] packed) {
+        int count = 0;
+        for (byte b : packed) {
+            if (b >= 0) {
+                count++;
+            }
+        }
+        int[] a = new int[count];
+        int i = 0;
+        int v = 0;
+        int shift = 0;
+        for (byte b : packed) {
+            v |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                a[i++] = v;
+                v = 0;
+                shift = 0;
+            } else {
+                shift += 7;
+            }
+        }
+        return count == 0 ? EMPTY : new TokenContext(a);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o instanceof TokenContext) {
+            return Arrays.equals(tokens, ((TokenContext) o).tokens);
+        }
+        return super.equals(o);
+    }
+
+    @Override
+    public int hashCode() {
+        // same as List.hashCode()
+        int h = 1;
+        for (int t : tokens) {
+            h = 31 * h + t;
+        }
+        return h;
+    }
+
+    /**
+     * Writes the array without boxing.
+     */
+    public static class Serializer extends JsonSerializer<TokenContext> {
+
+        @Override
+        public void serialize(TokenContext value, JsonGenerator gen, SerializerProvider serializers) throws IOException {
+            gen.writeArray(value.tokens, 0, value.tokens.length);
+        }
+    }
+
+    /**
+     * Reads the array without boxing.
+     */
+    public static class Deserializer extends JsonDeserializer<TokenContext> {
+
+        @Override
+        public TokenContext deserialize(JsonParser p, DeserializationContext ctxt) throws IOException {
+            return read(p);
+        }
+    }
+
+    /**
+     * Read an array of numbers, the parser is on START_ARRAY.
+     *
+     * @param p The parser.
+     * @return The context.
+     * @throws IOException If it is not an array of numbers.
+     */
+    static TokenContext read(JsonParser p) throws IOException {
+        if (!p.isExpectedStartArrayToken()) {
+            throw new IOException("Expected an array of tokens, got " + p.currentToken());
+        }
+        int[] a = new int[1024];
+        int n = 0;
+        JsonToken t;
+        while ((t = p.nextToken()) == JsonToken.VALUE_NUMBER_INT) {
+            if (n == a.length) {
+                a = Arrays.copyOf(a, n * 2);
+            }
+            a[n++] = p.getIntValue();
+        }
+        if (t != JsonToken.END_ARRAY) {
+            throw new IOException("Expected a token, got " + t);
+        }
+        return of(a, n);
+    }
+}
@@ -0,0 +1,578 @@
+/*
+ * Copyright (c) 2024 by Walter Stroebel and InfComTec.
+ */
+package nl.infcomtec.ollamajava;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.ToIntFunction;
+
+/**
+ * Client side token counting with the vocabulary of a model, as returned by
+ * OllamaJava.modelTokenList().
+ * <p>
+ * The vocabulary goes into a trie whose edges are kept in one open addressing
+ * hash table of (node, char) keys, so a lookup is a multiply and an array
+ * probe or two and there are no node objects. Text is cut by greedy longest
+ * match. The server uses the merge rules of the model, which are not in the
+ * token list, so counts can differ by a few percent; they are meant for
+ * sizing numCtx, chunking documents and the like, not for exact limits.
+ * <p>
+ * Two vocabulary styles are recognized: SentencePiece (llama, mistral, gemma)
+ * marks spaces as U+2581 and falls back to &lt;0xNN&gt; byte tokens; GPT-2
+ * byte level (llama 3, qwen) maps every UTF-8 byte to a printable char, the
+ * space being U+0120. Control tokens like &lt;s&gt; and &lt;|eot_id|&gt;
+ * are never matched in text.
+ * <p>
+ * Building the trie for a large vocabulary takes a few hundred milliseconds
+ * and the /api/show call to get it more; save() writes the tables to a file
+ * that load() maps back in without any parsing or hashing. Immutable and
+ * thread-safe.
+ *
+ * @author walter
+ */
+public class Tokenizer {
+
+    /**
+     * How the vocabulary spells text.
+     */
+    public enum Style {
+        /**
+         * Spaces as U+2581, byte fallback tokens.
+         */
+        SENTENCE_PIECE,
+        /**
+         * UTF-8 bytes as chars, space as U+0120.
+         */
+        BYTE_LEVEL,
+        /**
+         * Text as is.
+         */
+        PLAIN
+    }
+    private static final int MAGIC = 0x4F4A544B;
+    private static final int VERSION = 1;
+    private static final long PHI = 0x9E3779B97F4A7C15L;
+    private static final char SPM_SPACE = '\u2581';
+    /**
+     * GPT-2 bytes_to_unicode(): printable Latin-1 as is, the rest from 256 up.
+     */
+    private static final char[] BYTE_TO_CHAR = new char[256];
+    private static final byte[] CHAR_TO_BYTE = new byte[512];
+
+    static {
+        int n = 0;
+        for (int b = 0; b < 256; b++) {
+            boolean keep = (b >= '!' && b <= '~') || (b >= 0xA1 && b <= 0xAC) || (b >= 0xAE);
+            BYTE_TO_CHAR[b] = (char) (keep ? b : 256 + n++);
+            CHAR_TO_BYTE[BYTE_TO_CHAR[b]] = (byte) b;
+        }
+    }
+    public final Style style;
+    private final String[] vocab;
+    private final int[] byteToken;
+    private final int unknown;
+    private int shift;
+    private long[] keys;
+    private int[] next;
+    private int[] tokenAt;
+    private int nodes;
+
+    /**
+     * Build the index.
+     *
+     * @param vocab The tokens, in id order.
+     */
+    public Tokenizer(List<String> vocab) {
+        this.vocab = vocab.toArray(new String[0]);
+        this.style = detect(this.vocab);
+        this.byteToken = new int[256];
+        Arrays.fill(byteToken, -1);
+        int unk = -1;
+        shift = 64 - 10;
+        keys = new long[1 << 10];
+        next = new int[1 << 10];
+        tokenAt = new int[1024];
+        Arrays.fill(tokenAt, -1);
+        nodes = 1;
+        for (int id = 0; id < this.vocab.length; id++) {
+            String t = this.vocab[id];
+            if (null == t || t.isEmpty()) {
+                continue;
+            }
+            int b = byteFallback(t);
+            if (b >= 0) {
+                if (byteToken[b] < 0) {
+                    byteToken[b] = id;
+                }
+            } else if (isControl(t)) {
+                if (unk < 0 && t.equals("<unk>")) {
+                    unk = id;
+                }
+            } else {
+                insert(t, id);
+            }
+        }
+        unknown = unk;
+        tokenAt = Arrays.copyOf(tokenAt, nodes);
+    }
+
+    private Tokenizer(Style style, String[] vocab, int[] byteToken, int unknown,
+            int shift, long[] keys, int[] next, int[] tokenAt) {
+        this.style = style;
+        this.vocab = vocab;
+        this.byteToken = byteToken;
+        this.unknown = unknown;
+        this.shift = shift;
+        this.keys = keys;
+        this.next = next;
+        this.tokenAt = tokenAt;
+        this.nodes = tokenAt.length;
+    }
+
+    private static Style detect(String[] vocab) {
+        int spm = 0;
+        int gpt = 0;
+        for (String t : vocab) {
+            if (null != t && !t.isEmpty()) {
+                char c = t.charAt(0);
+                if (c == SPM_SPACE) {
+                    spm++;
+                } else if (c == BYTE_TO_CHAR[' ']) {
+                    gpt++;
+                }
+            }
+        }
+        if (spm > gpt) {
+            return Style.SENTENCE_PIECE;
+        }
+        return gpt > 0 ? Style.BYTE_LEVEL : Style.PLAIN;
+    }
+
+    /**
+     * @return The byte of a "&lt;0xNN&gt;" token, else -1.
+     */
+    private static int byteFallback(String t) {
+        if (t.length() == 6 && t.startsWith("<0x") && t.charAt(5) == '>') {
+            int hi = Character.digit(t.charAt(3), 16);
+            int lo = Character.digit(t.charAt(4), 16);
+            if (hi >= 0 && lo >= 0) {
+                return hi << 4 | lo;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isControl(String t) {
+        if (t.length() > 4 && t.startsWith("<|") && t.endsWith("|>")) {
+            return true;
+        }
+        return t.equals("<s>") || t.equals("</s>") || t.equals("<unk>") || t.equals("<pad>");
+    }
+
+    private void insert(String t, int id) {
+        int node = 0;
+        for (int i = 0; i < t.length(); i++) {
+            char c = t.charAt(i);
+            int child = child(node, c);
+            if (child < 0) {
+                if (2 * nodes >= keys.length) {
+                    rehash();
+                }
+                if (nodes == tokenAt.length) {
+                    int old = tokenAt.length;
+                    tokenAt = Arrays.copyOf(tokenAt, old * 2);
+                    Arrays.fill(tokenAt, old, tokenAt.length, -1);
+                }
+                child = nodes++;
+                put(node, c, child);
+            }
+            node = child;
+        }
+        // the first of duplicate spellings wins, like the server
+        if (tokenAt[node] < 0) {
+            tokenAt[node] = id;
+        }
+    }
+
+    private void put(int node, char c, int child) {
+        long k = key(node, c);
+        int mask = keys.length - 1;
+        int i = (int) ((k * PHI) >>> shift);
+        while (keys[i] != 0) {
+            i = (i + 1) & mask;
+        }
+        keys[i] = k;
+        next[i] = child;
+    }
+
+    private void rehash() {
+        long[] oldKeys = keys;
+        int[] oldNext = next;
+        keys = new long[oldKeys.length * 2];
+        next = new int[oldKeys.length * 2];
+        shift--;
+        int mask = keys.length - 1;
+        for (int j = 0; j < oldKeys.length; j++) {
+            long k = oldKeys[j];
+            if (k != 0) {
+                int i = (int) ((k * PHI) >>> shift);
+                while (keys[i] != 0) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = k;
+                next[i] = oldNext[j];
+            }
+        }
+    }
+
+    private static long key(int node, char c) {
+        // + 1 so that 0 marks a free slot
+        return ((long) node << 16 | c) + 1;
+    }
+
+    private int child(int node, char c) {
+        long k = key(node, c);
+        long[] ks = keys;
+        int mask = ks.length - 1;
+        int i = (int) ((k * PHI) >>> shift);
+        for (;;) {
+            long x = ks[i];
+            if (x == k) {
+                return next[i];
+            }
+            if (x == 0) {
+                return -1;
+            }
+            i = (i + 1) & mask;
+        }
+    }
+
+    /**
+     * Count the tokens of a text.
+     *
+     * @param text The text.
+     * @return Number of tokens.
+     */
+    public int count(CharSequence text) {
+        char[] s = symbols(text);
+        return segment(s, null);
+    }
+
+    /**
+     * Cut a text into tokens.
+     *
+     * @param text The text.
+     * @return Token ids; -1 for a piece that is not in the vocabulary, if it
+     * has no unknown token.
+     */
+    public int[] encode(CharSequence text) {
+        char[] s = symbols(text);
+        Ids out = new Ids(s.length / 3 + 16);
+        int n = segment(s, out);
+        return Arrays.copyOf(out.ids, n);
+    }
+
+    /**
+     * Turn tokens back into text.
+     *
+     * @param ids Token ids, as from encode() or Response.context.
+     * @return The text; control tokens are left out.
+     */
+    public String decode(int... ids) {
+        byte[] buf = new byte[ids.length * 8 + 16];
+        int n = 0;
+        for (int id : ids) {
+            if (id < 0 || id >= vocab.length || null == vocab[id]) {
+                continue;
+            }
+            String t = vocab[id];
+            if (buf.length - n < 3 * t.length()) {
+                buf = Arrays.copyOf(buf, 2 * buf.length + 3 * t.length());
+            }
+            int b = style == Style.SENTENCE_PIECE ? byteFallback(t) : -1;
+            if (b >= 0) {
+                buf[n++] = (byte) b;
+            } else if (isControl(t)) {
+                continue;
+            } else if (style == Style.BYTE_LEVEL) {
+                for (int i = 0; i < t.length(); i++) {
+                    char c = t.charAt(i);
+                    buf[n++] = c < CHAR_TO_BYTE.length ? CHAR_TO_BYTE[c] : (byte) '?';
+                }
+            } else {
+                byte[] u = (style == Style.SENTENCE_PIECE ? t.replace(SPM_SPACE, ' ') : t).getBytes(StandardCharsets.UTF_8);
+                System.arraycopy(u, 0, buf, n, u.length);
+                n += u.length;
+            }
+        }
+        int from = style == Style.SENTENCE_PIECE && n > 0 && buf[0] == ' ' ? 1 : 0;
+        return new String(buf, from, n - from, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * A counter for Conversation: the content plus a few tokens for the role
+     * and separators.
+     *
+     * @return The counter.
+     */
+    public ToIntFunction<Message> messageCounter() {
+        return m -> 4 + (null == m.content ? 0 : count(m.content));
+    }
+
+    /**
+     * @return Size of the vocabulary.
+     */
+    public int getVocabSize() {
+        return vocab.length;
+    }
+
+    /**
+     * @param id A token id.
+     * @return The token as spelled in the vocabulary.
+     */
+    public String getToken(int id) {
+        return vocab[id];
+    }
+
+    /**
+     * The text spelled in the alphabet of the vocabulary.
+     */
+    private char[] symbols(CharSequence text) {
+        int len = text.length();
+        switch (style) {
+            case SENTENCE_PIECE: {
+                char[] s = new char[len + 1];
+                s[0] = SPM_SPACE;
+                for (int i = 0; i < len; i++) {
+                    char c = text.charAt(i);
+                    s[i + 1] = c == ' ' ? SPM_SPACE : c;
+                }
+                return s;
+            }
+            case BYTE_LEVEL: {
+                char[] s = new char[len];
+                int n = 0;
+                for (int i = 0; i < len; i++) {
+                    char c = text.charAt(i);
+                    if (c < 0x80) {
+                        s[n++] = BYTE_TO_CHAR[c];
+                        continue;
+                    }
+                    // room for this one as 4 bytes and the rest as ASCII
+                    if (s.length < n + 4 + (len - i)) {
+                        s = Arrays.copyOf(s, Math.max(2 * s.length, n + 4 + (len - i)));
+                    }
+                    int cp = c;
+                    if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(text.charAt(i + 1))) {
+                        cp = Character.toCodePoint(c, text.charAt(++i));
+                    }
+                    n = utf8(cp, s, n);
+                }
+                return n == s.length ? s : Arrays.copyOf(s, n);
+            }
+            default: {
+                char[] s = new char[len];
+                for (int i = 0; i < len; i++) {
+                    s[i] = text.charAt(i);
+                }
+                return s;
+            }
+        }
+    }
+
+    /**
+     * Append the UTF-8 bytes of a code point as byte level chars.
+     */
+    private static int utf8(int cp, char[] s, int n) {
+        if (cp < 0x800) {
+            s[n++] = BYTE_TO_CHAR[0xC0 | cp >> 6];
+        } else if (cp < 0x10000) {
+            s[n++] = BYTE_TO_CHAR[0xE0 | cp >> 12];
+            s[n++] = BYTE_TO_CHAR[0x80 | (cp >> 6 & 0x3F)];
+        } else {
+            s[n++] = BYTE_TO_CHAR[0xF0 | cp >> 18];
+            s[n++] = BYTE_TO_CHAR[0x80 | (cp >> 12 & 0x3F)];
+            s[n++] = BYTE_TO_CHAR[0x80 | (cp >> 6 & 0x3F)];
+        }
+        s[n++] = BYTE_TO_CHAR[0x80 | (cp & 0x3F)];
+        return n;
+    }
+
+    /**
+     * Greedy longest match.
+     *
+     * @param s The symbols.
+     * @param out Where to put the ids, null to only count.
+     * @return Number of tokens.
+     */
+    private int segment(char[] s, Ids out) {
+        int count = 0;
+        int i = 0;
+        while (i < s.length) {
+            int node = 0;
+            int best = -1;
+            int end = i;
+            for (int j = i; j < s.length; j++) {
+                node = child(node, s[j]);
+                if (node < 0) {
+                    break;
+                }
+                int t = tokenAt[node];
+                if (t >= 0) {
+                    best = t;
+                    end = j + 1;
+                }
+            }
+            if (best >= 0) {
+                count++;
+                if (null != out) {
+                    out.add(best);
+                }
+                i = end;
+            } else if (style == Style.SENTENCE_PIECE) {
+                // no piece for this char: one token per UTF-8 byte
+                int cp = Character.codePointAt(s, i);
+                i += Character.charCount(cp);
+                byte[] u = new String(Character.toChars(cp)).getBytes(StandardCharsets.UTF_8);
+                for (byte b : u) {
+                    count++;
+                    if (null != out) {
+                        int t = byteToken[b & 0xFF];
+                        out.add(t >= 0 ? t : unknown);
+                    }
+                }
+            } else {
+                count++;
+                if (null != out) {
+                    out.add(unknown);
+                }
+                i++;
+            }
+        }
+        return count;
+    }
+
+    private static final class Ids {
+
+        int[] ids;
+        int n;
+
+        Ids(int capacity) {
+            ids = new int[capacity];
+        }
+
+        void add(int id) {
+            if (n == ids.length) {
+                ids = Arrays.copyOf(ids, n * 2);
+            }
+            ids[n++] = id;
+        }
+    }
+
+    /**
+     * Write the vocabulary and the index to a file.
+     *
+     * @param file The file, replaced if it exists.
+     * @throws IOException If it cannot be written.
+     */
+    public void save(Path file) throws IOException {
+        try (OutputStream os = Files.newOutputStream(file);
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os, 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(style.ordinal());
+            out.writeInt(unknown);
+            out.writeInt(shift);
+            out.writeInt(keys.length);
+            out.writeInt(tokenAt.length);
+            out.writeInt(vocab.length);
+            for (int t : byteToken) {
+                out.writeInt(t);
+            }
+            for (long k : keys) {
+                out.writeLong(k);
+            }
+            for (int c : next) {
+                out.writeInt(c);
+            }
+            for (int t : tokenAt) {
+                out.writeInt(t);
+            }
+            for (String t : vocab) {
+                if (null == t) {
+                    out.writeInt(-1);
+                } else {
+                    byte[] u = t.getBytes(StandardCharsets.UTF_8);
+                    out.writeInt(u.length);
+                    out.write(u);
+                }
+            }
+        }
+    }
+
+    /**
+     * Read a file written by save().
+     *
+     * @param file The file.
+     * @return The tokenizer.
+     * @throws IOException If it cannot be read or is not a tokenizer file.
+     */
+    public static Tokenizer load(Path file) throws IOException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            if (buf.remaining() < 32 || buf.getInt() != MAGIC || buf.getInt() != VERSION) {
+                throw new IOException(file + " is not a tokenizer file");
+            }
+            Style style = Style.values()[buf.getInt()];
+            int unknown = buf.getInt();
+            int shift = buf.getInt();
+            int slots = buf.getInt();
+            int nodes = buf.getInt();
+            int size = buf.getInt();
+            int[] byteToken = new int[256];
+            buf.asIntBuffer().get(byteToken);
+            buf.position(buf.position() + 4 * 256);
+            long[] keys = new long[slots];
+            buf.asLongBuffer().get(keys);
+            buf.position(buf.position() + 8 * slots);
+            int[] next = new int[slots];
+            buf.asIntBuffer().get(next);
+            buf.position(buf.position() + 4 * slots);
+            int[] tokenAt = new int[nodes];
+            buf.asIntBuffer().get(tokenAt);
+            buf.position(buf.position() + 4 * nodes);
+            String[] vocab = new String[size];
+            byte[] u = new byte[256];
+            for (int i = 0; i < size; i++) {
+                int len = buf.getInt();
+                if (len >= 0) {
+                    if (len > u.length) {
+                        u = new byte[len];
+                    }
+                    buf.get(u, 0, len);
+                    vocab[i] = new String(u, 0, len, StandardCharsets.UTF_8);
+                }
+            }
+            return new Tokenizer(style, vocab, byteToken, unknown, shift, keys, next, tokenAt);
+        } catch (RuntimeException ex) {
+            // BufferUnderflowException and the like: a truncated file
+            throw new IOException(file + " is not a valid tokenizer file", ex);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Tokenizer{style=" + style + ", vocab=" + vocab.length + ", nodes=" + nodes + '}';
+    }
+}
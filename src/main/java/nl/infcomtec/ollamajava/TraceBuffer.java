@@ -0,0 +1,347 @@
+/*
+ * Copyright (c) 2024 by Walter Stroebel and InfComTec.
+ */
+package nl.infcomtec.ollamajava;
+
+import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Fixed size ring buffer for call traces.
+ * <p>
+ * Holds at most capacity entries and about maxBytes of JSON; the oldest
+ * entries make room for new ones. Appending takes no lock, concurrent streams
+ * only meet on a few atomic counters. What was dropped, and why, is counted.
+ *
+ * @author walter
+ */
+public class TraceBuffer implements TraceSink {
+
+    /**
+     * Default number of entries.
+     */
+    public static final int DEFAULT_CAPACITY = 4096;
+    /**
+     * Default size limit, 16MB.
+     */
+    public static final long DEFAULT_MAX_BYTES = 16L << 20;
+
+    private final int capacity;
+    private final long maxBytes;
+    private final AtomicReferenceArray<Slot> slots;
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong added = new AtomicLong();
+    private final AtomicLong evicted = new AtomicLong();
+    private final AtomicLong evictedForBytes = new AtomicLong();
+    private final AtomicLong tooLarge = new AtomicLong();
+    private final AtomicLong sampledOut = new AtomicLong();
+    private final AtomicLong filtered = new AtomicLong();
+    private volatile int sampleEvery = 1;
+    private volatile boolean requestsOnly;
+    private volatile int maxRequestBytes;
+
+    public TraceBuffer() {
+        this(DEFAULT_CAPACITY, DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * @param capacity Maximum number of entries.
+     * @param maxBytes Maximum total size, counting one byte per character.
+     */
+    public TraceBuffer(int capacity, long maxBytes) {
+        if (capacity < 1 || maxBytes < 1) {
+            throw new IllegalArgumentException("Capacity and size must be positive");
+        }
+        this.capacity = capacity;
+        this.maxBytes = maxBytes;
+        this.slots = new AtomicReferenceArray<>(capacity);
+    }
+
+    /**
+     * Only trace one in so many calls; all entries of a traced call are kept
+     * together.
+     *
+     * @param n 1 to trace all calls, 0 to trace none.
+     */
+    public void setSampleEvery(int n) {
+        sampleEvery = Math.max(0, n);
+    }
+
+    /**
+     * Keep only the requests, not the responses.
+     *
+     * @param requestsOnly True to drop responses.
+     */
+    public void setRequestsOnly(boolean requestsOnly) {
+        this.requestsOnly = requestsOnly;
+    }
+
+    /**
+     * Keep only the start of large request bodies, off by default. The body
+     * is copied to the trace while it is streamed to the server; a cut off
+     * body ends in "..." and is no longer valid JSON. Trace sinks always get
+     * the whole body.
+     *
+     * @param maxRequestBytes Bytes to keep, 0 for all.
+     */
+    public void setMaxRequestBytes(int maxRequestBytes) {
+        this.maxRequestBytes = Math.max(0, maxRequestBytes);
+    }
+
+    /**
+     * @return Bytes kept of a request body, 0 for all.
+     */
+    public int getMaxRequestBytes() {
+        return maxRequestBytes;
+    }
+
+    /**
+     * Called once at the start of each call.
+     *
+     * @return True if this call should be traced.
+     */
+    public boolean sampleCall() {
+        int n = sampleEvery;
+        if (n == 1) {
+            return true;
+        }
+        if (n > 0 && calls.getAndIncrement() % n == 0) {
+            return true;
+        }
+        sampledOut.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Check before building the text of a response.
+     *
+     * @return True if responses are kept.
+     */
+    public boolean wantsResponses() {
+        return !requestsOnly;
+    }
+
+    @Override
+    public void accept(OllamaJava.JSONIO io) {
+        add(io);
+    }
+
+    /**
+     * Append an entry, evicting the oldest as needed.
+     *
+     * @param io The entry.
+     */
+    public void add(OllamaJava.JSONIO io) {
+        if (!io.isOut && requestsOnly) {
+            filtered.incrementAndGet();
+            return;
+        }
+        int size = sizeOf(io);
+        if (size > maxBytes) {
+            tooLarge.incrementAndGet();
+            return;
+        }
+        long seq = tail.getAndIncrement();
+        Slot slot = new Slot(seq, io, size);
+        int i = index(seq);
+        while (true) {
+            Slot cur = slots.get(i);
+            if (null != cur && cur.seq > seq) {
+                // a writer that lapped us already took this slot
+                evicted.incrementAndGet();
+                return;
+            }
+            if (slots.compareAndSet(i, cur, slot)) {
+                if (null != cur) {
+                    bytes.addAndGet(-cur.size);
+                    evicted.incrementAndGet();
+                }
+                break;
+            }
+        }
+        added.incrementAndGet();
+        long total = bytes.addAndGet(size);
+        if (seq < head.get() && slots.compareAndSet(i, slot, null)) {
+            // trimmed or cleared past us while we were on our way, no one
+            // would ever see or remove this entry
+            bytes.addAndGet(-size);
+            evictedForBytes.incrementAndGet();
+            return;
+        }
+        if (total > maxBytes) {
+            trimBytes(seq);
+        }
+    }
+
+    private void trimBytes(long newest) {
+        while (bytes.get() > maxBytes) {
+            long h = head.get();
+            long floor = tail.get() - capacity;
+            if (h < floor) {
+                head.compareAndSet(h, floor);
+                continue;
+            }
+            if (h >= newest) {
+                return;
+            }
+            if (head.compareAndSet(h, h + 1)) {
+                Slot cur = slots.get(index(h));
+                if (null != cur && cur.seq == h && slots.compareAndSet(index(h), cur, null)) {
+                    bytes.addAndGet(-cur.size);
+                    evictedForBytes.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    /**
+     * Copy of the entries, oldest first.
+     *
+     * @param andClear If true, the copied entries are removed.
+     * @return The entries.
+     */
+    public LinkedList<OllamaJava.JSONIO> snapshot(boolean andClear) {
+        LinkedList<OllamaJava.JSONIO> ret = new LinkedList<>();
+        long t = tail.get();
+        for (long seq = Math.max(head.get(), t - capacity); seq < t; seq++) {
+            int i = index(seq);
+            Slot cur = slots.get(i);
+            if (null != cur && cur.seq == seq) {
+                if (!andClear) {
+                    ret.add(cur.io);
+                } else if (slots.compareAndSet(i, cur, null)) {
+                    bytes.addAndGet(-cur.size);
+                    ret.add(cur.io);
+                }
+            }
+        }
+        if (andClear) {
+            advanceHead(t);
+        }
+        return ret;
+    }
+
+    /**
+     * Remove all entries.
+     */
+    public void clear() {
+        snapshot(true);
+    }
+
+    /**
+     * Remove entries older than a point in time.
+     *
+     * @param before This point in time in milliseconds.
+     */
+    public void clearBefore(long before) {
+        long t = tail.get();
+        for (long seq = Math.max(head.get(), t - capacity); seq < t; seq++) {
+            int i = index(seq);
+            Slot cur = slots.get(i);
+            if (null != cur && cur.seq == seq && cur.io.at < before && slots.compareAndSet(i, cur, null)) {
+                bytes.addAndGet(-cur.size);
+            }
+        }
+    }
+
+    private void advanceHead(long to) {
+        long h;
+        while ((h = head.get()) < to && !head.compareAndSet(h, to)) {
+        }
+    }
+
+    private int index(long seq) {
+        return (int) (seq % capacity);
+    }
+
+    private static int sizeOf(OllamaJava.JSONIO io) {
+        return 32 + (null == io.json ? 0 : io.json.length()) + (null == io.endPoint ? 0 : io.endPoint.length());
+    }
+
+    /**
+     * @return Maximum number of entries.
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return Maximum total size.
+     */
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * @return Approximate size of the entries held.
+     */
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    /**
+     * @return Entries appended since creation.
+     */
+    public long getAdded() {
+        return added.get();
+    }
+
+    /**
+     * @return Entries overwritten because the buffer was full.
+     */
+    public long getEvicted() {
+        return evicted.get();
+    }
+
+    /**
+     * @return Entries removed to stay under maxBytes.
+     */
+    public long getEvictedForBytes() {
+        return evictedForBytes.get();
+    }
+
+    /**
+     * @return Entries dropped because they alone exceed maxBytes.
+     */
+    public long getTooLarge() {
+        return tooLarge.get();
+    }
+
+    /**
+     * @return Calls not traced due to sampling.
+     */
+    public long getSampledOut() {
+        return sampledOut.get();
+    }
+
+    /**
+     * @return Responses dropped because only requests are kept.
+     */
+    public long getFiltered() {
+        return filtered.get();
+    }
+
+    @Override
+    public String toString() {
+        return "TraceBuffer{capacity=" + capacity + ", maxBytes=" + maxBytes + ", bytes=" + bytes
+                + ", added=" + added + ", evicted=" + evicted + ", evictedForBytes=" + evictedForBytes
+                + ", tooLarge=" + tooLarge + ", sampledOut=" + sampledOut + ", filtered=" + filtered + '}';
+    }
+
+    private static class Slot {
+
+        final long seq;
+        final OllamaJava.JSONIO io;
+        final int size;
+
+        Slot(long seq, OllamaJava.JSONIO io, int size) {
+            this.seq = seq;
+            this.io = io;
+            this.size = size;
+        }
+    }
+}
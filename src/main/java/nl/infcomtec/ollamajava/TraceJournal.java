@@ -0,0 +1,455 @@
+/*
+ * Copyright (c) 2024 by Walter Stroebel and InfComTec.
+ */
+package nl.infcomtec.ollamajava;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only trace journal on disk.
+ * <p>
+ * accept() only queues the trace element; a background thread writes them in
+ * batches to numbered segment files ("trace-00000001.ojt" etc.) in one
+ * directory, starting a new segment when the current one reaches the segment
+ * size. If the queue is full the element is dropped and counted, the request
+ * path never waits for the disk.
+ * <p>
+ * Segment layout: the magic "OJT1", then records of
+ * [int length][int crc32][long at][byte isOut][int endpoint length][endpoint
+ * UTF-8][JSON UTF-8], where length and crc32 cover everything after the crc.
+ * A torn record at the end of a segment (crash) is ignored by the reader.
+ *
+ * @author walter
+ */
+public class TraceJournal implements TraceSink, Closeable {
+
+    /**
+     * Default segment size, 64MB.
+     */
+    public static final long DEFAULT_SEGMENT_BYTES = 64L << 20;
+    /**
+     * Default queue length.
+     */
+    public static final int DEFAULT_QUEUE = 65536;
+    private static final byte[] MAGIC = {'O', 'J', 'T', '1'};
+    private static final String PREFIX = "trace-";
+    private static final String SUFFIX = ".ojt";
+    private static final int HEADER = 8;
+    private static final int BATCH = 1024;
+    /**
+     * Write buffer size; a larger record gets a buffer of its own for one
+     * batch.
+     */
+    private static final int BUFFER = 1 << 20;
+
+    private final Path dir;
+    private final long segmentBytes;
+    private final int maxSegments;
+    private final ArrayBlockingQueue<OllamaJava.JSONIO> queue;
+    private final Thread writer;
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private final AtomicLong segments = new AtomicLong();
+    private volatile boolean running = true;
+    private volatile IOException failure;
+    private FileChannel channel;
+    private long segmentSize;
+    private int segmentNumber;
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER);
+
+    /**
+     * Journal with default segment size and queue length, keeping all
+     * segments.
+     *
+     * @param dir Directory, created if needed.
+     * @throws IOException For reasons.
+     */
+    public TraceJournal(Path dir) throws IOException {
+        this(dir, DEFAULT_SEGMENT_BYTES, 0, DEFAULT_QUEUE);
+    }
+
+    /**
+     * Full control.
+     *
+     * @param dir Directory, created if needed.
+     * @param segmentBytes Start a new segment at about this size.
+     * @param maxSegments Delete the oldest segments beyond this many, 0 to
+     * keep all.
+     * @param queueLength Trace elements waiting to be written.
+     * @throws IOException For reasons.
+     */
+    public TraceJournal(Path dir, long segmentBytes, int maxSegments, int queueLength) throws IOException {
+        if (segmentBytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Segments are limited to 2GB");
+        }
+        this.dir = Files.createDirectories(dir);
+        this.segmentBytes = segmentBytes;
+        this.maxSegments = maxSegments;
+        this.queue = new ArrayBlockingQueue<>(queueLength);
+        List<Path> existing = segments(dir);
+        if (!existing.isEmpty()) {
+            segmentNumber = numberOf(existing.get(existing.size() - 1));
+        }
+        rotate();
+        writer = new Thread(this::writeLoop, "OllamaJava-trace-journal");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    @Override
+    public void accept(OllamaJava.JSONIO io) {
+        if (!running || !queue.offer(io)) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    private void writeLoop() {
+        ArrayList<OllamaJava.JSONIO> batch = new ArrayList<>(BATCH);
+        while (running || !queue.isEmpty()) {
+            try {
+                OllamaJava.JSONIO first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (null == first) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, BATCH - 1);
+                write(batch);
+            } catch (InterruptedException ex) {
+                running = false;
+            } catch (IOException ex) {
+                failure = ex;
+                dropped.addAndGet(batch.size());
+            } catch (RuntimeException ex) {
+                // a bug, but the producers keep queueing: stay alive
+                failure = new IOException("Trace journal writer failed", ex);
+                dropped.addAndGet(batch.size());
+                buffer.clear();
+            }
+            batch.clear();
+            if (buffer.capacity() > BUFFER) {
+                // back to normal after an oversize record
+                buffer = ByteBuffer.allocateDirect(BUFFER);
+            }
+        }
+    }
+
+    private void write(List<OllamaJava.JSONIO> batch) throws IOException {
+        CRC32 crc = new CRC32();
+        for (OllamaJava.JSONIO io : batch) {
+            byte[] ep = null == io.endPoint ? new byte[0] : io.endPoint.getBytes(StandardCharsets.UTF_8);
+            byte[] json = null == io.json ? new byte[0] : io.json.getBytes(StandardCharsets.UTF_8);
+            int length = 8 + 1 + 4 + ep.length + json.length;
+            if (buffer.remaining() < HEADER + length) {
+                flush();
+                if (buffer.capacity() < HEADER + length) {
+                    buffer = ByteBuffer.allocateDirect(HEADER + length);
+                }
+            }
+            int start = buffer.position();
+            buffer.putInt(length).putInt(0);
+            buffer.putLong(io.at).put((byte) (io.isOut ? 1 : 0)).putInt(ep.length).put(ep).put(json);
+            ByteBuffer payload = buffer.duplicate();
+            payload.position(start + HEADER).limit(start + HEADER + length);
+            crc.reset();
+            crc.update(payload);
+            buffer.putInt(start + 4, (int) crc.getValue());
+        }
+        flush();
+        written.addAndGet(batch.size());
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        int n = buffer.remaining();
+        try {
+            if (n > 0 && segmentSize + n > segmentBytes && segmentSize > MAGIC.length) {
+                rotate();
+            }
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } catch (IOException ex) {
+            // drop the batch, and since part of it may be in the file, go on
+            // in a new segment so the next record starts on a clean boundary
+            buffer.clear();
+            try {
+                rotate();
+            } catch (IOException again) {
+                ex.addSuppressed(again);
+            }
+            throw ex;
+        }
+        buffer.clear();
+        segmentSize += n;
+        bytesWritten.addAndGet(n);
+    }
+
+    private void rotate() throws IOException {
+        if (null != channel) {
+            channel.close();
+        }
+        segmentNumber++;
+        Path seg = dir.resolve(String.format("%s%08d%s", PREFIX, segmentNumber, SUFFIX));
+        channel = FileChannel.open(seg, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        channel.write(ByteBuffer.wrap(MAGIC));
+        segmentSize = MAGIC.length;
+        segments.incrementAndGet();
+        if (maxSegments > 0) {
+            List<Path> all = segments(dir);
+            for (int i = 0; i < all.size() - maxSegments; i++) {
+                Files.deleteIfExists(all.get(i));
+            }
+        }
+    }
+
+    /**
+     * Write what is queued, then close the current segment.
+     *
+     * @throws IOException If writing failed at some point.
+     */
+    @Override
+    public void close() throws IOException {
+        running = false;
+        try {
+            writer.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+        if (null != failure) {
+            throw failure;
+        }
+    }
+
+    /**
+     * @return Trace elements written.
+     */
+    public long getWritten() {
+        return written.get();
+    }
+
+    /**
+     * @return Trace elements dropped, queue full or write failed.
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * @return Bytes written, all segments.
+     */
+    public long getBytesWritten() {
+        return bytesWritten.get();
+    }
+
+    /**
+     * @return Segments started by this journal.
+     */
+    public long getSegments() {
+        return segments.get();
+    }
+
+    /**
+     * The last write error, if any.
+     *
+     * @return Null if all went well.
+     */
+    public IOException getFailure() {
+        return failure;
+    }
+
+    /**
+     * The segment files in a directory, oldest first.
+     *
+     * @param dir The journal directory.
+     * @return Sorted list.
+     * @throws IOException For reasons.
+     */
+    public static List<Path> segments(Path dir) throws IOException {
+        ArrayList<Path> ret = new ArrayList<>();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, PREFIX + "*" + SUFFIX)) {
+            for (Path p : ds) {
+                ret.add(p);
+            }
+        }
+        Collections.sort(ret);
+        return ret;
+    }
+
+    private static int numberOf(Path seg) {
+        String name = seg.getFileName().toString();
+        return Integer.parseInt(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+    }
+
+    /**
+     * Iterate over all trace elements in a journal directory, oldest first.
+     * Segments are memory-mapped one at a time.
+     *
+     * @param dir The journal directory.
+     * @return A reader, close it when done.
+     * @throws IOException For reasons.
+     */
+    public static Reader read(Path dir) throws IOException {
+        return new Reader(segments(dir));
+    }
+
+    /**
+     * Feed a journal to a sink, for instance an OllamaJava trace buffer or a
+     * test.
+     *
+     * @param dir The journal directory.
+     * @param sink Where to send the elements.
+     * @param speed 0 for as fast as possible, 1 for the original pace, 2 for
+     * twice as fast, etc.
+     * @return Number of elements replayed.
+     * @throws IOException For reasons.
+     * @throws InterruptedException If interrupted while pacing.
+     */
+    public static long replay(Path dir, TraceSink sink, double speed) throws IOException, InterruptedException {
+        long n = 0;
+        long first = 0;
+        long started = System.currentTimeMillis();
+        try (Reader rd = read(dir)) {
+            while (rd.hasNext()) {
+                OllamaJava.JSONIO io = rd.next();
+                if (0 == n) {
+                    first = io.at;
+                } else if (speed > 0) {
+                    long due = started + (long) ((io.at - first) / speed);
+                    long wait = due - System.currentTimeMillis();
+                    if (wait > 0) {
+                        Thread.sleep(wait);
+                    }
+                }
+                sink.accept(io);
+                n++;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Reads journal segments.
+     */
+    public static class Reader implements Iterator<OllamaJava.JSONIO>, Closeable {
+
+        private final Iterator<Path> segs;
+        private final CRC32 crc = new CRC32();
+        private MappedByteBuffer map;
+        private OllamaJava.JSONIO next;
+        private long corrupt;
+
+        Reader(List<Path> segs) {
+            this.segs = segs.iterator();
+        }
+
+        /**
+         * @return Number of segments that ended in a torn or corrupt record.
+         */
+        public long getCorrupt() {
+            return corrupt;
+        }
+
+        @Override
+        public boolean hasNext() {
+            try {
+                while (null == next) {
+                    if (null != map && map.hasRemaining()) {
+                        next = decode();
+                        if (null == next) {
+                            corrupt++;
+                            map = null;
+                        }
+                    } else if (segs.hasNext()) {
+                        open(segs.next());
+                    } else {
+                        return false;
+                    }
+                }
+                return true;
+            } catch (IOException ex) {
+                throw new RuntimeException(ex);
+            }
+        }
+
+        @Override
+        public OllamaJava.JSONIO next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            OllamaJava.JSONIO ret = next;
+            next = null;
+            return ret;
+        }
+
+        private void open(Path seg) throws IOException {
+            try (FileChannel ch = FileChannel.open(seg, StandardOpenOption.READ)) {
+                map = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            }
+            byte[] magic = new byte[MAGIC.length];
+            if (map.remaining() < magic.length) {
+                map = null;
+                return;
+            }
+            map.get(magic);
+            for (int i = 0; i < magic.length; i++) {
+                if (magic[i] != MAGIC[i]) {
+                    throw new IOException("Not a trace journal segment: " + seg);
+                }
+            }
+        }
+
+        private OllamaJava.JSONIO decode() {
+            try {
+                int length = map.getInt();
+                int sum = map.getInt();
+                if (length < 13 || length > map.remaining()) {
+                    return null;
+                }
+                ByteBuffer payload = map.slice();
+                payload.limit(length);
+                crc.reset();
+                crc.update(payload.duplicate());
+                if ((int) crc.getValue() != sum) {
+                    return null;
+                }
+                long at = payload.getLong();
+                boolean isOut = payload.get() != 0;
+                byte[] ep = new byte[payload.getInt()];
+                payload.get(ep);
+                byte[] json = new byte[payload.remaining()];
+                payload.get(json);
+                map.position(map.position() + length);
+                return new OllamaJava.JSONIO(at, isOut, new String(ep, StandardCharsets.UTF_8),
+                        new String(json, StandardCharsets.UTF_8));
+            } catch (BufferUnderflowException | IndexOutOfBoundsException | NegativeArraySizeException ex) {
+                return null;
+            }
+        }
+
+        @Override
+        public void close() {
+            map = null;
+        }
+    }
+}
@@ -0,0 +1,20 @@
+/*
+ * Copyright (c) 2024 by Walter Stroebel and InfComTec.
+ */
+package nl.infcomtec.ollamajava;
+
+/**
+ * Receives call traces. Called on the request path, so implementations must
+ * be quick and thread-safe; hand the work to another thread if it is not.
+ *
+ * @author walter
+ */
+public interface TraceSink {
+
+    /**
+     * One request or response.
+     *
+     * @param io The trace element.
+     */
+    void accept(OllamaJava.JSONIO io);
+}
@@ -0,0 +1,285 @@
+/*
+ * Copyright (c) 2024 by Walter Stroebel and InfComTec.
+ */
+package nl.infcomtec.ollamajava;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.IntStream;
+
+/**
+ * In-process nearest neighbour search over embeddings, exact and brute force.
+ * <p>
+ * Vectors are normalized on add, so cosine similarity is a dot product. They
+ * are stored row after row in float[] blocks of BLOCK_ROWS vectors, no object
+ * per vector. A query scans the blocks in parallel, each keeping its own top
+ * k, and merges those. A vector is known by its index, the order of adding;
+ * keep your own list of what the index stands for.
+ * <p>
+ * Adding is serialized, searching is not and may run while adding; a search
+ * sees the vectors added before it started.
+ *
+ * @author walter
+ */
+public class VectorIndex {
+
+    /**
+     * Vectors per block.
+     */
+    public static final int BLOCK_ROWS = 4096;
+    private final int dim;
+    private final ReentrantLock addLock = new ReentrantLock();
+    private volatile float[][] blocks = new float[0][];
+    private volatile int size;
+
+    /**
+     * @param dim Length of the vectors.
+     */
+    public VectorIndex(int dim) {
+        if (dim < 1) {
+            throw new IllegalArgumentException("Dimension " + dim);
+        }
+        this.dim = dim;
+    }
+
+    /**
+     * @return Length of the vectors.
+     */
+    public int dimension() {
+        return dim;
+    }
+
+    /**
+     * @return Number of vectors.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Add a vector, a copy is normalized and stored.
+     *
+     * @param vector The vector.
+     * @return Its index.
+     */
+    public int add(float[] vector) {
+        if (vector.length != dim) {
+            throw new IllegalArgumentException("Expected " + dim + " dimensions, got " + vector.length);
+        }
+        addLock.lock();
+        try {
+            int idx = size;
+            int b = idx / BLOCK_ROWS;
+            float[][] bs = blocks;
+            if (b == bs.length) {
+                bs = Arrays.copyOf(bs, b + 1);
+                bs[b] = new float[BLOCK_ROWS * dim];
+                blocks = bs;
+            }
+            float norm = (float) Math.sqrt(dot(vector, 0, vector, 0, dim));
+            float scale = norm > 0 ? 1 / norm : 0;
+            float[] block = bs[b];
+            int off = (idx % BLOCK_ROWS) * dim;
+            for (int i = 0; i < dim; i++) {
+                block[off + i] = vector[i] * scale;
+            }
+            size = idx + 1;
+            return idx;
+        } finally {
+            addLock.unlock();
+        }
+    }
+
+    /**
+     * Add several vectors, for instance the result of OllamaJava.embed().
+     *
+     * @param vectors The vectors.
+     * @return Index of the first one, the others follow.
+     */
+    public int addAll(float[][] vectors) {
+        addLock.lock();
+        try {
+            int first = size;
+            for (float[] v : vectors) {
+                add(v);
+            }
+            return first;
+        } finally {
+            addLock.unlock();
+        }
+    }
+
+    /**
+     * @param index The index.
+     * @return A copy of the normalized vector.
+     */
+    public float[] get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + ", size " + size);
+        }
+        int off = (index % BLOCK_ROWS) * dim;
+        return Arrays.copyOfRange(blocks[index / BLOCK_ROWS], off, off + dim);
+    }
+
+    /**
+     * The k most similar vectors.
+     *
+     * @param query The query vector, need not be normalized.
+     * @param k How many.
+     * @return At most k hits, best first.
+     */
+    public Hit[] search(float[] query, int k) {
+        if (query.length != dim) {
+            throw new IllegalArgumentException("Expected " + dim + " dimensions, got " + query.length);
+        }
+        final int n = size;
+        final float[][] bs = blocks;
+        if (n == 0 || k < 1) {
+            return new Hit[0];
+        }
+        float norm = (float) Math.sqrt(dot(query, 0, query, 0, dim));
+        final float[] q = new float[dim];
+        for (int i = 0; i < dim; i++) {
+            q[i] = norm > 0 ? query[i] / norm : 0;
+        }
+        int nBlocks = (n + BLOCK_ROWS - 1) / BLOCK_ROWS;
+        TopK all = IntStream.range(0, nBlocks).parallel().mapToObj(b -> {
+            TopK top = new TopK(k);
+            float[] block = bs[b];
+            int rows = Math.min(BLOCK_ROWS, n - b * BLOCK_ROWS);
+            for (int r = 0, off = 0; r < rows; r++, off += dim) {
+                top.offer(b * BLOCK_ROWS + r, dot(q, 0, block, off, dim));
+            }
+            return top;
+        }).reduce(TopK::merge).get();
+        return all.sorted();
+    }
+
+    /**
+     * Four partial sums, so the CPU can overlap the multiply-adds.
+     */
+    private static float dot(float[] a, int aOff, float[] b, int bOff, int len) {
+        float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int i = 0;
+        for (; i + 3 < len; i += 4) {
+            s0 += a[aOff + i] * b[bOff + i];
+            s1 += a[aOff + i + 1] * b[bOff + i + 1];
+            s2 += a[aOff + i + 2] * b[bOff + i + 2];
+            s3 += a[aOff + i + 3] * b[bOff + i + 3];
+        }
+        for (; i < len; i++) {
+            s0 += a[aOff + i] * b[bOff + i];
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    /**
+     * Min-heap of the best k (index, score) pairs, in two primitive arrays.
+     */
+    private static class TopK {
+
+        final int k;
+        final int[] idx;
+        final float[] score;
+        int n;
+
+        TopK(int k) {
+            this.k = k;
+            this.idx = new int[k];
+            this.score = new float[k];
+        }
+
+        void offer(int i, float s) {
+            if (n < k) {
+                idx[n] = i;
+                score[n] = s;
+                up(n++);
+            } else if (s > score[0]) {
+                idx[0] = i;
+                score[0] = s;
+                down(0);
+            }
+        }
+
+        /**
+         * Merges into this one, which must not be shared.
+         */
+        TopK merge(TopK other) {
+            for (int i = 0; i < other.n; i++) {
+                offer(other.idx[i], other.score[i]);
+            }
+            return this;
+        }
+
+        private void up(int c) {
+            while (c > 0) {
+                int p = (c - 1) / 2;
+                if (score[p] <= score[c]) {
+                    return;
+                }
+                swap(p, c);
+                c = p;
+            }
+        }
+
+        private void down(int p) {
+            while (true) {
+                int c = 2 * p + 1;
+                if (c >= n) {
+                    return;
+                }
+                if (c + 1 < n && score[c + 1] < score[c]) {
+                    c++;
+                }
+                if (score[p] <= score[c]) {
+                    return;
+                }
+                swap(p, c);
+                p = c;
+            }
+        }
+
+        private void swap(int a, int b) {
+            int ti = idx[a];
+            idx[a] = idx[b];
+            idx[b] = ti;
+            float ts = score[a];
+            score[a] = score[b];
+            score[b] = ts;
+        }
+
+        Hit[] sorted() {
+            Hit[] ret = new Hit[n];
+            for (int i = 0; i < n; i++) {
+                ret[i] = new Hit(idx[i], score[i]);
+            }
+            Arrays.sort(ret, (a, b) -> Float.compare(b.score, a.score));
+            return ret;
+        }
+    }
+
+    /**
+     * One search result.
+     */
+    public static class Hit {
+
+        /**
+         * Index of the vector, see add().
+         */
+        public final int index;
+        /**
+         * Cosine similarity, -1 to 1.
+         */
+        public final float score;
+
+        Hit(int index, float score) {
+            this.index = index;
+            this.score = score;
+        }
+
+        @Override
+        public String toString() {
+            return index + ":" + score;
+        }
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright (c) 2024 by Walter Stroebel and InfComTec.
+ */
+package nl.infcomtec.ollamajava;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Threads for blocking calls.
+ * <p>
+ * This is the Java 21 version: a new virtual thread per task. Blocking in a
+ * socket read parks the virtual thread and frees the carrier; the pool and
+ * caches use locks, not monitors, so they do not pin it.
+ *
+ * @author walter
+ */
+public final class TaskExecutors {
+
+    private TaskExecutors() {
+    }
+
+    /**
+     * An executor that runs each task on its own virtual thread.
+     *
+     * @param name Thread name prefix.
+     * @return The executor, shut it down when done.
+     */
+    public static ExecutorService newPerTaskExecutor(String name) {
+        return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(name + '-', 1).factory());
+    }
+
+    /**
+     * @return True if newPerTaskExecutor() uses virtual threads.
+     */
+    public static boolean isVirtual() {
+        return true;
+    }
+}
@@ -0,0 +1,278 @@
+/*
+ * Copyright (c) 2024 by Walter Stroebel and InfComTec.
+ */
+package nl.infcomtec.ollamajava;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import org.junit.jupiter.api.Test;
+
+/**
+ * The pool against a scripted socket server: chunked bodies both ways, stale
+ * connections, what is retried and what not, idle eviction.
+ *
+ * @author walter
+ */
+public class ConnectionPoolTest {
+
+    /**
+     * Answers one request.
+     */
+    private interface Responder {
+
+        /**
+         * @param nth 1 for the first request on this connection.
+         * @param out To the client.
+         * @return False to close the connection after this answer.
+         */
+        boolean respond(int nth, OutputStream out) throws IOException;
+    }
+
+    /**
+     * A server that reads HTTP/1.1 requests, plain or chunked, and answers
+     * them as told.
+     */
+    private static class ScriptedServer implements Closeable {
+
+        final ServerSocket server;
+        final List<String> bodies = new CopyOnWriteArrayList<>();
+        final AtomicInteger requests = new AtomicInteger();
+        final AtomicInteger connections = new AtomicInteger();
+        private final List<Socket> sockets = new CopyOnWriteArrayList<>();
+
+        ScriptedServer(Responder responder) throws IOException {
+            server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+            Thread t = new Thread(() -> {
+                try {
+                    while (true) {
+                        Socket s = server.accept();
+                        sockets.add(s);
+                        connections.incrementAndGet();
+                        Thread c = new Thread(() -> serve(s, responder));
+                        c.setDaemon(true);
+                        c.start();
+                    }
+                } catch (IOException closed) {
+                    // done
+                }
+            });
+            t.setDaemon(true);
+            t.start();
+        }
+
+        Config config() {
+            Config cfg = new Config("127.0.0.1");
+            cfg.port = server.getLocalPort();
+            return cfg;
+        }
+
+        private void serve(Socket s, Responder responder) {
+            try (Socket sock = s) {
+                InputStream in = new BufferedInputStream(sock.getInputStream());
+                OutputStream out = sock.getOutputStream();
+                for (int nth = 1;; nth++) {
+                    String line = line(in);
+                    if (null == line) {
+                        return;
+                    }
+                    long length = 0;
+                    boolean chunked = false;
+                    while (!(line = line(in)).isEmpty()) {
+                        String lower = line.toLowerCase();
+                        if (lower.startsWith("content-length:")) {
+                            length = Long.parseLong(line.substring(15).trim());
+                        } else if (lower.startsWith("transfer-encoding:") && lower.contains("chunked")) {
+                            chunked = true;
+                        }
+                    }
+                    ByteArrayOutputStream body = new ByteArrayOutputStream();
+                    if (chunked) {
+                        int n;
+                        while ((n = Integer.parseInt(line(in), 16)) > 0) {
+                            body.write(read(in, n));
+                            line(in);
+                        }
+                        line(in);
+                    } else {
+                        body.write(read(in, (int) length));
+                    }
+                    bodies.add(body.toString(StandardCharsets.UTF_8.name()));
+                    requests.incrementAndGet();
+                    boolean open = responder.respond(nth, out);
+                    out.flush();
+                    if (!open) {
+                        return;
+                    }
+                }
+            } catch (IOException | RuntimeException ex) {
+                // client went away
+            }
+        }
+
+        private static byte[] read(InputStream in, int n) throws IOException {
+            byte[] ret = new byte[n];
+            for (int off = 0; off < n;) {
+                int r = in.read(ret, off, n - off);
+                if (r < 0) {
+                    throw new IOException("Short body");
+                }
+                off += r;
+            }
+            return ret;
+        }
+
+        private static String line(InputStream in) throws IOException {
+            StringBuilder sb = new StringBuilder();
+            int c;
+            while ((c = in.read()) >= 0 && c != '\n') {
+                if (c != '\r') {
+                    sb.append((char) c);
+                }
+            }
+            return c < 0 && sb.length() == 0 ? null : sb.toString();
+        }
+
+        @Override
+        public void close() throws IOException {
+            server.close();
+            for (Socket s : sockets) {
+                s.close();
+            }
+        }
+    }
+
+    private static void write(OutputStream out, String text) throws IOException {
+        out.write(text.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    private static boolean ok(OutputStream out) throws IOException {
+        write(out, "HTTP/1.1 200 OK\r\nContent-Type: application/json\r\nContent-Length: 2\r\n\r\n{}");
+        return true;
+    }
+
+    @Test
+    public void chunkedBodiesBothWays() throws Exception {
+        try (ScriptedServer srv = new ScriptedServer((nth, out) -> {
+            write(out, "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n"
+                    + "6\r\nhello \r\n8\r\nchunked \r\n5\r\nworld\r\n0\r\n\r\n");
+            return true;
+        }); ConnectionPool pool = new ConnectionPool(srv.config())) {
+            char[] big = new char[40_000];
+            Arrays.fill(big, 'x');
+            String sent = "{" + new String(big) + "}";
+            try (ConnectionPool.Exchange ex = pool.post("/api/chat", out -> {
+                // single bytes and a write larger than a chunk
+                out.write('{');
+                out.write(sent.substring(1, sent.length() - 1).getBytes(StandardCharsets.UTF_8));
+                out.write('}');
+                out.close();
+            })) {
+                assertEquals(200, ex.status);
+                assertEquals("hello chunked world", ex.bodyAsString());
+            }
+            assertEquals(sent, srv.bodies.get(0));
+            // read to the end, so back in the pool
+            assertEquals(1, pool.getIdle());
+            assertEquals(0, pool.getLeased());
+            try (ConnectionPool.Exchange ex = pool.get("/api/tags")) {
+                assertEquals("hello chunked world", ex.bodyAsString());
+            }
+            assertEquals(1, pool.getOpened());
+            assertEquals(1, pool.getReused());
+        }
+    }
+
+    @Test
+    public void staleConnectionIsRetried() throws Exception {
+        // answers, then closes without saying so
+        try (ScriptedServer srv = new ScriptedServer((nth, out) -> {
+            ok(out);
+            return false;
+        }); ConnectionPool pool = new ConnectionPool(srv.config())) {
+            pool.get("/api/tags").finish();
+            assertEquals(1, pool.getIdle());
+            Thread.sleep(100);
+            try (ConnectionPool.Exchange ex = pool.post("/api/generate", out -> {
+                out.write("{\"model\":\"m\"}".getBytes(StandardCharsets.UTF_8));
+                out.close();
+            })) {
+                assertEquals("{}", ex.bodyAsString());
+            }
+            assertEquals(2, pool.getOpened());
+            assertEquals(2, srv.connections.get());
+            assertEquals("{\"model\":\"m\"}", srv.bodies.get(srv.bodies.size() - 1));
+            assertEquals(0, pool.getFailures());
+        }
+    }
+
+    @Test
+    public void noRetryAfterTheStatusLine() throws Exception {
+        // the second request on a connection gets a status line and no more
+        try (ScriptedServer srv = new ScriptedServer((nth, out) -> {
+            if (nth == 1) {
+                return ok(out);
+            }
+            write(out, "HTTP/1.1 200 OK\r\nContent-Length: 100\r\n");
+            return false;
+        }); ConnectionPool pool = new ConnectionPool(srv.config())) {
+            pool.get("/api/tags").finish();
+            assertThrows(IOException.class, () -> pool.post("/api/generate", "{}".getBytes(StandardCharsets.UTF_8)));
+            assertEquals(2, srv.requests.get());
+            assertEquals(1, pool.getOpened());
+            assertEquals(1, pool.getFailures());
+            assertEquals(0, pool.getLeased());
+        }
+    }
+
+    @Test
+    public void idleConnectionsAreEvicted() throws Exception {
+        try (ScriptedServer srv = new ScriptedServer((nth, out) -> ok(out))) {
+            Config cfg = srv.config();
+            cfg.poolIdleMillis = 50;
+            try (ConnectionPool pool = new ConnectionPool(cfg)) {
+                pool.get("/api/tags").finish();
+                assertEquals(1, pool.getIdle());
+                pool.evictIdle();
+                assertEquals(1, pool.getIdle());
+                Thread.sleep(120);
+                pool.evictIdle();
+                assertEquals(0, pool.getIdle());
+                assertEquals(1, pool.getEvicted());
+                pool.get("/api/tags").finish();
+                assertEquals(2, pool.getOpened());
+                assertEquals(0, pool.getReused());
+            }
+        }
+    }
+
+    @Test
+    public void failingBodyWriterGivesTheConnectionBack() throws Exception {
+        try (ScriptedServer srv = new ScriptedServer((nth, out) -> ok(out));
+                ConnectionPool pool = new ConnectionPool(srv.config())) {
+            assertThrows(IllegalStateException.class, () -> pool.post("/api/chat", out -> {
+                throw new IllegalStateException("cannot serialize");
+            }));
+            assertEquals(0, pool.getLeased());
+            assertThrows(IOException.class, () -> pool.post("/api/chat", out -> {
+                out.close();
+                out.write('x');
+            }));
+            assertEquals(0, pool.getLeased());
+            assertEquals(2, pool.getFailures());
+        }
+    }
+}
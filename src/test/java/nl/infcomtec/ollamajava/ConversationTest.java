@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2024 by Walter Stroebel and InfComTec.
+ */
+package nl.infcomtec.ollamajava;
+
+import java.util.Arrays;
+import java.util.List;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Which messages window() sends, with every message counted as 10 tokens.
+ *
+ * @author walter
+ */
+public class ConversationTest {
+
+    private static Conversation conversation(int budget, Message... messages) {
+        Conversation c = new Conversation("stub", m -> 10);
+        c.setBudget(budget);
+        for (Message m : messages) {
+            c.add(m);
+        }
+        return c;
+    }
+
+    private static Message system(String text) {
+        return new Message(Message.Roles.system, text);
+    }
+
+    private static Message user(String text) {
+        return new Message(Message.Roles.user, text);
+    }
+
+    private static Message assistant(String text) {
+        return new Message(Message.Roles.assistant, text);
+    }
+
+    @Test
+    public void assistantGreetingAloneFits() {
+        Message sys = system("be brief");
+        Message hello = assistant("Hello, how can I help?");
+        Conversation c = conversation(100, sys, hello);
+        assertEquals(Arrays.asList(sys, hello), c.window());
+    }
+
+    @Test
+    public void assistantGreetingKeptWhenThereIsRoom() {
+        Message sys = system("be brief");
+        Message hello = assistant("Hello, how can I help?");
+        Message q = user("What is 2+2?");
+        Message a = assistant("4");
+        Conversation c = conversation(100, sys, hello, q, a);
+        assertEquals(Arrays.asList(sys, hello, q, a), c.window());
+    }
+
+    @Test
+    public void assistantGreetingIsATurnOfItsOwn() {
+        Message sys = system("be brief");
+        Message hello = assistant("Hello, how can I help?");
+        Message q = user("What is 2+2?");
+        Message a = assistant("4");
+        // room for the system message and one turn of two messages
+        Conversation c = conversation(30, sys, hello, q, a);
+        assertEquals(Arrays.asList(sys, q, a), c.window());
+    }
+
+    @Test
+    public void oldTurnsDroppedWhole() {
+        Message sys = system("be brief");
+        Conversation c = conversation(50, sys, user("1"), assistant("one"), user("2"), assistant("two"),
+                user("3"), assistant("three"));
+        List<Message> window = c.window();
+        assertEquals(5, window.size());
+        assertEquals(sys, window.get(0));
+        assertEquals("2", window.get(1).content);
+        assertEquals("three", window.get(4).content);
+    }
+
+    @Test
+    public void lastTurnTooLargeThrows() {
+        Conversation c = conversation(25, system("be brief"), user("1"), assistant("one"));
+        assertThrows(IllegalStateException.class, c::window);
+    }
+
+    @Test
+    public void systemMessagesTooLargeThrows() {
+        Conversation c = conversation(15, system("be brief"), system("and polite"), user("1"));
+        assertThrows(IllegalStateException.class, c::window);
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2024 by Walter Stroebel and InfComTec.
+ */
+package nl.infcomtec.ollamajava;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Partial and final frames, error frames and streams that break off.
+ *
+ * @author walter
+ */
+public class NdjsonDecoderTest {
+
+    private static final JsonCodec CODEC = new JsonCodec();
+    private static final String PART1 = "{\"model\":\"m\",\"created_at\":\"2024-01-01T10:00:00.123456Z\",\"response\":\"Hel\",\"done\":false}";
+    private static final String PART2 = "{\"model\":\"m\",\"created_at\":\"2024-01-01T10:00:00.223456Z\",\"response\":\"lo\",\"done\":false}";
+    private static final String DONE = "{\"model\":\"m\",\"created_at\":\"2024-01-01T10:00:00.323456Z\",\"response\":\"\",\"done\":true,"
+            + "\"done_reason\":\"stop\",\"context\":[1,2,3],\"total_duration\":300,\"load_duration\":10,"
+            + "\"prompt_eval_count\":5,\"prompt_eval_duration\":100,\"eval_count\":2,\"eval_duration\":150}";
+
+    private static NdjsonDecoder decoder(boolean partialAsResponse, boolean keepText, String... frames) throws IOException {
+        String text = String.join("\n", frames) + "\n";
+        return new NdjsonDecoder(CODEC, new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8)), partialAsResponse, keepText);
+    }
+
+    @Test
+    public void partialFramesThenFinal() throws IOException {
+        try (NdjsonDecoder dec = decoder(false, true, PART1, PART2, DONE)) {
+            StreamedResponse p = dec.next();
+            assertSame(StreamedResponse.class, p.getClass());
+            assertEquals("m", p.model);
+            assertEquals("Hel", p.response);
+            assertFalse(p.done);
+            assertEquals(PART1, dec.getLastFrame());
+            assertEquals("lo", dec.next().response);
+            assertEquals(PART2, dec.getLastFrame());
+            Response fin = (Response) dec.next();
+            assertTrue(fin.done);
+            assertEquals("stop", fin.doneReason);
+            assertEquals(3, fin.context.size());
+            assertEquals(300, fin.totalDuration);
+            assertEquals(10, fin.loadDuration);
+            assertEquals(5, fin.promptEvalCount);
+            assertEquals(2, fin.evalCount);
+            assertEquals(150, fin.evalDuration);
+            assertFalse(fin.error);
+            assertFalse(dec.isError());
+            assertEquals(DONE, dec.getLastFrame());
+            assertNull(dec.next());
+            assertNull(dec.getLastFrame());
+        }
+    }
+
+    @Test
+    public void chatFramesAsResponses() throws IOException {
+        String part = "{\"model\":\"m\",\"message\":{\"role\":\"assistant\",\"content\":\"Hi\",\"extra\":[1]},\"done\":false}";
+        try (NdjsonDecoder dec = decoder(true, false, part)) {
+            StreamedResponse p = dec.next();
+            assertSame(Response.class, p.getClass());
+            assertEquals("assistant", p.message.role);
+            assertEquals("Hi", p.message.content);
+            assertNull(dec.getLastFrame());
+        }
+    }
+
+    @Test
+    public void unknownFieldsDoNotMakeAResponse() throws IOException {
+        String part = "{\"model\":\"m\",\"response\":\"a\",\"extra\":{\"x\":[1,{\"y\":2}]},\"more\":7,\"done\":false}";
+        try (NdjsonDecoder dec = decoder(false, false, part, PART2)) {
+            StreamedResponse p = dec.next();
+            assertSame(StreamedResponse.class, p.getClass());
+            assertEquals("a", p.response);
+            // and the parser is still in step
+            assertEquals("lo", dec.next().response);
+        }
+    }
+
+    @Test
+    public void errorFrame() throws IOException {
+        try (NdjsonDecoder dec = decoder(false, true, PART1, "{\"error\":\"model 'x' not found\"}")) {
+            dec.next();
+            assertFalse(dec.isError());
+            Response err = (Response) dec.next();
+            assertTrue(dec.isError());
+            assertTrue(err.error);
+            assertTrue(err.done);
+            assertEquals("{\"error\":\"model 'x' not found\"}", err.response);
+        }
+    }
+
+    @Test
+    public void structuredErrorFrame() throws IOException {
+        try (NdjsonDecoder dec = decoder(false, false, "{\"error\":{\"code\":500,\"message\":\"boom\"}}")) {
+            Response err = (Response) dec.next();
+            assertTrue(dec.isError());
+            assertTrue(err.response.contains("boom"));
+        }
+    }
+
+    @Test
+    public void streamThatBreaksOffInAFrame() throws IOException {
+        try (NdjsonDecoder dec = decoder(false, false, PART1, "{\"model\":\"m\",\"respon")) {
+            assertEquals("Hel", dec.next().response);
+            assertThrows(IOException.class, dec::next);
+        }
+    }
+
+    @Test
+    public void streamThatEndsWithoutDone() throws IOException {
+        try (NdjsonDecoder dec = decoder(false, false, PART1, PART2)) {
+            assertFalse(dec.next().done);
+            assertFalse(dec.next().done);
+            assertNull(dec.next());
+        }
+    }
+
+    @Test
+    public void notAnObject() throws IOException {
+        try (NdjsonDecoder dec = decoder(false, false, "[1,2]")) {
+            assertThrows(IOException.class, dec::next);
+        }
+    }
+}
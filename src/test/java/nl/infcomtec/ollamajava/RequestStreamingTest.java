@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2024 by Walter Stroebel and InfComTec.
+ */
+package nl.infcomtec.ollamajava;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.LinkedList;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+/**
+ * A large chat request is streamed onto the connection, also when traced, so
+ * the client does not allocate the size of the body if the trace keeps only
+ * its start; by default the trace keeps all of it.
+ *
+ * @author walter
+ */
+public class RequestStreamingTest {
+
+    private static final int MESSAGES = 256;
+    private static final int MESSAGE_CHARS = 16 << 10;
+    private static final int KEEP = 64 << 10;
+
+    private static ChatRequest largeChat() {
+        char[] text = new char[MESSAGE_CHARS];
+        Arrays.fill(text, 'x');
+        String content = new String(text);
+        ChatRequest rq = new ChatRequest();
+        rq.model = "stub";
+        rq.stream = false;
+        rq.messages = new Message[MESSAGES];
+        for (int i = 0; i < MESSAGES; i++) {
+            rq.messages[i] = new Message(i % 2 == 0 ? Message.Roles.user : Message.Roles.assistant, content);
+        }
+        return rq;
+    }
+
+    private static long allocated() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    @Test
+    public void tracedChatDoesNotCopyTheBody() throws Exception {
+        try (StubServer stub = new StubServer(0)) {
+            stub.tokens = 1;
+            stub.tokensPerSecond = 0;
+            stub.firstTokenMillis = 0;
+            Config cfg = stub.config();
+            OllamaJava ollama = new OllamaJava();
+            ollama.setMetrics(new MetricsRegistry(null));
+            ollama.getTraceBuffer().setMaxRequestBytes(KEEP);
+            ChatRequest rq = largeChat();
+            long body = (long) MESSAGES * MESSAGE_CHARS;
+            // class loading, pool and codec warm up
+            ollama.chat(cfg, rq);
+            ollama.clearTrace();
+            long before = allocated();
+            ollama.chat(cfg, rq);
+            long used = allocated() - before;
+            assertTrue(used < body / 4, "allocated " + used + " bytes for a " + body + " byte body");
+            LinkedList<OllamaJava.JSONIO> trace = ollama.getTrace();
+            OllamaJava.JSONIO out = trace.getFirst();
+            assertTrue(out.isOut);
+            assertEquals(KEEP + 3, out.json.length());
+            assertTrue(out.json.startsWith("{\"model\":\"stub\""));
+            assertTrue(out.json.endsWith("..."));
+        }
+    }
+
+    @Test
+    public void traceKeepsTheWholeRequestSentFirst() throws Exception {
+        try (StubServer stub = new StubServer(0)) {
+            stub.tokens = 3;
+            stub.firstTokenMillis = 200;
+            OllamaJava ollama = new OllamaJava();
+            ollama.setMetrics(new MetricsRegistry(null));
+            ChatRequest rq = largeChat();
+            rq.stream = true;
+            ollama.chat(stub.config(), rq);
+            LinkedList<OllamaJava.JSONIO> trace = ollama.getTrace();
+            OllamaJava.JSONIO out = trace.getFirst();
+            assertTrue(out.isOut);
+            JsonCodec codec = new JsonCodec();
+            assertEquals(MESSAGES, codec.treeReader.readTree(out.json).get("messages").size());
+            // stamped when sent, well before the first token
+            assertTrue(trace.get(1).at - out.at >= 150, "request at " + out.at + ", first frame at " + trace.get(1).at);
+        }
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright (c) 2024 by Walter Stroebel and InfComTec.
+ */
+package nl.infcomtec.ollamajava;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Eviction by count and by size, sampling, filtering, clearing, and the
+ * counters adding up when many threads append at once.
+ *
+ * @author walter
+ */
+public class TraceBufferTest {
+
+    private static OllamaJava.JSONIO io(boolean out, String json) {
+        return new OllamaJava.JSONIO(out, "/e", json);
+    }
+
+    /**
+     * What TraceBuffer counts for an entry.
+     */
+    private static long size(OllamaJava.JSONIO io) {
+        return 32 + io.json.length() + io.endPoint.length();
+    }
+
+    private static long size(List<OllamaJava.JSONIO> all) {
+        long ret = 0;
+        for (OllamaJava.JSONIO io : all) {
+            ret += size(io);
+        }
+        return ret;
+    }
+
+    private static List<String> json(List<OllamaJava.JSONIO> all) {
+        List<String> ret = new ArrayList<>();
+        for (OllamaJava.JSONIO io : all) {
+            ret.add(io.json);
+        }
+        return ret;
+    }
+
+    @Test
+    public void oldestMakeRoomWhenFull() {
+        TraceBuffer tb = new TraceBuffer(4, 1 << 20);
+        for (int i = 0; i < 10; i++) {
+            tb.add(io(true, Integer.toString(i)));
+        }
+        assertEquals(List.of("6", "7", "8", "9"), json(tb.snapshot(false)));
+        assertEquals(10, tb.getAdded());
+        assertEquals(6, tb.getEvicted());
+        assertEquals(size(tb.snapshot(false)), tb.getBytes());
+    }
+
+    @Test
+    public void oldestMakeRoomForBytes() {
+        // 44 bytes per entry, two fit
+        TraceBuffer tb = new TraceBuffer(100, 100);
+        for (int i = 0; i < 5; i++) {
+            tb.add(io(true, "012345678" + i));
+        }
+        assertEquals(List.of("0123456783", "0123456784"), json(tb.snapshot(false)));
+        assertEquals(3, tb.getEvictedForBytes());
+        assertEquals(88, tb.getBytes());
+    }
+
+    @Test
+    public void tooLargeIsDroppedAlone() {
+        TraceBuffer tb = new TraceBuffer(100, 100);
+        tb.add(io(true, "small"));
+        char[] big = new char[200];
+        tb.add(io(true, new String(big)));
+        assertEquals(List.of("small"), json(tb.snapshot(false)));
+        assertEquals(1, tb.getTooLarge());
+    }
+
+    @Test
+    public void samplingTracesOneInN() {
+        TraceBuffer tb = new TraceBuffer();
+        tb.setSampleEvery(3);
+        int traced = 0;
+        for (int i = 0; i < 9; i++) {
+            if (tb.sampleCall()) {
+                traced++;
+            }
+        }
+        assertEquals(3, traced);
+        assertEquals(6, tb.getSampledOut());
+        tb.setSampleEvery(0);
+        assertFalse(tb.sampleCall());
+        tb.setSampleEvery(1);
+        assertTrue(tb.sampleCall());
+    }
+
+    @Test
+    public void requestsOnlyFiltersResponses() {
+        TraceBuffer tb = new TraceBuffer();
+        tb.setRequestsOnly(true);
+        assertFalse(tb.wantsResponses());
+        tb.add(io(true, "{\"rq\":1}"));
+        tb.add(io(false, "{\"rs\":1}"));
+        assertEquals(List.of("{\"rq\":1}"), json(tb.snapshot(false)));
+        assertEquals(1, tb.getFiltered());
+    }
+
+    @Test
+    public void clearingKeepsTheBytesRight() {
+        TraceBuffer tb = new TraceBuffer(8, 1 << 20);
+        for (int i = 1; i <= 5; i++) {
+            tb.add(new OllamaJava.JSONIO(i, true, "/e", "at" + i));
+        }
+        tb.clearBefore(4);
+        assertEquals(List.of("at4", "at5"), json(tb.snapshot(false)));
+        assertEquals(size(tb.snapshot(false)), tb.getBytes());
+        assertEquals(2, tb.snapshot(true).size());
+        assertEquals(0, tb.getBytes());
+        assertTrue(tb.snapshot(false).isEmpty());
+        tb.add(io(true, "after"));
+        assertEquals(List.of("after"), json(tb.snapshot(false)));
+    }
+
+    /**
+     * Appends from many threads: every entry is either held or counted as
+     * evicted, the newest capacity entries are held, and each thread's entries
+     * stay in order.
+     */
+    @Test
+    public void concurrentAppendsAddUp() throws Exception {
+        final int threads = 8;
+        final int each = 20_000;
+        final int capacity = 1024;
+        TraceBuffer tb = new TraceBuffer(capacity, Long.MAX_VALUE);
+        run(tb, threads, each);
+        LinkedList<OllamaJava.JSONIO> held = tb.snapshot(false);
+        assertEquals(capacity, held.size());
+        assertEquals((long) threads * each, tb.getEvicted() + held.size());
+        assertEquals(size(held), tb.getBytes());
+        assertInOrder(held);
+    }
+
+    /**
+     * The same while trimming for size all the time.
+     */
+    @Test
+    public void concurrentAppendsStayUnderMaxBytes() throws Exception {
+        final int threads = 8;
+        final int each = 20_000;
+        final long maxBytes = 4096;
+        TraceBuffer tb = new TraceBuffer(1024, maxBytes);
+        run(tb, threads, each);
+        LinkedList<OllamaJava.JSONIO> held = tb.snapshot(false);
+        assertFalse(held.isEmpty());
+        assertTrue(tb.getBytes() <= maxBytes, "bytes " + tb.getBytes());
+        assertEquals(size(held), tb.getBytes());
+        assertInOrder(held);
+        assertEquals(held.size(), tb.snapshot(true).size());
+        assertEquals(0, tb.getBytes());
+    }
+
+    private static void run(TraceBuffer tb, int threads, int each) throws InterruptedException {
+        CountDownLatch go = new CountDownLatch(1);
+        List<Thread> all = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            final String name = "t" + t + ':';
+            Thread th = new Thread(() -> {
+                try {
+                    go.await();
+                } catch (InterruptedException ex) {
+                    return;
+                }
+                for (int i = 0; i < each; i++) {
+                    tb.add(io(true, name + i));
+                }
+            });
+            th.start();
+            all.add(th);
+        }
+        go.countDown();
+        for (Thread th : all) {
+            th.join();
+        }
+    }
+
+    private static void assertInOrder(List<OllamaJava.JSONIO> held) {
+        HashMap<String, Integer> last = new HashMap<>();
+        for (OllamaJava.JSONIO io : held) {
+            int colon = io.json.indexOf(':');
+            String name = io.json.substring(0, colon);
+            int i = Integer.parseInt(io.json.substring(colon + 1));
+            Integer prev = last.put(name, i);
+            assertTrue(null == prev || prev < i, name + " " + prev + " before " + i);
+        }
+    }
+}